@@ -0,0 +1,76 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// BenchSupport holds what the benchmarks share - a quiet in-process server and clients logged in without a
+// connection. History, mailboxes, flood control, logging and the stats printer are turned off so the benchmarks
+// only measure the msg path.
+final class BenchSupport {
+
+    // --- CONSTRUCTOR ---
+    private BenchSupport() {}
+
+    // newServer creates a server that does not accept connections until start is called. The properties are
+    // set before the first server is created, as the server log reads them once
+    // port - port the server will listen on, 0 if it is only driven in process
+    //
+    // returns the server
+    static Server newServer(int port) {
+        System.setProperty("chat.historyDir", "");
+        System.setProperty("chat.mailboxFile", "");
+        System.setProperty("chat.statsInterval", "0");
+        System.setProperty("chat.logFile", "");
+        System.setProperty("chat.logConsole", "false");
+        System.setProperty("chat.floodRate", "0");
+        System.setProperty("chat.floodGlobalRate", "0");
+
+        return new Server(port);
+    }
+
+    // login runs a client through the username handshake without a connection
+    // server - server the client joins
+    // name - username of the client
+    //
+    // returns the client's session
+    static ChatSession login(Server server, String name) throws Exception {
+        ChatSession session = new ChatSession(server, new NullConnection());
+
+        for (String line : new String[] {"/username " + name, "/username confirmed"}) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            session.handleLine(bytes, 0, bytes.length);
+        }
+
+        return session;
+    }
+
+    // drain takes every waiting msg off of the queues
+    // queues - queues to be drained
+    //
+    // returns the number of msgs taken
+    static int drain(List<MsgQueue> queues) {
+        int taken = 0;
+        for (MsgQueue queue : queues) {
+            while (queue.poll() != null) {
+                taken++;
+            }
+        }
+
+        return taken;
+    }
+
+    // NullConnection is a connection that throws away everything the session sends during the handshake
+    private static final class NullConnection implements ClientConnection {
+        public void sendRaw(String msg) {
+        }
+
+        public void close() {
+        }
+
+        public InetAddress getAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// CommandBenchmark measures routing a line from the read buffer through the session - commands and a chat msg
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+
+    // --- FIELDS ---
+    @Param({"/help", "/rooms", "/nope", "hello world"})
+    public String line;
+
+    private ChatSession session;
+    private List<MsgQueue> queue;
+    private byte[] bytes;
+
+    // --- SETUP ---
+    @Setup
+    public void setup() throws Exception {
+        this.session = BenchSupport.login(BenchSupport.newServer(0), "bench");
+        this.queue = List.of(this.session.getClient().getQueue());
+        BenchSupport.drain(this.queue);
+
+        this.bytes = this.line.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // --- BENCHMARKS ---
+    @Benchmark
+    public int handleLine() throws Exception {
+        this.session.handleLine(this.bytes, 0, this.bytes.length);
+        return BenchSupport.drain(this.queue);
+    }
+}
@@ -0,0 +1,53 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// FanOutBenchmark measures publishing a chat msg to a room and every member's queue taking it off the log, the
+// first member to encode the msg paying for the encode
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    // --- FIELDS ---
+    @Param({"10", "100", "1000"})
+    public int users;
+
+    private Server server;
+    private ClientInfo sender;
+    private final ArrayList<MsgQueue> queues = new ArrayList<>();
+
+    // --- SETUP ---
+    @Setup
+    public void setup() throws Exception {
+        this.server = BenchSupport.newServer(0);
+        for (int i = 0; i < this.users; i++) {
+            this.queues.add(BenchSupport.login(this.server, "user" + i).getClient().getQueue());
+        }
+        BenchSupport.drain(this.queues);
+
+        this.sender = this.server.getClient("user0");
+    }
+
+    // --- BENCHMARKS ---
+    @Benchmark
+    public void addMsg(Blackhole blackhole) {
+        this.server.addMsg(this.sender.getRoom(),
+                Frame.chat(this.sender, System.currentTimeMillis(), "hello world", false));
+
+        for (MsgQueue queue : this.queues) {
+            Frame frame;
+            while ((frame = queue.poll()) != null) {
+                blackhole.consume(frame.buffer(false));
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// LoopbackBenchmark measures a full round trip through the nio engine - a text client sends a chat msg and waits
+// for the server to broadcast it back
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    // --- FIELDS ---
+    private Socket socket;
+    private BufferedReader input;
+    private Writer output;
+
+    // --- SETUP ---
+    @Setup
+    public void setup() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        Server server = BenchSupport.newServer(port);
+        Thread acceptor = new Thread(() -> server.start(Server.MODE_NIO, 1), "bench-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (int i = 0; this.socket == null; i++) {
+            try {
+                this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            }
+            catch (IOException e) {
+                if (i == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+        this.socket.setTcpNoDelay(true);
+
+        this.input = new BufferedReader(new InputStreamReader(this.socket.getInputStream(), StandardCharsets.UTF_8));
+        this.output = new BufferedWriter(new OutputStreamWriter(this.socket.getOutputStream(), StandardCharsets.UTF_8));
+
+        this.output.write("/username bench\n");
+        this.output.flush();
+        this.readUntil("/username accepted");
+        this.output.write("/username confirmed\n");
+        this.output.flush();
+        this.readUntil("bench has joined");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.socket.close();
+    }
+
+    // --- BENCHMARKS ---
+    @Benchmark
+    public void roundTrip() throws IOException {
+        this.output.write("ping\n");
+        this.output.flush();
+        this.readUntil("] ping");
+    }
+
+    // readUntil reads lines until one contains the given text
+    // text - text to wait for
+    //
+    // returns null
+    private void readUntil(String text) throws IOException {
+        String line;
+        while ((line = this.input.readLine()) != null) {
+            if (line.contains(text)) {
+                return;
+            }
+        }
+
+        throw new EOFException();
+    }
+}
@@ -0,0 +1,61 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// UsersBenchmark measures the user list, /users & the username uniqueness check with 1,000 users on the server
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class UsersBenchmark {
+
+    // --- FIELDS ---
+    private static final byte[] USERS = "/users".getBytes(StandardCharsets.UTF_8);
+
+    private Server server;
+    private ChatSession asking;
+    private List<MsgQueue> queue;
+    private final InetAddress address = InetAddress.getLoopbackAddress();
+
+    // --- SETUP ---
+    @Setup
+    public void setup() throws Exception {
+        this.server = BenchSupport.newServer(0);
+        for (int i = 0; i < 1000; i++) {
+            this.asking = BenchSupport.login(this.server, "user" + i);
+        }
+
+        this.queue = List.of(this.asking.getClient().getQueue());
+        BenchSupport.drain(this.queue);
+    }
+
+    // --- BENCHMARKS ---
+    @Benchmark
+    public Object getUsers() {
+        return this.server.getUsers();
+    }
+
+    @Benchmark
+    public int usersCommand() throws Exception {
+        this.asking.handleLine(USERS, 0, USERS.length);
+        return BenchSupport.drain(this.queue);
+    }
+
+    @Benchmark
+    public Object claimUserTaken() {
+        return this.server.claimUser("user500", null, this.address);
+    }
+
+    @Benchmark
+    public void claimUserAndRelease() {
+        this.server.releaseUser(this.server.claimUser("new", null, this.address));
+    }
+}
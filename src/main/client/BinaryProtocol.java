@@ -0,0 +1,119 @@
+// Nicholas Delli Carpini
+package main.client;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+// BinaryProtocol holds the client side of the compact binary wire protocol. The client offers it by sending
+// /protocol binary before its /username, and switches to frames once the server answers with
+// /username accepted binary and the client has sent /username confirmed binary. Frames are
+//
+//     [type - 1 byte][payload length - varint][payload]
+//
+// TEXT   - UTF-8 text, a command or chat line from the client, or a server notice
+// CHAT   - [sender id - varint][time in epoch millis - 8 bytes][flags - 1 byte][UTF-8 msg]
+// USERS  - [presence version - varint] followed by one [user id - varint][name length - varint][UTF-8 name] for
+//          every logged in user, a snapshot sent to the client when it logs in
+// JOINED - [presence version - varint][time in epoch millis - 8 bytes][user id - varint][flags - 1 byte]
+//          [name length - varint][UTF-8 name], a user logged in - shown unless the flags lack FLAG_ANNOUNCE
+// LEFT   - [presence version - varint][time in epoch millis - 8 bytes][user id - varint], a user logged out
+public final class BinaryProtocol {
+
+    // --- FIELDS ---
+    public static final String OFFER = "/protocol binary";
+
+    // offer of a compressed stream - everything the server sends after the handshake is one raw DEFLATE stream,
+    // sync flushed after every write
+    public static final String DEFLATE_OFFER = "/protocol deflate";
+
+    // offer to resume the session after a lost connection - the server sends a /session [token] msg, and every
+    // frame after it is numbered by counting, so a new connection can ask for the frames it missed
+    public static final String RESUME_OFFER = "/protocol resume";
+
+    public static final byte TEXT = 1;
+    public static final byte CHAT = 2;
+    public static final byte USERS = 3;
+    public static final byte JOINED = 4;
+    public static final byte LEFT = 5;
+
+    public static final byte FLAG_WHISPER = 1;
+    public static final byte FLAG_ANNOUNCE = 1;
+
+    public static final int MAX_PAYLOAD = 64 * 1024;
+
+    // a non-negative int never needs more than 5 varint bytes, and the last of them holds only its top 3 bits
+    public static final int MAX_VARINT_BYTES = 5;
+    private static final int LAST_VARINT_BYTE = 0x07;
+
+    // a non-negative long never needs more than 9 varint bytes
+    public static final int MAX_VARLONG_BYTES = 9;
+
+    // --- CONSTRUCTOR ---
+    private BinaryProtocol() {}
+
+    // writeText writes a line of text as a single TEXT frame
+    // out - stream to write to
+    // text - text to be sent
+    //
+    // returns null
+    public static void writeText(OutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+        out.write(TEXT);
+        BinaryProtocol.writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    // writeVarInt writes a non-negative int as an unsigned LEB128 varint
+    // out - stream to write to
+    // value - value to be written
+    //
+    // returns null
+    public static void writeVarInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // readVarInt reads an unsigned LEB128 varint, rejecting one that runs past 5 bytes or would not fit in a
+    // non-negative int - the rest of a stream that sent one can not be trusted
+    // in - stream to read from
+    //
+    // returns the value
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int i = 0; ; i++) {
+            int b = in.readUnsignedByte();
+            if (i == MAX_VARINT_BYTES - 1 && b > LAST_VARINT_BYTE) {
+                throw new ProtocolException("bad varint");
+            }
+
+            value |= (b & 0x7F) << (i * 7);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    // readVarLong reads an unsigned LEB128 varint that may not fit in an int
+    // in - stream to read from
+    //
+    // returns the value
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int i = 0; ; i++) {
+            int b = in.readUnsignedByte();
+            if (i == MAX_VARLONG_BYTES - 1 && (b & 0x80) != 0) {
+                throw new ProtocolException("bad varint");
+            }
+
+            value |= (long) (b & 0x7F) << (i * 7);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
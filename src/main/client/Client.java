@@ -3,25 +3,75 @@ package main.client;
 
 import java.net.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 // Client is an executable class that handles the user input, and confirms the username with the
-// server. Client creates a separate ClientReceiveThread to handle msgs from the server.
+// server. Client creates a separate ClientReceiveThread to handle msgs from the server. A client goes
+// through the states CONNECTING, AUTHENTICATING, CONNECTED and DISCONNECTED - every wait on the server is
+// a CompletableFuture with a timeout, so nothing spins while the server answers.
 public class Client {
 
     // --- FIELDS ---
+    public enum State { CONNECTING, AUTHENTICATING, CONNECTED, DISCONNECTED }
+
+    // reconnect attempts to the same address before asking for a new one, and the backoff between them
+    private static final int MAX_RETRIES = 5;
+    private static final long INITIAL_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 30000;
+
     private String name = "";
+    private String address;
     private int port = 5000;
     private int timeout = 10000;
-    private int disconnectMode = 0;
+
+    private volatile State state = State.CONNECTING;
+    private boolean reached = false;
+    private final CompletableFuture<Integer> closed = new CompletableFuture<>();
+
+    // binary protocol & compression negotiation - see BinaryProtocol
+    private boolean offerBinary;
+    private boolean offerDeflate;
+    private volatile boolean binary = false;
+
+    // token of the session on the server, null until the server has sent one
+    private volatile String token;
 
     private Socket socket;
     private BufferedReader userInput;
-    private BufferedWriter output;
+    private OutputStream output;
 
     private ClientReceiveThread receiver;
 
     // --- CONSTRUCTOR ---
     public Client(String address, BufferedReader userInput) {
+        this(address, userInput, true, false);
+    }
+
+    // offerBinary - if the client should offer the server the binary protocol
+    // offerDeflate - if the client should offer the server to compress everything it sends
+    public Client(String address, BufferedReader userInput, boolean offerBinary, boolean offerDeflate) {
+        this(address, userInput, offerBinary, offerDeflate, null);
+    }
+
+    // lost - client whose connection was lost, its session is resumed if the server still has it
+    private Client(String address, BufferedReader userInput, boolean offerBinary, boolean offerDeflate,
+                   Client lost) {
+        this.address = address;
+        this.offerBinary = offerBinary;
+        this.offerDeflate = offerDeflate;
+
+        // servers of a cluster run on other ports - host:port
+        int colon = address.lastIndexOf(':');
+        if (colon > 0 && address.indexOf(':') == colon) {
+            this.port = Integer.parseInt(address.substring(colon + 1));
+            address = address.substring(0, colon);
+        }
+
         try {
             System.out.println("Connecting to Server [" + address + ":" + this.port + "]...");
 
@@ -29,25 +79,40 @@ public class Client {
             this.socket.connect(new InetSocketAddress(address, this.port), timeout);
 
             System.out.println("Connected to Server");
+            this.reached = true;
 
             try {
                 // readers & writer for client
                 this.userInput = userInput;
-                this.output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+                this.output = new BufferedOutputStream(socket.getOutputStream());
 
                 // launch the ClientReceiverThread to handle msgs from the server
-                this.receiver = new ClientReceiveThread(this);
+                this.state = State.AUTHENTICATING;
+                this.receiver = new ClientReceiveThread(this, lost == null ? null : lost.receiver);
+
+                // servers that do not support the binary protocol, compression or resuming ignore the offers
+                if (this.offerBinary) {
+                    this.send(BinaryProtocol.OFFER);
+                    this.send(BinaryProtocol.RESUME_OFFER);
+                }
+                if (this.offerDeflate) {
+                    this.send(BinaryProtocol.DEFLATE_OFFER);
+                }
+
+                // pick up the lost session where it left off, or fall back to logging in again
+                if (lost != null && lost.token != null) {
+                    this.resume(lost);
+                }
 
                 // username
                 String temp = "";
-                while (this.name.equals("")) {
+                while (this.state == State.AUTHENTICATING) {
                     System.out.print("\nPlease Enter a Username: ");
 
                     temp = this.userInput.readLine();
 
-                    if (temp.equals("/disconnect")) {
-                        this.output.write(temp + "\n");
-                        this.output.flush();
+                    if (temp == null || temp.equals("/disconnect")) {
+                        this.send("/disconnect");
 
                         this.disconnect(1);
                         return;
@@ -59,13 +124,22 @@ public class Client {
 
                 // main msg loop
                 String userMsg = "";
-                while (true) {
+                while (this.state == State.CONNECTED) {
                     try {
                         userMsg = this.userInput.readLine();
 
+                        // the connection was lost while waiting on the user
+                        if (this.state != State.CONNECTED) {
+                            return;
+                        }
+
+                        // end of the user's input
+                        if (userMsg == null) {
+                            userMsg = "/disconnect";
+                        }
+
                        if (!userMsg.equals("")){
-                            this.output.write(userMsg + "\n");
-                            this.output.flush();
+                            this.send(userMsg);
 
                             // disconnect
                            if (userMsg.startsWith("/disconnect")) {
@@ -88,45 +162,109 @@ public class Client {
         }
         catch (SocketTimeoutException e) {
             System.out.println("ERROR: Timed Out Connecting to Server\nDisconnected");
-            this.disconnectMode = -1;
+            this.finish(-1);
         }
         catch (Exception e) {
             System.out.println("ERROR: Failed to Connect to Server\nDisconnected");
-            this.disconnectMode = -1;
+            this.finish(-1);
         }
     }
 
-    // setName sends the username request to the server then waits for acceptance. Once
-    // acceptance has been sent by server, client sends back confirmation to let client
+    // setName sends the username request to the server then waits for acceptance, for at most the
+    // timeout. Once acceptance has been sent by server, client sends back confirmation to let client
     // into the chat room.
     // input - requested name
     //
     // returns null
     private void setName(String input) {
             try {
-                String lastlastMsg = this.receiver.getLastMsg();
+                // listen for the reply before sending, so a fast reply cannot be missed
+                CompletableFuture<String> reply = this.receiver.expectReply();
 
                 // send username to server
-                this.output.write("/username " + input + "\n");
-                this.output.flush();
+                this.send("/username " + input);
 
                 // wait for response from server
-                while(lastlastMsg.equals(this.receiver.getLastMsg())) {}
+                String response = reply.get(this.timeout, TimeUnit.MILLISECONDS);
 
-                // ensure response is acceptance
-                if (this.receiver.getLastMsg().equals("/username accepted")) {
+                // ensure response is acceptance, followed by whichever offers the server accepted
+                if (response.startsWith("/username accepted")) {
                     this.name = input;
+                    String accepted = response.substring("/username accepted".length());
 
-                    // send confirmation back to server
-                    this.output.write("/username confirmed\n");
-                    this.output.flush();
+                    // send confirmation back to server - switch protocols after the confirmation
+                    this.send("/username confirmed" + accepted);
+                    this.binary = accepted.contains(" binary");
+                    this.state = State.CONNECTED;
                 }
-
-                this.receiver.setLastMsg("");
+            }
+            catch (TimeoutException e) {
+                System.out.println("ERROR: Timed Out Waiting for Server\n");
+                this.disconnect(-1);
             }
             catch (Exception e) {
                 System.out.println("ERROR: Failed to Send Msg\n");
+                this.disconnect(-1);
+            }
+    }
+
+    // resume asks the server for the session of a client that lost its connection, and for every frame after
+    // the last one the client saw. The server is not told anything else, so nobody sees the client leave & join
+    // lost - client whose connection was lost
+    //
+    // returns null
+    private void resume(Client lost) {
+        try {
+            long lastSeq = lost.receiver.getReceived();
+            CompletableFuture<String> reply = this.receiver.expectReply();
+
+            this.send("/resume " + lost.token + " " + lastSeq);
+            String response = reply.get(this.timeout, TimeUnit.MILLISECONDS);
+
+            // /resume accepted [seq the frames sent again start after], followed by the accepted offers
+            if (response.startsWith("/resume accepted ")) {
+                String[] parts = response.substring("/resume accepted ".length()).split(" ", 2);
+                long from = Long.parseLong(parts[0]);
+                String accepted = parts.length > 1 ? " " + parts[1] : "";
+
+                this.name = lost.name;
+                this.token = lost.token;
+
+                this.send("/resume confirmed" + accepted);
+                this.binary = accepted.contains(" binary");
+                this.state = State.CONNECTED;
+
+                System.out.println("Resumed Session as " + this.name);
+                if (from > lastSeq) {
+                    System.out.println("WARNING: " + (from - lastSeq) + " msgs were lost while disconnected");
+                }
             }
+            else {
+                System.out.println(response);
+            }
+        }
+        catch (TimeoutException e) {
+            System.out.println("ERROR: Timed Out Waiting for Server\n");
+            this.disconnect(-1);
+        }
+        catch (Exception e) {
+            System.out.println("ERROR: Failed to Resume Session\n");
+            this.disconnect(-1);
+        }
+    }
+
+    // send sends a line to the server, as a TEXT frame once the binary protocol is in use
+    // line - line to be sent, without the trailing newline
+    //
+    // returns null
+    private void send(String line) throws IOException {
+        if (this.binary) {
+            BinaryProtocol.writeText(this.output, line);
+        }
+        else {
+            this.output.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        this.output.flush();
     }
 
     // disconnect closes the connection and removes the client from server client lists
@@ -134,14 +272,19 @@ public class Client {
     //             option to reconnect
     //
     // returns null
-    public void disconnect(int connected) {
+    public synchronized void disconnect(int connected) {
+        if (this.closed.isDone()) {
+            return;
+        }
+
         try {
             System.out.println("Disconnecting from Server...");
+            this.state = State.DISCONNECTED;
+
             this.output.close();
             this.socket.close();
 
-            this.disconnectMode = connected;
-            if (this.disconnectMode == 1) {
+            if (connected == 1) {
                 this.userInput.close();
             }
 
@@ -151,21 +294,66 @@ public class Client {
             System.out.println("ERROR: Failed to Close Connection\n");
             e.printStackTrace();
         }
+
+        this.finish(connected);
+    }
+
+    // connectionLost disconnects the client after the server closed the connection
+    //
+    // returns null
+    void connectionLost() {
+        if (this.state == State.CONNECTED) {
+            System.out.println("Connection to Server Lost - press enter to reconnect");
+        }
+        this.disconnect(-1);
+    }
+
+    // finish moves the client to DISCONNECTED and wakes everything waiting on it
+    // connected - type of disconnection that occurred
+    //
+    // returns null
+    private void finish(int connected) {
+        this.state = State.DISCONNECTED;
+        this.closed.complete(connected);
     }
 
-    // disconnectionMode getter
+    // disconnectionMode getter - 0 while the client is still connecting or connected
     public int getDisconnectionMode() {
-        return this.disconnectMode;
+        return this.closed.getNow(0);
+    }
+
+    // awaitDisconnect waits until the client has disconnected
+    //
+    // returns the type of disconnection that occurred
+    public int awaitDisconnect() {
+        return this.closed.join();
+    }
+
+    // state getter
+    public State getState() {
+        return this.state;
+    }
+
+    // token setter - called by the ClientReceiveThread once the server has sent the session's token
+    void setToken(String token) {
+        this.token = token;
     }
 
     // socket getter
     public Socket getSocket() { return this.socket; }
 
+    // address getter
+    public String getAddress() {
+        return this.address;
+    }
+
     // tryConnection gives user input for server ip address, then tries to connect to server
     // userInput - single cmd line input that is shared with the client
+    // offerBinary - if the client should offer the server the binary protocol
+    // offerDeflate - if the client should offer the server to compress everything it sends
     //
     // returns the successful Client connection
-    public static Client tryConnection(BufferedReader userInput) {
+    public static Client tryConnection(BufferedReader userInput, boolean offerBinary, boolean offerDeflate) {
 
         System.out.print("\nPlease Enter Server Address: ");
         String address = "";
@@ -176,7 +364,47 @@ public class Client {
             e.printStackTrace();
         }
 
-        return new Client(address, userInput);
+        // end of the user's input - nothing left to connect with
+        if (address == null) {
+            System.exit(0);
+        }
+
+        return new Client(address, userInput, offerBinary, offerDeflate);
+    }
+
+    // reconnect connects to the last server again, waiting longer after every failed attempt, and resumes the
+    // session if the server still has it. Once the retries run out, the user is asked for a server address instead
+    // client - client that was disconnected, its offers are made again
+    // userInput - single cmd line input that is shared with the client
+    //
+    // returns the new Client connection
+    public static Client reconnect(Client client, BufferedReader userInput) {
+        boolean offerBinary = client.offerBinary;
+        boolean offerDeflate = client.offerDeflate;
+        Client lost = client;
+
+        long backoff = INITIAL_BACKOFF;
+
+        for (int attempt = 1; attempt <= MAX_RETRIES; attempt++) {
+            System.out.println("Reconnecting in " + (backoff / 1000) + "s (attempt " + attempt + " of "
+                    + MAX_RETRIES + ")...");
+            try {
+                Thread.sleep(backoff);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            client = new Client(lost.getAddress(), userInput, offerBinary, offerDeflate, lost);
+            if (client.getDisconnectionMode() != -1 || client.reached) {
+                return client;
+            }
+
+            backoff = Math.min(MAX_BACKOFF, backoff * 2);
+        }
+
+        return tryConnection(userInput, offerBinary, offerDeflate);
     }
 
     // --- MAIN ---
@@ -191,14 +419,18 @@ public class Client {
             e.printStackTrace();
         }
 
+        // usage: Client [text] [deflate] - text sticks to the newline-delimited text protocol, deflate asks the
+        // server to compress everything it sends
+        List<String> options = Arrays.asList(args);
+        boolean offerBinary = !options.contains("text");
+        boolean offerDeflate = options.contains("deflate");
+
         BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in));
-        Client client = tryConnection(userInput);
+        Client client = tryConnection(userInput, offerBinary, offerDeflate);
 
         // while connection has not completed cleanly, attempt to reconnect
-        while (client.getDisconnectionMode() != 1) {
-            if (client.getDisconnectionMode() == -1) {
-                client = tryConnection(userInput);
-            }
+        while (client.awaitDisconnect() != 1) {
+            client = reconnect(client, userInput);
         }
     }
 }
@@ -3,6 +3,12 @@ package main.client;
 
 import java.net.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 // ClientReceiveThread handles the outputs from the server and displays them asynchronously
 // for the client. Every client has a ClientReceiveThread.
@@ -10,14 +16,32 @@ public class ClientReceiveThread implements Runnable {
 
     // --- FIELDS ---
     private Client client;
-    private String lastMsg = "";
-    private BufferedReader reader;
+
+    // reply the client is waiting on during the username handshake
+    private final AtomicReference<CompletableFuture<String>> reply = new AtomicReference<>();
+
+    private DataInputStream reader;
+    private BufferedInputStream input;
+
+    // binary protocol - switched on as soon as the server accepts the offer
+    private boolean binary = false;
+    private HashMap<Integer, String> userNames = new HashMap<>();
+
+    // number of frames received since logging in - the sequence number of the last msg, to resume the session
+    private volatile long received = 0;
+    private ByteArrayOutputStream line = new ByteArrayOutputStream();
 
     // --- CONSTRUCTOR ---
-    ClientReceiveThread(Client client) {
+    // lost - receiver of a connection that was lost, its user ids are kept for a resumed session, or null
+    ClientReceiveThread(Client client, ClientReceiveThread lost) {
         this.client = client;
+        if (lost != null) {
+            this.userNames.putAll(lost.userNames);
+        }
+
         try {
-            this.reader = new BufferedReader(new InputStreamReader(client.getSocket().getInputStream()));
+            this.input = new BufferedInputStream(client.getSocket().getInputStream());
+            this.reader = new DataInputStream(this.input);
         }
         catch(Exception e) {
             System.out.println("ERROR: Could not Start ClientReceiveThread");
@@ -33,22 +57,47 @@ public class ClientReceiveThread implements Runnable {
     public void run() {
         String serverMsg = "";
 
-        while (this.client.getDisconnectionMode() == 0) {
+        while (this.client.getState() != Client.State.DISCONNECTED) {
             try {
-                serverMsg = this.reader.readLine();
+                serverMsg = this.binary ? this.readFrame() : this.readLine();
 
                 // print msg if not empty
-                if (!serverMsg.equals("")) {
+                if (serverMsg != null && !serverMsg.equals("")) {
                     if (serverMsg.charAt(0) != '/') {
                         System.out.println(serverMsg);
                     }
 
-                    // set lastMsg for client msg compares
-                    this.lastMsg = serverMsg;
+                    // the numbering of the frames of a resumed session picks up where the server starts sending
+                    if (serverMsg.startsWith("/resume accepted ")) {
+                        this.received = Long.parseLong(serverMsg.split(" ")[2]);
+                    }
+                    else if (serverMsg.startsWith("/session ")) {
+                        this.client.setToken(serverMsg.substring("/session ".length()).trim());
+                    }
+
+                    // everything after the acceptance of the offers is sent as frames and compressed
+                    if (serverMsg.startsWith("/username accepted") || serverMsg.startsWith("/resume accepted ")) {
+                        this.binary = serverMsg.contains(" binary");
+                        if (serverMsg.contains(" deflate")) {
+                            this.reader = new DataInputStream(new BufferedInputStream(
+                                    new InflaterInputStream(this.input, new Inflater(true))));
+                        }
+                    }
+
+                    // hand the msg to the client if it is waiting on a reply
+                    CompletableFuture<String> reply = this.reply.getAndSet(null);
+                    if (reply != null) {
+                        reply.complete(serverMsg);
+                    }
                     serverMsg = "";
                 }
             }
-            catch (SocketException e) {
+            catch (SocketException | EOFException e) {
+                break;
+            }
+            catch (ProtocolException e) {
+                // the rest of the stream can not be framed, so the connection is dropped
+                System.out.println("ERROR: Received a Bad Frame from Server\n");
                 break;
             }
             catch (Exception e) {
@@ -57,13 +106,120 @@ public class ClientReceiveThread implements Runnable {
             }
         }
 
+        // nothing more is coming - fail a pending reply instead of leaving the client waiting on it
+        CompletableFuture<String> reply = this.reply.getAndSet(null);
+        if (reply != null) {
+            reply.completeExceptionally(new EOFException("disconnected from server"));
+        }
+        this.client.connectionLost();
+    }
+
+    // received getter - number of frames received, the sequence number of the last msg
+    long getReceived() {
+        return this.received;
+    }
+
+    // expectReply registers for the next msg from the server. Called before sending a request, so a reply
+    // that arrives right away is not missed
+    //
+    // returns the future completed with the next msg
+    CompletableFuture<String> expectReply() {
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        this.reply.set(reply);
+
+        return reply;
+    }
+
+    // readLine reads a single newline-delimited line of UTF-8 text from the server
+    //
+    // returns the line without the trailing newline
+    private String readLine() throws IOException {
+        this.line.reset();
+
+        int b;
+        while ((b = this.reader.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            this.line.write(b);
+        }
+
+        return this.line.toString(StandardCharsets.UTF_8);
     }
 
-    // lastMsg getter
-    public String getLastMsg() {
-        return lastMsg;
+    // readFrame reads a single binary frame from the server and renders it the same way the text protocol would
+    //
+    // returns the rendered msg, or null for frames that are not displayed
+    private String readFrame() throws IOException {
+        int type = this.reader.readUnsignedByte();
+        int length = BinaryProtocol.readVarInt(this.reader);
+        if (length > BinaryProtocol.MAX_PAYLOAD) {
+            throw new ProtocolException("frame too long");
+        }
+
+        byte[] payload = new byte[length];
+        this.reader.readFully(payload);
+        this.received++;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        if (type == BinaryProtocol.CHAT) {
+            String name = this.userNames.getOrDefault(BinaryProtocol.readVarInt(in), "?");
+            long time = in.readLong();
+            int flags = in.readUnsignedByte();
+            String msg = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+
+            return "[" + new Date(time) + " | " + name + "] "
+                    + ((flags & BinaryProtocol.FLAG_WHISPER) != 0 ? "(whispering...) " : "") + msg;
+        }
+        else if (type == BinaryProtocol.USERS) {
+            // the client keeps no roster of its own, so the presence version is not needed
+            BinaryProtocol.readVarLong(in);
+
+            while (in.available() > 0) {
+                int id = BinaryProtocol.readVarInt(in);
+                this.userNames.put(id, this.readName(in));
+            }
+            return null;
+        }
+        else if (type == BinaryProtocol.JOINED || type == BinaryProtocol.LEFT) {
+            BinaryProtocol.readVarLong(in);
+            long time = in.readLong();
+            int id = BinaryProtocol.readVarInt(in);
+
+            // names are kept after a user leaves, for msgs the user sent just before
+            if (type == BinaryProtocol.JOINED) {
+                int flags = in.readUnsignedByte();
+                this.userNames.put(id, this.readName(in));
+
+                if ((flags & BinaryProtocol.FLAG_ANNOUNCE) == 0) {
+                    return null;
+                }
+            }
+
+            return "[" + new Date(time) + "] " + this.userNames.getOrDefault(id, "?")
+                    + (type == BinaryProtocol.JOINED ? " has joined the Chat Server"
+                    : " has disconnected from the Chat Server");
+        }
+        else if (type == BinaryProtocol.TEXT) {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+        return null;
     }
 
-    // lastMsg setter
-    public void setLastMsg(String newMsg) { this.lastMsg = newMsg; }
-}
+    // readName reads a length-prefixed UTF-8 name out of a frame's payload
+    // in - stream over the payload
+    //
+    // returns the name
+    private String readName(DataInputStream in) throws IOException {
+        int length = BinaryProtocol.readVarInt(in);
+        if (length > in.available()) {
+            throw new ProtocolException("name longer than its frame");
+        }
+
+        byte[] name = new byte[length];
+        in.readFully(name);
+
+        return new String(name, StandardCharsets.UTF_8);
+    }
+}
\ No newline at end of file
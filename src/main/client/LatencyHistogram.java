@@ -0,0 +1,101 @@
+// Nicholas Delli Carpini
+package main.client;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// LatencyHistogram counts latencies in microseconds without taking a lock. Latencies below 16us get a bucket
+// each, above that every power of two is split into 8 buckets, so a percentile read from the histogram is
+// within 12.5% of the real value.
+public class LatencyHistogram {
+
+    // --- FIELDS ---
+    private static final int SUB_BUCKETS = 8;
+    private static final int LINEAR = 16;
+    private static final int BUCKETS = LINEAR + (63 - 4) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    // --- CONSTRUCTOR ---
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts[i] = new LongAdder();
+        }
+    }
+
+    // record counts a single latency
+    // micros - latency in microseconds
+    //
+    // returns null
+    public void record(long micros) {
+        micros = Math.max(0, micros);
+
+        this.counts[LatencyHistogram.bucket(micros)].increment();
+        this.total.increment();
+        this.max.accumulate(micros);
+    }
+
+    // percentile estimates a percentile of the recorded latencies
+    // p - percentile between 0 and 1
+    //
+    // returns the latency in microseconds, or 0 if nothing was recorded
+    public long percentile(double p) {
+        long total = this.total.sum();
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts[i].sum();
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.upperBound(i), this.max.get());
+            }
+        }
+
+        return this.max.get();
+    }
+
+    // count getter - number of recorded latencies
+    public long getCount() {
+        return this.total.sum();
+    }
+
+    // max getter - highest recorded latency in microseconds
+    public long getMax() {
+        return this.max.get();
+    }
+
+    // bucket finds the bucket of a latency
+    // micros - latency in microseconds
+    //
+    // returns the index of the bucket
+    private static int bucket(long micros) {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    // upperBound gets the highest latency counted by a bucket
+    // bucket - index of the bucket
+    //
+    // returns the latency in microseconds
+    private static long upperBound(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR) % SUB_BUCKETS;
+
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+    }
+}
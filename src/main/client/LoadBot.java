@@ -0,0 +1,333 @@
+// Nicholas Delli Carpini
+package main.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+// LoadBot is a single simulated user of the LoadClient. It goes through the username handshake like a Client,
+// then sends LOAD msgs carrying the time they were sent, and measures how long every LOAD msg takes to come
+// back from the server. A bot holds no thread of its own - the LoadClient's sender thread writes for it and
+// one of its reader threads reads for it.
+public class LoadBot {
+
+    // --- FIELDS ---
+    public static final String LOAD_PREFIX = "LOAD ";
+    private static final byte[] LOAD_BYTES = LOAD_PREFIX.getBytes(StandardCharsets.UTF_8);
+
+    private final String name;
+    private final boolean offerBinary;
+    private boolean binary = false;
+
+    private SocketChannel channel;
+
+    // only used by the reader thread
+    private ByteBuffer readBuffer = ByteBuffer.allocate(8 * 1024);
+
+    // only used by the sender thread - bytes the socket would not take yet
+    private ByteBuffer pending;
+
+    // --- CONSTRUCTOR ---
+    // name - username of the bot
+    // offerBinary - if the bot should offer the server the binary protocol
+    public LoadBot(String name, boolean offerBinary) {
+        this.name = name;
+        this.offerBinary = offerBinary;
+    }
+
+    // connect opens the bot's connection and goes through the username handshake, blocking until the server
+    // has accepted the bot
+    // address - server address
+    //
+    // returns null
+    public void connect(InetSocketAddress address) throws IOException {
+        this.channel = SocketChannel.open(address);
+        this.channel.socket().setTcpNoDelay(true);
+
+        if (this.offerBinary) {
+            this.writeFully(this.encode(BinaryProtocol.OFFER));
+        }
+        this.writeFully(this.encode("/username " + this.name));
+
+        // nothing else is sent to the bot until it has confirmed its username
+        String response = this.readHandshakeLine();
+        if (response.equals("/username accepted binary")) {
+            this.writeFully(this.encode("/username confirmed binary"));
+            this.binary = true;
+        }
+        else if (response.equals("/username accepted")) {
+            this.writeFully(this.encode("/username confirmed"));
+        }
+        else {
+            throw new IOException(this.name + " was not accepted: " + response);
+        }
+    }
+
+    // startWhispering switches the bot to whispering all of its msgs to another bot
+    // partner - name of the bot to whisper to
+    //
+    // returns null
+    public void startWhispering(String partner) throws IOException {
+        this.writeFully(this.encode("/whisper " + partner));
+    }
+
+    // detach switches the connection to non-blocking, once the handshake & setup are done
+    //
+    // returns null
+    public void detach() throws IOException {
+        this.channel.configureBlocking(false);
+    }
+
+    // register registers the connection with a reader thread's selector
+    // selector - selector of the reader thread
+    //
+    // returns null
+    public void register(Selector selector) throws IOException {
+        this.channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    // sendLoad sends a LOAD msg stamped with the current time, unless the socket is still backed up from an
+    // earlier msg. Only called by the sender thread
+    //
+    // returns boolean if the msg was sent
+    public boolean sendLoad() throws IOException {
+        if (this.pending != null) {
+            this.channel.write(this.pending);
+            if (this.pending.hasRemaining()) {
+                return false;
+            }
+            this.pending = null;
+        }
+
+        ByteBuffer msg = this.encode(LOAD_PREFIX + System.nanoTime());
+        this.channel.write(msg);
+        if (msg.hasRemaining()) {
+            this.pending = msg;
+        }
+
+        return true;
+    }
+
+    // read reads whatever the server has sent and records the latency of every LOAD msg in it. Only called by
+    // the bot's reader thread
+    // latencies - where the latency of every LOAD msg is recorded
+    //
+    // returns false if the server closed the connection
+    public boolean read(LatencyHistogram latencies) throws IOException {
+        int read = this.channel.read(this.readBuffer);
+        if (read < 0) {
+            return false;
+        }
+
+        this.readBuffer.flip();
+        if (this.binary) {
+            this.readFrames(latencies);
+        }
+        else {
+            this.readLines(latencies);
+        }
+
+        // only a partial msg filling the whole buffer is too big for it - grow it, so the rest of the msg fits.
+        // Anything else is moved to the front, making room for the rest
+        if (this.readBuffer.position() > 0 || this.readBuffer.limit() < this.readBuffer.capacity()) {
+            this.readBuffer.compact();
+        }
+        else {
+            ByteBuffer grown = ByteBuffer.allocate(this.readBuffer.capacity() * 2);
+            grown.put(this.readBuffer);
+            this.readBuffer = grown;
+        }
+
+        return true;
+    }
+
+    // readFrames handles every complete binary frame in the read buffer
+    // latencies - where the latency of every LOAD msg is recorded
+    //
+    // returns null
+    private void readFrames(LatencyHistogram latencies) {
+        ByteBuffer buffer = this.readBuffer;
+
+        while (buffer.remaining() >= 2) {
+            int start = buffer.position();
+            int type = buffer.get();
+
+            int length = 0;
+            boolean complete = false;
+            for (int shift = 0; buffer.hasRemaining(); shift += 7) {
+                int b = buffer.get() & 0xFF;
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    complete = true;
+                    break;
+                }
+            }
+
+            if (!complete || buffer.remaining() < length) {
+                buffer.position(start);
+                return;
+            }
+
+            int end = buffer.position() + length;
+            if (type == BinaryProtocol.CHAT) {
+                // skip the sender id, the server's timestamp & the flags
+                while ((buffer.get() & 0x80) != 0) {
+                    // varint
+                }
+                this.readLoad(buffer.array(), buffer.position() + 9, end, latencies);
+            }
+
+            buffer.position(end);
+        }
+    }
+
+    // readLines handles every complete line in the read buffer
+    // latencies - where the latency of every LOAD msg is recorded
+    //
+    // returns null
+    private void readLines(LatencyHistogram latencies) {
+        ByteBuffer buffer = this.readBuffer;
+        byte[] bytes = buffer.array();
+
+        int start = buffer.position();
+        for (int i = start; i < buffer.limit(); i++) {
+            if (bytes[i] == '\n') {
+                // the LOAD msg is at the end of the rendered line
+                int load = LoadBot.lastIndexOf(bytes, start, i, LOAD_BYTES);
+                if (load >= 0) {
+                    this.readLoad(bytes, load, i, latencies);
+                }
+                start = i + 1;
+            }
+        }
+
+        buffer.position(start);
+    }
+
+    // readLoad records the latency of a LOAD msg
+    // bytes - bytes holding the msg
+    // start - index of the first byte of the msg body
+    // end - index after the last byte of the msg body
+    // latencies - where the latency is recorded
+    //
+    // returns null
+    private void readLoad(byte[] bytes, int start, int end, LatencyHistogram latencies) {
+        if (end - start <= LOAD_BYTES.length
+                || LoadBot.lastIndexOf(bytes, start, start + LOAD_BYTES.length, LOAD_BYTES) != start) {
+            return;
+        }
+
+        long sent = 0;
+        for (int i = start + LOAD_BYTES.length; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                if (bytes[i] == '\r') {
+                    break;
+                }
+                return;
+            }
+            sent = sent * 10 + digit;
+        }
+
+        latencies.record((System.nanoTime() - sent) / 1000);
+    }
+
+    // lastIndexOf finds the last place a pattern starts within a range of bytes
+    // bytes - bytes to search
+    // start - index of the first byte of the range
+    // end - index after the last byte of the range
+    // pattern - bytes to find
+    //
+    // returns the index the pattern starts at, or -1 if it is not in the range
+    private static int lastIndexOf(byte[] bytes, int start, int end, byte[] pattern) {
+        for (int i = end - pattern.length; i >= start; i--) {
+            int j = 0;
+            while (j < pattern.length && bytes[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    // readHandshakeLine reads the server's answer to the username request, one byte at a time so nothing
+    // after the line is taken off of the socket
+    //
+    // returns the line without the trailing newline
+    private String readHandshakeLine() throws IOException {
+        ByteBuffer single = ByteBuffer.allocate(1);
+        StringBuilder line = new StringBuilder();
+
+        while (true) {
+            single.clear();
+            if (this.channel.read(single) < 0) {
+                throw new IOException(this.name + " was disconnected during the handshake");
+            }
+
+            char c = (char) single.get(0);
+            if (c == '\n') {
+                return line.toString();
+            }
+            line.append(c);
+        }
+    }
+
+    // encode encodes a line the way the server expects it right now, as a TEXT frame or a text line
+    // line - line to be sent, without the trailing newline
+    //
+    // returns the encoded line, ready to be written
+    private ByteBuffer encode(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if (!this.binary) {
+            ByteBuffer encoded = ByteBuffer.allocate(bytes.length + 1);
+            encoded.put(bytes).put((byte) '\n').flip();
+            return encoded;
+        }
+
+        ByteBuffer encoded = ByteBuffer.allocate(bytes.length + 6);
+        encoded.put(BinaryProtocol.TEXT);
+        int length = bytes.length;
+        while ((length & ~0x7F) != 0) {
+            encoded.put((byte) ((length & 0x7F) | 0x80));
+            length >>>= 7;
+        }
+        encoded.put((byte) length);
+        encoded.put(bytes).flip();
+
+        return encoded;
+    }
+
+    // writeFully writes a buffer to the still blocking channel
+    // buffer - bytes to be written
+    //
+    // returns null
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+    }
+
+    // name getter
+    public String getName() {
+        return this.name;
+    }
+
+    // close closes the bot's connection
+    //
+    // returns null
+    public void close() {
+        try {
+            this.channel.close();
+        }
+        catch (IOException e) {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,285 @@
+// Nicholas Delli Carpini
+package main.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// LoadClient is an executable class that puts a server under load. It connects a number of headless LoadBots,
+// has them send LOAD msgs at a fixed rate - either broadcast to the room or whispered to another bot - and
+// reports the throughput and end-to-end latency of the msgs as they come back from the server. Every msg carries
+// the time it was sent, so the latency is measured from the send to the delivery, including the time spent
+// queued on the server. The bots share a single sender thread and a few reader threads, so thousands of them
+// fit into one JVM.
+public class LoadClient {
+
+    // --- FIELDS ---
+    private static final int PORT = 5000;
+
+    // default -Dchat.floodRate of the server, lines per second a single client may send
+    private static final double SERVER_FLOOD_RATE = 10;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final List<LoadBot> bots = new ArrayList<>();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    private final Reader[] readers;
+    private volatile boolean running = true;
+
+    // --- CONSTRUCTOR ---
+    // readerCount - number of threads reading for the bots
+    public LoadClient(int readerCount) throws IOException {
+        this.readers = new Reader[readerCount];
+        for (int i = 0; i < readerCount; i++) {
+            this.readers[i] = new Reader(i);
+        }
+    }
+
+    // --- RUN ---
+    // run connects the bots, sends msgs for the given time, then prints a summary and disconnects the bots
+    // address - server address
+    // botCount - number of bots
+    // rate - msgs each bot sends per second
+    // whisperFraction - fraction of the bots that whisper instead of broadcasting
+    // seconds - how long to send for
+    // offerBinary - if the bots should offer the server the binary protocol
+    //
+    // returns null
+    public void run(InetSocketAddress address, int botCount, double rate, double whisperFraction, int seconds,
+                    boolean offerBinary) throws IOException {
+
+        // bots of load clients run against different servers of a cluster need names of their own
+        String prefix = System.getProperty("load.prefix", "bot");
+
+        System.out.println("Connecting " + botCount + " bots to " + address + "...");
+        for (int i = 0; i < botCount; i++) {
+            LoadBot bot = new LoadBot(prefix + i, offerBinary);
+            bot.connect(address);
+            this.bots.add(bot);
+
+            if ((i + 1) % 500 == 0) {
+                System.out.println("Connected " + (i + 1) + " bots");
+            }
+        }
+
+        // whisperers pair up with the next bot, so every whisper is delivered to a bot as well as echoed back
+        int whisperers = (int) Math.round(botCount * whisperFraction);
+        for (int i = 0; i < whisperers; i++) {
+            this.bots.get(i).startWhispering(this.bots.get((i + 1) % botCount).getName());
+        }
+
+        for (int i = 0; i < botCount; i++) {
+            LoadBot bot = this.bots.get(i);
+            this.readers[i % this.readers.length].register(bot);
+        }
+
+        System.out.println("Connected " + botCount + " bots, " + whisperers + " whispering - sending " + rate
+                + " msgs/s each for " + seconds + "s\n");
+
+        this.send(rate, seconds);
+
+        // give the last msgs a moment to arrive
+        try {
+            Thread.sleep(1000);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.running = false;
+        for (Reader reader : this.readers) {
+            reader.selector.wakeup();
+        }
+        for (LoadBot bot : this.bots) {
+            bot.close();
+        }
+
+        System.out.println("\nSent " + this.sent.sum() + " msgs in " + seconds + "s, skipped " + this.skipped.sum()
+                + " while the socket was backed up");
+        System.out.println("Delivered " + this.latencies.getCount() + " msgs - latency p50 "
+                + this.latencies.percentile(0.5) + "us p90 " + this.latencies.percentile(0.9) + "us p99 "
+                + this.latencies.percentile(0.99) + "us p99.9 " + this.latencies.percentile(0.999) + "us max "
+                + this.latencies.getMax() + "us");
+    }
+
+    // send sends msgs from every bot at the given rate, on the calling thread, and prints the throughput and
+    // latency every second
+    // rate - msgs each bot sends per second
+    // seconds - how long to send for
+    //
+    // returns null
+    private void send(double rate, int seconds) {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+
+        // msgs owed across all bots, spread round robin so no bot sends in a burst
+        double owed = 0;
+        double perNano = rate * this.bots.size() / 1e9;
+        long lastTick = start;
+        int next = 0;
+
+        long lastSent = 0;
+        long lastDelivered = 0;
+
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            // sleeps run long, so the msgs owed go by the time that actually passed
+            owed += perNano * (now - lastTick);
+            lastTick = now;
+            while (owed >= 1) {
+                owed--;
+
+                LoadBot bot = this.bots.get(next);
+                next = (next + 1) % this.bots.size();
+                try {
+                    if (bot.sendLoad()) {
+                        this.sent.increment();
+                    }
+                    else {
+                        this.skipped.increment();
+                    }
+                }
+                catch (IOException e) {
+                    this.skipped.increment();
+                }
+            }
+
+            if (now >= nextReport) {
+                long sent = this.sent.sum();
+                long delivered = this.latencies.getCount();
+                System.out.println("sent " + (sent - lastSent) + "/s, delivered " + (delivered - lastDelivered)
+                        + "/s, latency p50 " + this.latencies.percentile(0.5) + "us p99 "
+                        + this.latencies.percentile(0.99) + "us max " + this.latencies.getMax() + "us");
+
+                lastSent = sent;
+                lastDelivered = delivered;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+
+            long sleep = TICK_NANOS - (System.nanoTime() - now);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Reader reads for a share of the bots, on a Selector of its own
+    private final class Reader implements Runnable {
+        final Selector selector;
+        final ConcurrentLinkedQueue<LoadBot> newBots = new ConcurrentLinkedQueue<>();
+
+        Reader(int id) throws IOException {
+            this.selector = Selector.open();
+
+            Thread thread = new Thread(this, "load-reader-" + id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // register hands a connected bot to the reader
+        void register(LoadBot bot) throws IOException {
+            bot.detach();
+            this.newBots.offer(bot);
+            this.selector.wakeup();
+        }
+
+        public void run() {
+            while (LoadClient.this.running) {
+                try {
+                    this.selector.select();
+
+                    LoadBot bot;
+                    while ((bot = this.newBots.poll()) != null) {
+                        bot.register(this.selector);
+                    }
+
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        bot = (LoadBot) key.attachment();
+                        if (key.isValid() && !bot.read(LoadClient.this.latencies)) {
+                            System.out.println("WARNING: " + bot.getName() + " was disconnected by the server");
+                            key.cancel();
+                        }
+                    }
+                }
+                catch (ClosedChannelException e) {
+                    // the run is over and the bots are closing
+                }
+                catch (IOException e) {
+                    if (LoadClient.this.running) {
+                        System.out.println("ERROR: Failed to Read from Server");
+                        e.printStackTrace();
+                    }
+                }
+            }
+
+            try {
+                this.selector.close();
+            }
+            catch (IOException e) {
+                // nothing left to read
+            }
+        }
+    }
+
+    // --- MAIN ---
+    public static void main(String[] args) {
+        // usage: LoadClient [address[:port]] [bots] [msgs/s per bot] [whisper fraction] [seconds] [text]
+        // the server's flood control holds every client to -Dchat.floodRate lines/s (10, with a burst of
+        // -Dchat.floodBurst=20) and the whole server to -Dchat.floodGlobalRate lines/s (20000). Bots sending
+        // faster than that are warned, muted and finally disconnected - for such a run start the server with
+        // -Dchat.floodRate=0 -Dchat.floodGlobalRate=0, which turns flood control off
+        String address = args.length > 0 ? args[0] : "127.0.0.1";
+        int botCount = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        double rate = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+        double whisperFraction = args.length > 3 ? Double.parseDouble(args[3]) : 0.1;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 30;
+        boolean offerBinary = !(args.length > 5 && args[5].equals("text"));
+
+        int readerCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+        if (rate > SERVER_FLOOD_RATE) {
+            System.out.println("NOTE: " + rate + " msgs/s per bot is over the server's default flood limit of "
+                    + SERVER_FLOOD_RATE + "/s - start the server with -Dchat.floodRate=0 -Dchat.floodGlobalRate=0");
+        }
+
+        // servers of a cluster run on other ports - host:port
+        int port = PORT;
+        int colon = address.lastIndexOf(':');
+        if (colon > 0 && address.indexOf(':') == colon) {
+            port = Integer.parseInt(address.substring(colon + 1));
+            address = address.substring(0, colon);
+        }
+
+        try {
+            LoadClient client = new LoadClient(readerCount);
+            client.run(new InetSocketAddress(address, port), botCount, rate, whisperFraction, seconds, offerBinary);
+        }
+        catch (Exception e) {
+            System.out.println("ERROR: Load Run Failed");
+            e.printStackTrace();
+        }
+    }
+}
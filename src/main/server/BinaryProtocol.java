@@ -0,0 +1,184 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+// BinaryProtocol holds the constants and encoding helpers of the compact binary wire protocol. A client offers
+// it by sending /protocol binary before its /username, the server answers with /username accepted binary, and
+// once the client has sent /username confirmed binary both sides switch from newline-delimited text to frames:
+//
+//     [type - 1 byte][payload length - varint][payload]
+//
+// TEXT   - UTF-8 text, a command or chat line from the client, or a server notice
+// CHAT   - [sender id - varint][time in epoch millis - 8 bytes][flags - 1 byte][UTF-8 msg]
+// USERS  - [presence version - varint] followed by one [user id - varint][name length - varint][UTF-8 name] for
+//          every logged in user, a snapshot sent to the client when it logs in
+// JOINED - [presence version - varint][time in epoch millis - 8 bytes][user id - varint][flags - 1 byte]
+//          [name length - varint][UTF-8 name], a user logged in - shown unless the flags lack FLAG_ANNOUNCE
+// LEFT   - [presence version - varint][time in epoch millis - 8 bytes][user id - varint], a user logged out
+public final class BinaryProtocol {
+
+    // --- FIELDS ---
+    public static final String OFFER = "/protocol binary";
+
+    public static final byte TEXT = 1;
+    public static final byte CHAT = 2;
+    public static final byte USERS = 3;
+    public static final byte JOINED = 4;
+    public static final byte LEFT = 5;
+
+    public static final byte FLAG_WHISPER = 1;
+    public static final byte FLAG_ANNOUNCE = 1;
+
+    public static final int MAX_PAYLOAD = 64 * 1024;
+
+    // a non-negative int never needs more than 5 varint bytes, and the last of them holds only its top 3 bits
+    public static final int MAX_VARINT_BYTES = 5;
+    private static final int LAST_VARINT_BYTE = 0x07;
+
+    // --- CONSTRUCTOR ---
+    private BinaryProtocol() {}
+
+    // frame wraps a payload with the frame header
+    // type - frame type
+    // payload - encoded payload
+    // length - number of bytes of the payload to use
+    //
+    // returns the encoded frame
+    public static byte[] frame(byte type, byte[] payload, int length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+        out.write(type);
+        BinaryProtocol.writeVarInt(out, length);
+        out.write(payload, 0, length);
+
+        return out.toByteArray();
+    }
+
+    // writeVarInt writes a non-negative int as an unsigned LEB128 varint
+    // out - stream to write to
+    // value - value to be written
+    //
+    // returns null
+    public static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // writeVarLong writes a non-negative long as an unsigned LEB128 varint
+    // out - stream to write to
+    // value - value to be written
+    //
+    // returns null
+    public static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    // writeString writes a string as a varint length followed by its UTF-8 bytes
+    // out - stream to write to
+    // value - string to be written
+    //
+    // returns null
+    public static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        BinaryProtocol.writeVarInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    // readLength reads the payload length of a frame from a stream
+    // in - stream to read from, positioned right after the frame type
+    //
+    // returns the payload length
+    public static int readLength(InputStream in) throws IOException {
+        int length = 0;
+
+        for (int i = 0; ; i++) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            BinaryProtocol.checkVarIntByte(i, b);
+
+            length |= (b & 0x7F) << (i * 7);
+            if ((b & 0x80) == 0) {
+                return BinaryProtocol.checkLength(length);
+            }
+        }
+    }
+
+    // frameLength checks if a complete frame is sitting in a byte array
+    // bytes - received bytes
+    // offset - index of the start of the frame
+    // end - index after the last received byte
+    //
+    // returns the total length of the frame, or -1 if it has not been fully received yet
+    public static int frameLength(byte[] bytes, int offset, int end) throws IOException {
+        int index = offset + 1;
+        int length = 0;
+
+        for (int i = 0; ; i++) {
+            if (index >= end) {
+                return -1;
+            }
+            int b = bytes[index++] & 0xFF;
+            BinaryProtocol.checkVarIntByte(i, b);
+
+            length |= (b & 0x7F) << (i * 7);
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+
+        int total = (index - offset) + BinaryProtocol.checkLength(length);
+        return (offset + total <= end) ? total : -1;
+    }
+
+    // checkVarIntByte rejects a varint that runs past 5 bytes, or that would not fit in a non-negative int - a
+    // client that sends one can not be trusted with the rest of the stream
+    // index - index of the byte in the varint
+    // b - the byte
+    //
+    // returns null
+    private static void checkVarIntByte(int index, int b) throws ProtocolException {
+        if (index == MAX_VARINT_BYTES - 1 && b > LAST_VARINT_BYTE) {
+            throw new ProtocolException("bad frame length");
+        }
+    }
+
+    // checkLength rejects a payload length over MAX_PAYLOAD
+    // length - decoded payload length
+    //
+    // returns the length
+    private static int checkLength(int length) throws ProtocolException {
+        if (length > MAX_PAYLOAD) {
+            throw new ProtocolException("frame too long");
+        }
+
+        return length;
+    }
+
+    // payloadOffset gets the index of the payload of a complete frame
+    // bytes - received bytes
+    // offset - index of the start of the frame
+    //
+    // returns the index of the first payload byte
+    public static int payloadOffset(byte[] bytes, int offset) {
+        int index = offset + 1;
+        while ((bytes[index++] & 0x80) != 0) {
+            // skip the varint length
+        }
+
+        return index;
+    }
+}
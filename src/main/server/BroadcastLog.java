@@ -0,0 +1,87 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+// BroadcastLog is the bounded ring buffer of the most recent msgs broadcast to every client. A broadcast is
+// stored once, no matter how many clients there are - each client's MsgQueue keeps its own read cursor into
+// the log and advances it as its msgs are sent. Once the log wraps, the oldest msgs are overwritten.
+public class BroadcastLog {
+
+    // --- FIELDS ---
+    private final AtomicReferenceArray<Entry> ring;
+    private final int mask;
+
+    // sequence number the next published msg will get
+    private volatile long head = 0;
+    private final ReentrantLock publishLock = new ReentrantLock();
+
+    // --- CONSTRUCTOR ---
+    // capacity - number of msgs kept, rounded up to a power of two
+    public BroadcastLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    // publish appends a msg to the log
+    // frame - encoded msg to be broadcast
+    //
+    // returns the sequence number of the msg
+    public long publish(Frame frame) {
+        this.publishLock.lock();
+        try {
+            long seq = this.head;
+
+            this.ring.set((int) (seq & this.mask), new Entry(seq, frame));
+            this.head = seq + 1;
+
+            return seq;
+        }
+        finally {
+            this.publishLock.unlock();
+        }
+    }
+
+    // get reads a msg out of the log
+    // seq - sequence number of the msg
+    //
+    // returns the msg, or null if it has not been published yet or has already been overwritten
+    public Frame get(long seq) {
+        Entry entry = this.ring.get((int) (seq & this.mask));
+
+        return (entry != null && entry.seq == seq) ? entry.frame : null;
+    }
+
+    // head getter - sequence number the next published msg will get
+    public long getHead() {
+        return this.head;
+    }
+
+    // capacity gets the number of msgs the log keeps before overwriting the oldest
+    //
+    // returns the capacity
+    public int capacity() {
+        return this.ring.length();
+    }
+
+    // oldest gets the sequence number of the oldest msg still in the log
+    //
+    // returns the oldest sequence number
+    public long oldest() {
+        return Math.max(0, this.head - this.ring.length());
+    }
+
+    // Entry pairs a msg with its sequence number so a reader can tell if a slot has been overwritten
+    private static final class Entry {
+        final long seq;
+        final Frame frame;
+
+        Entry(long seq, Frame frame) {
+            this.seq = seq;
+            this.frame = frame;
+        }
+    }
+}
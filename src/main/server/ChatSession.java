@@ -0,0 +1,634 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// ChatSession holds the state of a single client's chat session and handles every line the client sends:
+// the username handshake, the chat commands, and regular msgs. It does no I/O of its own, so the same
+// session logic is shared by the blocking and the non-blocking server engines.
+public class ChatSession {
+
+    // --- FIELDS ---
+    private static final int DEFAULT_HISTORY = 20;
+
+    // every command a client can send once it has completed the handshake
+    private static final CommandRegistry COMMANDS = new CommandRegistry(ChatSession::invalidCommand);
+    static {
+        COMMANDS.register("/admin", "/admin [secret]", ChatSession::admin);
+        COMMANDS.registerControl("/disconnect", "/disconnect", ChatSession::disconnect);
+        COMMANDS.register("/help", "/help", ChatSession::help);
+        COMMANDS.register("/history", "/history [n] [minutes]", ChatSession::history);
+        COMMANDS.register("/join", "/join [room]", ChatSession::join);
+        COMMANDS.register("/leave", "/leave", ChatSession::leave);
+        COMMANDS.register("/rooms", "/rooms", ChatSession::rooms);
+        COMMANDS.register("/stats", "/stats", ChatSession::stats);
+        COMMANDS.register("/users", "/users", ChatSession::users);
+        COMMANDS.register("/whisper", "/whisper [name|off]", ChatSession::whisper);
+    }
+
+    private Server server;
+    private ClientConnection connection;
+
+    private ClientInfo client;
+    private ClientInfo pendingClient;
+
+    // binary protocol & compression negotiation - see BinaryProtocol and DeflateStream
+    private boolean binaryOffered = false;
+    private volatile boolean binary = false;
+    private boolean deflateOffered = false;
+    private volatile boolean deflate = false;
+
+    // session resumption - see ResumableSessions. resuming is set while a new connection is taking over a
+    // detached client, and ended once the client asked to leave rather than losing its connection
+    private boolean resumeOffered = false;
+    private boolean resuming = false;
+    private boolean ended = false;
+
+    // set once the session let go of its client, when it closed or a new connection took the session over
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    // how fast the client may send lines, created once the client has logged in. Like the rest of the session's
+    // state it is volatile, as a resuming connection copies it on its own thread
+    private volatile FloodControl.Limiter limiter;
+
+    // set once the client has given the admin secret, with the counters at its last /stats
+    private volatile boolean admin = false;
+    private volatile ServerMetrics.Baseline statsBaseline;
+
+    volatile boolean whisperMode = false;
+    volatile String whisperTo = "";
+
+    // --- CONSTRUCTOR ---
+    public ChatSession(Server server, ClientConnection connection) {
+        this.server = server;
+        this.connection = connection;
+    }
+
+    // handleLine handles a single line sent by the client, straight out of the connection's read buffer - a
+    // command is routed without being decoded, and a chat msg is decoded once on its way to the fan-out
+    // bytes - bytes holding the line, without the trailing newline
+    // offset - index of the first byte of the line
+    // length - number of bytes in the line
+    //
+    // returns false if the client asked to disconnect
+    public boolean handleLine(byte[] bytes, int offset, int length) throws Exception {
+        // the handshake is only a few lines, so it works on strings
+        if (this.client == null) {
+            String line = new String(bytes, offset, length, StandardCharsets.UTF_8);
+
+            // disconnect
+            if (line.startsWith("/disconnect")) {
+                return false;
+            }
+
+            this.handleUsername(line);
+            return true;
+        }
+
+        if (length == 0) {
+            return true;
+        }
+        this.server.getMetrics().recordIn();
+
+        // control commands always get through, so a muted client can still leave cleanly
+        boolean command = bytes[offset] == '/';
+        if (command && COMMANDS.isControl(bytes, offset, length)) {
+            return COMMANDS.dispatch(this, bytes, offset, length);
+        }
+
+        // lines over the flood limit are dropped before they reach a command or the fan-out
+        FloodControl.Verdict verdict = this.limiter.check(System.nanoTime());
+        if (verdict != FloodControl.Verdict.ALLOW) {
+            this.server.getMetrics().recordThrottled();
+            return this.throttle(verdict);
+        }
+
+        if (command) {
+            return COMMANDS.dispatch(this, bytes, offset, length);
+        }
+
+        this.handleChat(new String(bytes, offset, length, StandardCharsets.UTF_8));
+        return true;
+    }
+
+    // handleUsername handles the lines of the username handshake - an optional /protocol binary,
+    // /protocol deflate and /protocol resume, then /username [name] followed by
+    // /username confirmed [binary] [deflate] [resume] once the server has accepted the name. A client resuming
+    // its session sends /resume [token] [last seq] and /resume confirmed [binary] [deflate] [resume] instead
+    // line - line sent by the client
+    //
+    // returns null
+    private void handleUsername(String line) throws Exception {
+        // confirm successful handshake - the client confirms what the server accepted
+        if (this.pendingClient != null) {
+            String confirm = this.resuming ? "/resume confirmed" : "/username confirmed";
+
+            if (line.equals(confirm + this.acceptedProtocols())) {
+                this.binary = this.binaryOffered;
+                this.deflate = this.deflateOffered;
+
+                this.client = this.pendingClient;
+                this.pendingClient = null;
+
+                if (this.resuming) {
+                    this.resumeSession();
+                    return;
+                }
+
+                this.client.setShard(this.connection.getShard());
+                this.limiter = this.server.getFloodControl().newLimiter();
+
+                this.server.addUser(this.client);
+
+                // the token goes ahead of everything else, and every msg after it is numbered
+                if (this.isResumable()) {
+                    ResumableSessions sessions = this.server.getSessions();
+                    sessions.open(this.client);
+                    this.client.getQueue().enableReplay(sessions.getBufferSize());
+
+                    this.server.addWhisper(this.client.getName(), new Frame("/session " + this.client.getToken()));
+                }
+
+                // binary clients need the ids of everyone already on the server
+                if (this.binary) {
+                    this.server.addWhisper(this.client.getName(), this.server.getPresence().getSnapshot());
+                }
+
+                // whispers sent while the client was offline
+                this.server.deliverMail(this.client);
+            }
+            else {
+                throw new Exception();
+            }
+        }
+        else if (line.equals(BinaryProtocol.OFFER)) {
+            this.binaryOffered = true;
+        }
+        else if (line.equals(DeflateStream.OFFER)) {
+            this.deflateOffered = DeflateStream.isEnabled();
+        }
+        else if (line.equals(ResumableSessions.OFFER)) {
+            this.resumeOffered = this.server.getSessions() != null;
+        }
+        else if (line.startsWith("/resume ")) {
+            this.initResume(line.substring("/resume ".length()));
+        }
+        else if (line.startsWith("/username")) {
+            this.initClient(line.replace("/username ", ""));
+        }
+    }
+
+    // initClient confirms the username meets the server criteria and sends the acceptance to the client
+    // name - name for user
+    //
+    // returns null
+    private void initClient(String name) throws Exception {
+        // if username is invalid
+        if (name.equals("")) {
+            this.connection.sendRaw("ERROR: Invalid Username\n");
+            return;
+        }
+
+        // claim the username, unless it is taken
+        this.pendingClient = this.server.claimUser(name, this, this.connection.getAddress());
+        if (this.pendingClient == null) {
+            this.connection.sendRaw("ERROR: Username already taken\n");
+            return;
+        }
+
+        // handshake to confirm username meets server criteria
+        this.connection.sendRaw("/username accepted" + this.acceptedProtocols() + "\n");
+    }
+
+    // initResume finds the detached client of a session and sends the acceptance to the new connection, along
+    // with the sequence number the msgs sent again start after
+    // args - token of the session, and the sequence number of the last msg the client saw
+    //
+    // returns null
+    private void initResume(String args) throws Exception {
+        String[] parts = args.split(" ");
+        long lastSeq;
+        try {
+            lastSeq = parts.length == 2 ? Long.parseLong(parts[1]) : -1;
+        }
+        catch (NumberFormatException e) {
+            lastSeq = -1;
+        }
+
+        if (lastSeq < 0) {
+            this.connection.sendRaw("ERROR: Correct usage: /resume [token] [last seq]\n");
+            return;
+        }
+
+        // only binary frames can be counted by the client, a text msg may span several lines
+        if (!this.isResumable()) {
+            this.connection.sendRaw("ERROR: Resuming needs /protocol binary & /protocol resume\n");
+            return;
+        }
+
+        this.pendingClient = this.server.claimSession(parts[0]);
+        if (this.pendingClient == null) {
+            this.connection.sendRaw("ERROR: Session expired\n");
+            return;
+        }
+        this.resuming = true;
+
+        long from = this.pendingClient.getQueue().resume(lastSeq);
+        this.connection.sendRaw("/resume accepted " + from + this.acceptedProtocols() + "\n");
+    }
+
+    // resumeSession hands the client over to this connection once it has confirmed the resume, along with the
+    // state of the session it lost - the client is already logged in and in its room, so nobody is told
+    //
+    // returns null
+    private void resumeSession() {
+        ChatSession lost = this.client.getSession();
+        if (lost != null) {
+            this.whisperMode = lost.whisperMode;
+            this.whisperTo = lost.whisperTo;
+            this.limiter = lost.limiter;
+            this.admin = lost.admin;
+            this.statsBaseline = lost.statsBaseline;
+        }
+        if (this.limiter == null) {
+            this.limiter = this.server.getFloodControl().newLimiter();
+        }
+        this.client.setSession(this);
+
+        this.server.resumeUser(this.client, this.connection.getShard());
+
+        // users may have come and gone while the client was away
+        this.server.addWhisper(this.client.getName(), this.server.getPresence().getSnapshot());
+
+        Server.serverPrint(this.client.getName() + " Resumed their Session");
+    }
+
+    // acceptedProtocols lists the offers the server accepted, as they are added to the handshake lines
+    //
+    // returns the accepted offers, each with a leading space
+    private String acceptedProtocols() {
+        return (this.binaryOffered ? " binary" : "") + (this.deflateOffered ? " deflate" : "")
+                + (this.isResumable() ? " resume" : "");
+    }
+
+    // isResumable checks if the client offered everything needed to resume its session
+    //
+    // returns boolean if the client offered the binary protocol & resuming, and the server allows resuming
+    private boolean isResumable() {
+        return this.binaryOffered && this.resumeOffered;
+    }
+
+    // disconnect handles /disconnect
+    // args - unused
+    //
+    // returns false, so the client is disconnected
+    private boolean disconnect(String args) {
+        this.ended = true;
+        return false;
+    }
+
+    // help handles /help, printing every registered command
+    // args - unused
+    //
+    // returns true
+    private boolean help(String args) {
+        this.sendToClient("COMMANDS: " + COMMANDS.help() + "\n");
+        return true;
+    }
+
+    // users handles /users, printing the user list out of the server's cached presence snapshot
+    // args - unused
+    //
+    // returns true
+    private boolean users(String args) {
+        this.sendToClient(this.server.getPresence().render(this.client.getName()));
+        return true;
+    }
+
+    // whisper handles /whisper [name|off], starting or stopping whispering to a user
+    // whisperArg - name of the user, or off
+    //
+    // returns true
+    private boolean whisper(String whisperArg) {
+        // if whisper is missing args
+        if (whisperArg.equals("")) {
+            this.sendToClient("ERROR: Correct usage: /whisper [name|off]\n");
+        }
+
+        // disable whisper
+        else if (this.whisperMode && whisperArg.equals("off")) {
+            this.sendToClient("You are no longer whispering with [" + this.whisperTo + "]\n");
+
+            this.whisperMode = false;
+            this.whisperTo = "";
+        }
+
+        // enable whisper with user specified in whisperArg
+        else {
+            if (whisperArg.equals(this.client.getName())) {
+                this.sendToClient("ERROR: You cannot whisper yourself\n");
+            }
+            else {
+                if (!this.server.isKnownUser(whisperArg)) {
+                    this.sendToClient("ERROR: User [" + whisperArg + "] does not exist\n");
+                }
+                else {
+                    this.whisperMode = true;
+                    this.whisperTo = whisperArg;
+
+                    this.sendToClient("You are now whispering with ["
+                            + whisperArg + "]. To stop whispering use [/whisper off]\n");
+
+                    if (!this.server.isUser(whisperArg)) {
+                        this.sendToClient("[" + whisperArg + "] is offline, your whispers will be "
+                                + "delivered when they reconnect\n");
+                    }
+                }
+            }
+        }
+
+        return true;
+    }
+
+    // join handles /join [room], moving the client into a room
+    // roomArg - name of the room
+    //
+    // returns true
+    private boolean join(String roomArg) {
+        // room names are a single word
+        if (roomArg.equals("") || roomArg.contains(" ")) {
+            this.sendToClient("ERROR: Correct usage: /join [room]\n");
+        }
+        else if (roomArg.equals(this.client.getRoom().getName())) {
+            this.sendToClient("ERROR: You are already in [" + roomArg + "]\n");
+        }
+        else {
+            this.server.joinRoom(this.client, roomArg);
+        }
+
+        return true;
+    }
+
+    // leave handles /leave, moving the client back to the lobby
+    // args - unused
+    //
+    // returns true
+    private boolean leave(String args) {
+        if (this.client.getRoom().getName().equals(Server.LOBBY)) {
+            this.sendToClient("ERROR: You are not in a room\n");
+        }
+        else {
+            this.server.joinRoom(this.client, Server.LOBBY);
+        }
+
+        return true;
+    }
+
+    // rooms handles /rooms, printing every room and how many members it has
+    // args - unused
+    //
+    // returns true
+    private boolean rooms(String args) {
+        ArrayList<Room> rooms = this.server.getRooms();
+        StringBuilder retString = new StringBuilder("ROOMS: ");
+
+        for (int i = 0; i < rooms.size(); i++) {
+            Room room = rooms.get(i);
+            retString.append(room.getName()).append(" (").append(room.getMembers().size()).append(")");
+
+            if (room == this.client.getRoom()) {
+                retString.append(" (YOU)");
+            }
+
+            if (i < rooms.size() - 1) {
+                retString.append(", ");
+            }
+        }
+
+        this.sendToClient(retString + "\n");
+        return true;
+    }
+
+    // history handles /history [n] [minutes], printing the msg history of the current room & own whispers,
+    // optionally only from the last few minutes
+    // args - number of msgs & minutes, either empty for the default
+    //
+    // returns true
+    private boolean history(String args) {
+        String[] parts = args.split(" ");
+        int count = DEFAULT_HISTORY;
+        long minutes = 0;
+        try {
+            if (parts.length > 2) {
+                count = -1;
+            }
+            else if (!parts[0].equals("")) {
+                count = Integer.parseInt(parts[0]);
+                if (parts.length == 2) {
+                    minutes = Long.parseLong(parts[1]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            count = -1;
+        }
+
+        if (count <= 0 || minutes < 0 || minutes > TimeUnit.DAYS.toMinutes(365)) {
+            this.sendToClient("ERROR: Correct usage: /history [n] [minutes]\n");
+            return true;
+        }
+
+        long since = minutes == 0 ? 0 : System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(minutes);
+        List<String> history = this.server.getHistory(this.client, Math.min(count, HistoryLog.MAX_HISTORY), since);
+        if (history == null) {
+            this.sendToClient("ERROR: History is disabled on this server\n");
+            return true;
+        }
+
+        // sent as a single msg, so a long history does not fill up the client's queue
+        StringBuilder retString = new StringBuilder("HISTORY: " + history.size() + " msgs\n");
+        for (String line : history) {
+            retString.append(line).append("\n");
+        }
+
+        this.sendToClient(retString.toString());
+        return true;
+    }
+
+    // admin handles /admin [secret], giving the client the admin commands if the secret matches
+    // -Dchat.adminSecret. Nobody is an admin on a server without a secret
+    // secret - secret given by the client
+    //
+    // returns true
+    private boolean admin(String secret) {
+        byte[] expected = System.getProperty("chat.adminSecret", "").getBytes(StandardCharsets.UTF_8);
+
+        // compared in constant time, so the secret can not be guessed a byte at a time
+        if (expected.length == 0 || !MessageDigest.isEqual(expected, secret.getBytes(StandardCharsets.UTF_8))) {
+            Server.serverPrint("WARNING: Failed Admin Login as " + this.client.getName() + " "
+                    + this.connection.getAddress());
+            this.sendToClient("ERROR: Wrong admin secret\n");
+            return true;
+        }
+
+        this.admin = true;
+        Server.serverPrint(this.client.getName() + " Logged in as an Admin " + this.connection.getAddress());
+        this.sendToClient("Admin commands enabled\n");
+        return true;
+    }
+
+    // stats handles /stats, printing the server metrics with rates since the client's last /stats - only for
+    // clients that logged in as an admin with /admin
+    // args - unused
+    //
+    // returns true
+    private boolean stats(String args) {
+        if (!this.admin) {
+            return this.invalidCommand(args);
+        }
+
+        ServerMetrics metrics = this.server.getMetrics();
+        if (this.statsBaseline == null) {
+            this.statsBaseline = metrics.newBaseline();
+        }
+
+        this.sendToClient(metrics.summary(this.statsBaseline) + "\n");
+        return true;
+    }
+
+    // invalidCommand handles any line starting with / that is not a command
+    // args - unused
+    //
+    // returns true
+    private boolean invalidCommand(String args) {
+        this.sendToClient("WARNING: Invalid Command | Use [/help] to see all commands\n");
+        return true;
+    }
+
+    // throttle tells the client why its line was dropped
+    // verdict - what the server's FloodControl decided
+    //
+    // returns false if the client is disconnected for flooding
+    private boolean throttle(FloodControl.Verdict verdict) {
+        if (verdict == FloodControl.Verdict.WARN) {
+            this.sendToClient("WARNING: You are sending msgs too fast, your msg was dropped\n");
+        }
+        else if (verdict == FloodControl.Verdict.MUTE) {
+            Server.serverPrint("WARNING: Muted " + this.client.getName() + " for Flooding");
+            this.sendToClient("WARNING: You have been muted for "
+                    + this.server.getFloodControl().getMuteSeconds() + " seconds for flooding\n");
+        }
+        else if (verdict == FloodControl.Verdict.BUSY) {
+            this.sendToClient("WARNING: The server is busy, your msg was dropped\n");
+        }
+        else if (verdict == FloodControl.Verdict.DISCONNECT) {
+            Server.serverPrint("WARNING: Disconnecting " + this.client.getName() + " for Flooding");
+            this.sendToClient("ERROR: You have been disconnected for flooding\n");
+            this.ended = true;
+            return false;
+        }
+
+        // muted clients are not told about every line they send
+        return true;
+    }
+
+    // handleChat sends a regular msg to the client's room, or to the user the client is whispering with
+    // msg - msg sent by the client
+    //
+    // returns null
+    private void handleChat(String msg) {
+        // whisper msg -> whisperTo
+        if (this.whisperMode) {
+            if (!this.server.isKnownUser(this.whisperTo)) {
+                this.whisperMode = false;
+            }
+        }
+
+        if (this.whisperMode) {
+            Frame whisperMsg = Frame.chat(this.client, System.currentTimeMillis(), msg, true);
+
+            if (!this.server.addWhisper(this.client, this.whisperTo, whisperMsg)) {
+                this.sendToClient("ERROR: The mailbox of [" + this.whisperTo + "] is full\n");
+            }
+        }
+
+        // broadcast msg -> every client in the same room
+        else {
+            Frame chatMsg = Frame.chat(this.client, System.currentTimeMillis(), msg, false);
+
+            this.server.addMsg(this.client.getRoom(), chatMsg);
+        }
+    }
+
+    // sendToClient whispers a message to the session's client
+    // msg - msg to send to client
+    //
+    // return null
+    private void sendToClient(String msg) {
+        this.server.addWhisper(this.client.getName(), msg);
+    }
+
+    // close removes the session's client from the server, if the handshake was completed - unless the client
+    // lost its connection and can resume its session, in which case it is kept for the session's grace window
+    //
+    // returns null
+    public void close() {
+        // a session taken over by a new connection already handed its client on
+        if (this.client != null && this.release()) {
+            if (this.ended || !this.server.detachUser(this.client)) {
+                this.server.removeUser(this.client);
+            }
+            this.client = null;
+        }
+
+        if (this.pendingClient != null) {
+            // a resume that was never confirmed goes back to its grace window
+            if (!this.resuming) {
+                this.server.releaseUser(this.pendingClient);
+            }
+            else if (!this.server.detachUser(this.pendingClient)) {
+                this.server.removeUser(this.pendingClient);
+            }
+            this.pendingClient = null;
+        }
+    }
+
+    // release lets go of the session's client, once - whichever of the session closing and a new connection
+    // taking the session over comes first gets the client
+    //
+    // returns boolean if this call let go of the client
+    boolean release() {
+        return this.released.compareAndSet(false, true);
+    }
+
+    // closeConnection closes the session's connection from any thread, once a new connection took the session
+    // over - the connection's own thread cleans up after it
+    //
+    // returns null
+    void closeConnection() {
+        this.connection.close();
+    }
+
+    // client getter
+    public ClientInfo getClient() {
+        return this.client;
+    }
+
+    // isBinary checks if the client switched to the binary protocol during the handshake
+    //
+    // returns boolean if the session uses the binary protocol
+    public boolean isBinary() {
+        return this.binary;
+    }
+
+    // isDeflate checks if the client switched to a compressed stream during the handshake
+    //
+    // returns boolean if everything sent to the client is compressed
+    public boolean isDeflate() {
+        return this.deflate;
+    }
+}
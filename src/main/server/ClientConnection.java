@@ -0,0 +1,30 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+// ClientConnection is the part of a client's connection that a ChatSession needs to talk to the client.
+// Both the blocking ServerInputThread and the non-blocking NioConnection implement it.
+public interface ClientConnection {
+
+    // sendRaw writes a msg straight to the client, bypassing the client's msg queue. This is only
+    // used during the username handshake, before the client has a msg queue
+    // msg - msg to be sent, including the trailing newline
+    //
+    // returns null
+    void sendRaw(String msg) throws IOException;
+
+    // close closes the connection from any thread - the connection's own thread notices & cleans up after it
+    //
+    // returns null
+    void close();
+
+    // address getter
+    InetAddress getAddress();
+
+    // shard getter - shard serving the connection, or null if the connection has a thread of its own
+    default Shard getShard() {
+        return null;
+    }
+}
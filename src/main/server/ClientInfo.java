@@ -4,19 +4,40 @@ package main.server;
 import java.net.InetAddress;
 
 // ClientInfo holds very basic information about a client to just make it unique enough
-// to be identifiable in the list
+// to be identifiable in the list, along with the client's session, msg queue and current room
 public class ClientInfo {
 
     // --- FIELDS ---
+    int id;
     String name;
     InetAddress address;
 
+    // session the client is logged in through - swapped by a new connection resuming the client
+    private volatile ChatSession session;
+    private volatile MsgQueue queue;
+    private volatile Room room;
+    private volatile Shard shard;
+
+    // token the client resumes its session with, null if the client can not resume
+    private volatile String token;
+
     // --- CONSTRUCTOR ---
     public ClientInfo(String name, InetAddress address) {
+        this(0, name, address);
+    }
+
+    // id - server assigned id, sent to binary protocol clients in place of the name
+    public ClientInfo(int id, String name, InetAddress address) {
+        this.id = id;
         this.name = name;
         this.address = address;
     }
 
+    // id getter
+    public int getId() {
+        return id;
+    }
+
     // name getter
     public String getName() {
         return name;
@@ -37,4 +58,54 @@ public class ClientInfo {
         this.address = address;
     }
 
+    // session getter
+    public ChatSession getSession() {
+        return session;
+    }
+
+    // session setter
+    public void setSession(ChatSession session) {
+        this.session = session;
+    }
+
+    // queue getter - null until the client has been added to the server
+    public MsgQueue getQueue() {
+        return queue;
+    }
+
+    // queue setter
+    public void setQueue(MsgQueue queue) {
+        this.queue = queue;
+    }
+
+    // room getter - room the client is currently in, null until the client has been added to the server
+    public Room getRoom() {
+        return room;
+    }
+
+    // room setter
+    public void setRoom(Room room) {
+        this.room = room;
+    }
+
+    // shard getter - shard serving the client's connection, null for the blocking engine
+    public Shard getShard() {
+        return shard;
+    }
+
+    // shard setter
+    public void setShard(Shard shard) {
+        this.shard = shard;
+    }
+
+    // token getter - null if the client can not resume its session
+    public String getToken() {
+        return token;
+    }
+
+    // token setter
+    public void setToken(String token) {
+        this.token = token;
+    }
+
 }
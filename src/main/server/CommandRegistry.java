@@ -0,0 +1,218 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// CommandRegistry maps command tokens like /users to the code that handles them. A command is looked up
+// straight from the bytes of the line the client sent - the token is hashed in place and compared against
+// an open addressing table - so routing a command takes constant time and does not allocate. Only the args
+// of the command, if there are any, are decoded into a string. Control commands like /disconnect are marked, so
+// they can be let through ahead of anything that might turn the line away, like flood control.
+public final class CommandRegistry {
+
+    // --- FIELDS ---
+    private byte[][] tokens = new byte[16][];
+    private Command[] commands = new Command[16];
+    private boolean[] controls = new boolean[16];
+    private int size = 0;
+
+    // usage of every command, in the order they were registered
+    private final ArrayList<String> usages = new ArrayList<>();
+
+    // handles lines whose token is not a registered command
+    private final Command unknown;
+
+    // Command handles a single command sent by a client
+    public interface Command {
+        // handle runs the command
+        // session - session of the client that sent the command
+        // args - everything after the command token, trimmed
+        //
+        // returns false if the client should be disconnected
+        boolean handle(ChatSession session, String args) throws Exception;
+    }
+
+    // --- CONSTRUCTOR ---
+    // unknown - handler of lines starting with / that are not a registered command
+    public CommandRegistry(Command unknown) {
+        this.unknown = unknown;
+    }
+
+    // register adds a command to the registry
+    // token - command token, including the leading /
+    // usage - how the command is used, shown by /help
+    // command - handler of the command
+    //
+    // returns null
+    public void register(String token, String usage, Command command) {
+        this.register(token, usage, command, false);
+    }
+
+    // registerControl adds a control command to the registry, one that must always reach its handler
+    // token - command token, including the leading /
+    // usage - how the command is used, shown by /help
+    // command - handler of the command
+    //
+    // returns null
+    public void registerControl(String token, String usage, Command command) {
+        this.register(token, usage, command, true);
+    }
+
+    // register adds a command to the registry
+    // token - command token, including the leading /
+    // usage - how the command is used, shown by /help
+    // command - handler of the command
+    // control - if the command is a control command
+    //
+    // returns null
+    private void register(String token, String usage, Command command, boolean control) {
+        if ((this.size + 1) * 2 > this.tokens.length) {
+            this.grow();
+        }
+
+        this.put(token.getBytes(StandardCharsets.UTF_8), command, control);
+        this.usages.add(usage);
+    }
+
+    // isControl checks if a line is a control command
+    // bytes - bytes holding the line
+    // offset - index of the first byte of the line
+    // length - number of bytes in the line
+    //
+    // returns boolean if the line's token is a registered control command
+    public boolean isControl(byte[] bytes, int offset, int length) {
+        int slot = this.lookup(bytes, offset, CommandRegistry.tokenLength(bytes, offset, length));
+        return slot >= 0 && this.controls[slot];
+    }
+
+    // dispatch routes a line starting with / to its command
+    // session - session of the client that sent the line
+    // bytes - bytes holding the line
+    // offset - index of the first byte of the line
+    // length - number of bytes in the line
+    //
+    // returns false if the client should be disconnected
+    public boolean dispatch(ChatSession session, byte[] bytes, int offset, int length) throws Exception {
+        int end = offset + length;
+        int tokenEnd = offset + CommandRegistry.tokenLength(bytes, offset, length);
+
+        int slot = this.lookup(bytes, offset, tokenEnd - offset);
+        Command command = slot >= 0 ? this.commands[slot] : this.unknown;
+
+        // skip the spaces around the args, without decoding them
+        int argsStart = tokenEnd;
+        while (argsStart < end && bytes[argsStart] == ' ') {
+            argsStart++;
+        }
+        int argsEnd = end;
+        while (argsEnd > argsStart && bytes[argsEnd - 1] == ' ') {
+            argsEnd--;
+        }
+
+        String args = argsStart == argsEnd
+                ? ""
+                : new String(bytes, argsStart, argsEnd - argsStart, StandardCharsets.UTF_8);
+
+        return command.handle(session, args);
+    }
+
+    // help lists the usage of every command
+    //
+    // returns the usages, comma separated
+    public String help() {
+        return String.join(", ", this.usages);
+    }
+
+    // tokenLength finds where the command token of a line ends
+    // bytes - bytes holding the line
+    // offset - index of the first byte of the line
+    // length - number of bytes in the line
+    //
+    // returns the number of bytes in the token
+    private static int tokenLength(byte[] bytes, int offset, int length) {
+        int tokenLength = 0;
+        while (tokenLength < length && bytes[offset + tokenLength] != ' ') {
+            tokenLength++;
+        }
+
+        return tokenLength;
+    }
+
+    // lookup finds the slot of a token
+    // bytes - bytes holding the token
+    // offset - index of the first byte of the token
+    // length - number of bytes in the token
+    //
+    // returns the slot, or -1 if no command has the token
+    private int lookup(byte[] bytes, int offset, int length) {
+        int mask = this.tokens.length - 1;
+
+        for (int slot = hash(bytes, offset, length) & mask; this.tokens[slot] != null; slot = (slot + 1) & mask) {
+            byte[] token = this.tokens[slot];
+            if (token.length == length && Arrays.equals(token, 0, length, bytes, offset, offset + length)) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    // put stores a command in the table, replacing any command with the same token
+    // token - bytes of the command token
+    // command - handler of the command
+    // control - if the command is a control command
+    //
+    // returns null
+    private void put(byte[] token, Command command, boolean control) {
+        int mask = this.tokens.length - 1;
+
+        int slot = hash(token, 0, token.length) & mask;
+        while (this.tokens[slot] != null && !Arrays.equals(this.tokens[slot], token)) {
+            slot = (slot + 1) & mask;
+        }
+
+        if (this.tokens[slot] == null) {
+            this.size++;
+        }
+        this.tokens[slot] = token;
+        this.commands[slot] = command;
+        this.controls[slot] = control;
+    }
+
+    // grow doubles the size of the table
+    //
+    // returns null
+    private void grow() {
+        byte[][] oldTokens = this.tokens;
+        Command[] oldCommands = this.commands;
+        boolean[] oldControls = this.controls;
+
+        this.tokens = new byte[oldTokens.length * 2][];
+        this.commands = new Command[oldTokens.length * 2];
+        this.controls = new boolean[oldTokens.length * 2];
+        this.size = 0;
+
+        for (int i = 0; i < oldTokens.length; i++) {
+            if (oldTokens[i] != null) {
+                this.put(oldTokens[i], oldCommands[i], oldControls[i]);
+            }
+        }
+    }
+
+    // hash hashes the bytes of a token
+    // bytes - bytes holding the token
+    // offset - index of the first byte of the token
+    // length - number of bytes in the token
+    //
+    // returns the hash
+    private static int hash(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+
+        return hash ^ (hash >>> 16);
+    }
+}
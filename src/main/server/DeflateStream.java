@@ -0,0 +1,79 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+// DeflateStream compresses everything the server sends to a single client that negotiated compression during
+// the handshake. The whole connection is one raw DEFLATE stream, so later msgs are compressed against the
+// dates, names and phrases of the msgs before them. Every write batch ends with a sync flush, so the client can
+// decompress all of it as soon as it arrives and a msg is never held back waiting for the next one. The
+// compression context belongs to the connection, which means a compressed broadcast cannot be shared between
+// clients - every client's stream has seen different msgs.
+public class DeflateStream {
+
+    // --- FIELDS ---
+    public static final String OFFER = "/protocol deflate";
+
+    private static final int LEVEL = Integer.getInteger("chat.deflateLevel", Deflater.DEFAULT_COMPRESSION);
+
+    private final Deflater deflater = new Deflater(LEVEL, true);
+
+    // compressed bytes of the last batch, reused for every batch
+    private ByteBuffer output = ByteBuffer.allocate(4 * 1024);
+
+    // isEnabled checks if the server accepts compression offers - -Dchat.deflate=false turns them down
+    //
+    // returns boolean if compression may be negotiated
+    public static boolean isEnabled() {
+        return !System.getProperty("chat.deflate", "true").equals("false");
+    }
+
+    // compress compresses a write batch and sync flushes the stream. The buffers of the batch are consumed
+    // batch - buffers of the batch, in read mode
+    // offset - index of the first buffer
+    // length - number of buffers
+    //
+    // returns the compressed bytes, in read mode - only valid until the next call to compress
+    public ByteBuffer compress(ByteBuffer[] batch, int offset, int length) {
+        this.output.clear();
+
+        for (int i = offset; i < offset + length; i++) {
+            this.deflater.setInput(batch[i]);
+            while (!this.deflater.needsInput()) {
+                this.deflate(Deflater.NO_FLUSH);
+            }
+        }
+
+        // keep flushing until the deflater leaves room in the output - then everything has been written out
+        do {
+            this.deflate(Deflater.SYNC_FLUSH);
+        }
+        while (!this.output.hasRemaining());
+
+        this.output.flip();
+        return this.output;
+    }
+
+    // deflate runs the deflater into the output, growing the output first if it is full
+    // flush - Deflater flush mode
+    //
+    // returns null
+    private void deflate(int flush) {
+        if (!this.output.hasRemaining()) {
+            ByteBuffer grown = ByteBuffer.allocate(this.output.capacity() * 2);
+            this.output.flip();
+            grown.put(this.output);
+            this.output = grown;
+        }
+
+        this.deflater.deflate(this.output, flush);
+    }
+
+    // close frees the deflater's native memory once the connection is closed
+    //
+    // returns null
+    public void close() {
+        this.deflater.end();
+    }
+}
@@ -0,0 +1,579 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Federation joins this server to a cluster of servers over PeerLinks. Every server owns the clients that
+// logged in on it, and tells its peers as they join and leave, so each server keeps a directory of the users
+// logged in anywhere in the cluster - /users lists them, and a username taken on any server is turned down.
+// Room msgs are relayed to every peer, and a whisper goes to the peer the recipient is logged in on. Every
+// server links straight to every other server, once per pair - the newer server lists the older ones in
+// -Dchat.peers - so a relayed record is never relayed again. Uniqueness is best effort - two servers accepting
+// the same name at the same moment both keep their client, and log it.
+//
+// Every server of the cluster shares a secret, and a link only carries msgs once both servers have proven they
+// know it - each side says hello with its node id and a random nonce, and answers the other side's hello with
+// an HMAC over both nonces and its own node id. A server only takes links from the node ids listed in
+// -Dchat.peerIds, and only listens for them on -Dchat.peerBind, the loopback address unless set. Links are not
+// encrypted, so servers on different machines should be linked over a network they trust.
+// Records are
+//
+// HELLO   - [type][node id][nonce]
+// AUTH    - [type][HMAC-SHA256 of the peer's nonce, the sender's nonce & the sender's node id]
+// JOIN    - [type][name][announce - 1 byte]
+// LEAVE   - [type][name]
+// ROOM    - [type][room][sender, empty for notices][time in epoch millis - 8 bytes][msg]
+// WHISPER - [type][sender][recipient][time in epoch millis - 8 bytes][msg]
+//
+// with every string as [length - 4 bytes][UTF-8], and every nonce & HMAC as [length - 4 bytes][bytes]
+public class Federation {
+
+    // --- FIELDS ---
+    private static final byte HELLO = 0;
+    private static final byte JOIN = 1;
+    private static final byte LEAVE = 2;
+    private static final byte ROOM = 3;
+    private static final byte WHISPER = 4;
+    private static final byte AUTH = 5;
+
+    private static final long REDIAL_MILLIS = 2000;
+    private static final int NONCE_BYTES = 16;
+    private static final String MAC = "HmacSHA256";
+
+    private final Server server;
+    private final String nodeId;
+    private final int queueSize;
+
+    // secret every server of the cluster shares, and the node ids of the peers that may link to this server
+    private final SecretKeySpec secret;
+    private final Set<String> peerIds;
+    private final SecureRandom random = new SecureRandom();
+
+    // links of peers that have said hello, by node id
+    private final ConcurrentHashMap<String, PeerLink> links = new ConcurrentHashMap<>();
+
+    // users logged in on peers, by name - their ClientInfo has a local id for binary clients, and no queue
+    private final ConcurrentHashMap<String, ClientInfo> remoteUsers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PeerLink> owners = new ConcurrentHashMap<>();
+
+    // --- CONSTRUCTOR ---
+    // server - server joining the cluster
+    // nodeId - name of this server in the cluster, unique across the cluster
+    // queueSize - number of records that may wait on each link before new records are dropped
+    // secret - secret every server of the cluster shares
+    // peerIds - node ids of the peers that may link to this server, peers this server links to are always taken
+    public Federation(Server server, String nodeId, int queueSize, String secret, Collection<String> peerIds) {
+        this.server = server;
+        this.nodeId = nodeId;
+        this.queueSize = queueSize;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC);
+        this.peerIds = Set.copyOf(peerIds);
+    }
+
+    // fromProperties joins the cluster set up with -Dchat.peerPort (port other servers link to), -Dchat.peerBind
+    // (address the peer port is opened on), -Dchat.peers (comma-separated host:port of servers to link to),
+    // -Dchat.peerIds (comma-separated node ids of servers that may link to this one), -Dchat.peerSecret,
+    // -Dchat.nodeId and -Dchat.peerQueueSize
+    // server - server joining the cluster
+    //
+    // returns the federation, or null if neither a peer port nor any peers are set, or no secret is set
+    public static Federation fromProperties(Server server) {
+        int peerPort = Integer.getInteger("chat.peerPort", 0);
+        String peers = System.getProperty("chat.peers", "").trim();
+        if (peerPort <= 0 && peers.equals("")) {
+            return null;
+        }
+
+        String secret = System.getProperty("chat.peerSecret", "");
+        if (secret.equals("")) {
+            Server.serverPrint("ERROR: No -Dchat.peerSecret Set, Not Joining the Cluster");
+            return null;
+        }
+
+        ArrayList<String> peerIds = new ArrayList<>();
+        for (String peerId : System.getProperty("chat.peerIds", "").split(",")) {
+            if (!peerId.trim().equals("")) {
+                peerIds.add(peerId.trim());
+            }
+        }
+
+        Federation federation = new Federation(server,
+                System.getProperty("chat.nodeId", "node-" + server.getPort()),
+                Integer.getInteger("chat.peerQueueSize", 65536), secret, peerIds);
+
+        if (peerPort > 0) {
+            String bind = System.getProperty("chat.peerBind", "");
+            try {
+                federation.listen(bind.equals("") ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind),
+                        peerPort);
+            }
+            catch (IOException e) {
+                Server.serverPrint("ERROR: Unknown -Dchat.peerBind Address " + bind);
+            }
+        }
+        for (String peer : peers.split(",")) {
+            if (!peer.trim().equals("")) {
+                federation.dial(peer.trim());
+            }
+        }
+
+        return federation;
+    }
+
+    // listen accepts links from other servers on a background thread
+    // bind - address the peer port is opened on
+    // port - port other servers link to
+    //
+    // returns null
+    public void listen(InetAddress bind, int port) {
+        if (this.peerIds.isEmpty()) {
+            Server.serverPrint("WARNING: No -Dchat.peerIds Set, No Peer may Link to this Server");
+        }
+
+        Thread acceptor = new Thread(() -> {
+            try (ServerSocket peerSocket = new ServerSocket(port, 50, bind)) {
+                Server.serverPrint("Accepting Peers on " + bind.getHostAddress() + ":" + port + " as "
+                        + this.nodeId + "\n");
+
+                while (true) {
+                    Socket socket = peerSocket.accept();
+                    try {
+                        this.open(socket, false);
+                    }
+                    catch (IOException e) {
+                        Server.serverPrint("WARNING: Failed to Open Link to " + socket.getRemoteSocketAddress());
+                        socket.close();
+                    }
+                }
+            }
+            catch (IOException e) {
+                Server.serverPrint("ERROR: Failed to Accept Peers on Port " + port);
+            }
+        }, "peer-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // dial keeps a link open to another server on a background thread, linking again whenever it goes down
+    // peer - host:port of the other server's peer port
+    //
+    // returns null
+    public void dial(String peer) {
+        int colon = peer.lastIndexOf(':');
+        int port = -1;
+        try {
+            if (colon > 0) {
+                port = Integer.parseInt(peer.substring(colon + 1));
+            }
+        }
+        catch (NumberFormatException e) {
+            port = -1;
+        }
+
+        if (port <= 0 || port > 65535) {
+            Server.serverPrint("ERROR: Peer " + peer + " in -Dchat.peers is not host:port, Not Dialing It");
+            return;
+        }
+        InetSocketAddress address = new InetSocketAddress(peer.substring(0, colon), port);
+
+        Thread dialer = new Thread(() -> {
+            PeerLink link = null;
+
+            while (true) {
+                try {
+                    if (link == null || link.isClosed()) {
+                        Socket socket = new Socket();
+                        socket.connect(address, (int) REDIAL_MILLIS);
+                        link = this.open(socket, true);
+                    }
+                }
+                catch (IOException e) {
+                    link = null;
+                }
+
+                try {
+                    Thread.sleep(REDIAL_MILLIS);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "peer-dialer-" + peer);
+        dialer.setDaemon(true);
+        dialer.start();
+    }
+
+    // open starts a link over a connected socket and says hello
+    // socket - socket connected to another server
+    // dialed - if this server linked to the peer, rather than the peer to this server
+    //
+    // returns the link
+    private PeerLink open(Socket socket, boolean dialed) throws IOException {
+        byte[] nonce = new byte[NONCE_BYTES];
+        this.random.nextBytes(nonce);
+
+        PeerLink link = new PeerLink(this, socket, this.queueSize, nonce, dialed);
+        link.send(Federation.record(HELLO, this.nodeId, nonce));
+
+        return link;
+    }
+
+    // userJoined tells every peer a client logged in on this server
+    // name - name of the client
+    //
+    // returns null
+    public void userJoined(String name) {
+        this.relay(Federation.record(JOIN, name, true));
+    }
+
+    // userLeft tells every peer a client logged out of this server
+    // name - name of the client
+    //
+    // returns null
+    public void userLeft(String name) {
+        this.relay(Federation.record(LEAVE, name));
+    }
+
+    // relayRoom sends a msg published to a room on this server to every peer
+    // room - name of the room
+    // frame - chat msg or notice published to the room
+    //
+    // returns null
+    public void relayRoom(String room, Frame frame) {
+        ClientInfo sender = frame.getSender();
+
+        this.relay(Federation.record(ROOM, room, sender == null ? "" : sender.getName(), frame.getTime(),
+                frame.getBody()));
+    }
+
+    // relayWhisper sends a whisper to the peer the recipient is logged in on
+    // sender - name of the client sending the whisper
+    // name - name of the recipient
+    // frame - whisper to be sent
+    //
+    // returns false if the recipient is not logged in on any peer
+    public boolean relayWhisper(String sender, String name, Frame frame) {
+        PeerLink owner = this.owners.get(name);
+        if (owner == null) {
+            return false;
+        }
+
+        owner.send(Federation.record(WHISPER, sender, name, frame.getTime(), frame.getBody()));
+        return true;
+    }
+
+    // relay sends a record to every peer - the record is encoded once and shared by every link
+    // record - encoded record
+    //
+    // returns null
+    private void relay(byte[] record) {
+        for (PeerLink link : this.links.values()) {
+            link.send(record);
+        }
+    }
+
+    // handle handles a record sent by a peer, on the link's reader thread
+    // link - link the record arrived on
+    // record - encoded record
+    //
+    // returns null
+    void handle(PeerLink link, byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+
+        if (type == HELLO) {
+            this.challenged(link, Federation.readString(in), Federation.readBytes(in));
+        }
+        else if (type == AUTH) {
+            this.authenticate(link, Federation.readBytes(in));
+        }
+        else if (link.getNodeId() == null) {
+            throw new IOException("peer did not authenticate");
+        }
+        else if (type == JOIN) {
+            this.remoteJoin(link, Federation.readString(in), in.readBoolean());
+        }
+        else if (type == LEAVE) {
+            this.remoteLeave(link, Federation.readString(in), true);
+        }
+        else if (type == ROOM) {
+            String room = Federation.readString(in);
+            String sender = Federation.readString(in);
+            long time = in.readLong();
+            String msg = Federation.readString(in);
+
+            ClientInfo remote = this.remoteUsers.get(sender);
+            if (sender.equals("")) {
+                this.server.deliverRemote(room, Frame.notice(msg));
+            }
+            else if (remote != null) {
+                this.server.deliverRemote(room, Frame.chat(remote, time, msg, false));
+            }
+        }
+        else if (type == WHISPER) {
+            String sender = Federation.readString(in);
+            String name = Federation.readString(in);
+            long time = in.readLong();
+            String msg = Federation.readString(in);
+
+            ClientInfo remote = this.remoteUsers.get(sender);
+            if (remote != null) {
+                this.server.deliverRemoteWhisper(remote, name, Frame.chat(remote, time, msg, true));
+            }
+        }
+    }
+
+    // challenged answers a peer's hello by proving this server knows the cluster's secret - a peer that may not
+    // link to this server is turned away
+    // link - link of the peer
+    // peerId - node id the peer says it has
+    // peerNonce - nonce the peer sent, to be signed
+    //
+    // returns null
+    private void challenged(PeerLink link, String peerId, byte[] peerNonce) throws IOException {
+        if (link.getHelloId() != null || peerNonce.length != NONCE_BYTES) {
+            throw new IOException("bad hello");
+        }
+
+        // a peer claiming this server's own id could have this server sign its own challenge
+        if (peerId.equals(this.nodeId) || (!link.isDialed() && !this.peerIds.contains(peerId))) {
+            Server.serverPrint("WARNING: Refused Link from Unknown Peer " + peerId + " " + link.describe());
+            link.close();
+            return;
+        }
+
+        link.setHello(peerId, peerNonce);
+        link.send(Federation.record(AUTH,
+                this.sign(link.isDialed(), this.nodeId, peerId, peerNonce, link.getNonce())));
+    }
+
+    // authenticate checks the proof a peer sent that it knows the cluster's secret, and registers the peer if
+    // it does
+    // link - link of the peer
+    // proof - HMAC sent by the peer
+    //
+    // returns null
+    private void authenticate(PeerLink link, byte[] proof) throws IOException {
+        String peerId = link.getHelloId();
+        if (peerId == null || link.getNodeId() != null) {
+            throw new IOException("peer authenticated out of order");
+        }
+
+        byte[] expected = this.sign(!link.isDialed(), peerId, this.nodeId, link.getNonce(), link.getPeerNonce());
+        if (!MessageDigest.isEqual(expected, proof)) {
+            Server.serverPrint("WARNING: Peer " + peerId + " " + link.describe() + " Failed to Authenticate");
+            link.close();
+            return;
+        }
+
+        this.hello(link, peerId);
+    }
+
+    // sign signs a hello with the cluster's secret. Which side dialed & both node ids are signed along with the
+    // nonces, so a proof relayed from a link between two other servers, or sent back over the same link, does
+    // not match the one the verifier expects
+    // proverDialed - boolean if the server signing dialed the link
+    // proverId - node id of the server signing
+    // verifierId - node id of the server checking the signature
+    // verifierNonce - nonce of the server checking the signature
+    // proverNonce - nonce of the server signing
+    //
+    // returns the HMAC
+    private byte[] sign(boolean proverDialed, String proverId, String verifierId, byte[] verifierNonce,
+            byte[] proverNonce) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(MAC);
+            mac.init(this.secret);
+
+            // fields are length-prefixed, so no two different hellos sign the same bytes
+            return mac.doFinal(Federation.record(AUTH, proverDialed, proverId, verifierId, verifierNonce,
+                    proverNonce));
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // hello registers a peer once it has proven who it is, and sends it every user logged in on this server
+    // link - link of the peer
+    // peerId - node id of the peer
+    //
+    // returns null
+    private void hello(PeerLink link, String peerId) {
+        if (peerId.equals(this.nodeId) || this.links.putIfAbsent(peerId, link) != null) {
+            Server.serverPrint("WARNING: Already Linked to Peer " + peerId + ", Closing Duplicate Link");
+            link.close();
+            return;
+        }
+        link.setNodeId(peerId);
+
+        // users joining from here on are relayed on the new link as well, so a user is sent at most twice
+        for (String name : this.server.getUsers()) {
+            if (!this.remoteUsers.containsKey(name)) {
+                link.send(Federation.record(JOIN, name, false));
+            }
+        }
+
+        Server.serverPrint("Linked to Peer " + peerId + "\n");
+    }
+
+    // remoteJoin adds a user logged in on a peer to the directory
+    // link - link of the peer
+    // name - name of the user
+    // announce - if the join is news, rather than part of the peer's hello
+    //
+    // returns null
+    private void remoteJoin(PeerLink link, String name, boolean announce) {
+        if (this.server.getClient(name) != null) {
+            Server.serverPrint("WARNING: User " + name + " is Logged in on " + link.getNodeId() + " as Well");
+            return;
+        }
+
+        ClientInfo remote = new ClientInfo(this.server.nextUserId(), name, null);
+        if (this.remoteUsers.putIfAbsent(name, remote) != null) {
+            return;
+        }
+        this.owners.put(name, link);
+        link.getUsers().add(name);
+
+        this.server.remoteUserJoined(remote, announce);
+    }
+
+    // remoteLeave removes a user logged in on a peer from the directory
+    // link - link of the peer
+    // name - name of the user
+    // announce - if the users on this server should be told
+    //
+    // returns null
+    private void remoteLeave(PeerLink link, String name, boolean announce) {
+        if (!this.owners.remove(name, link)) {
+            return;
+        }
+        link.getUsers().remove(name);
+        ClientInfo remote = this.remoteUsers.remove(name);
+
+        if (remote != null && announce) {
+            this.server.remoteUserLeft(remote);
+        }
+    }
+
+    // linkClosed forgets a peer and every user logged in on it
+    // link - link that was closed
+    //
+    // returns null
+    void linkClosed(PeerLink link) {
+        String peerId = link.getNodeId();
+        if (peerId == null || !this.links.remove(peerId, link)) {
+            return;
+        }
+
+        for (String name : new ArrayList<>(link.getUsers())) {
+            this.remoteLeave(link, name, true);
+        }
+
+        Server.serverPrint("Unlinked from Peer " + peerId + "\n");
+    }
+
+    // isRemoteUser checks if a user is logged in on a peer
+    // name - name of the user
+    //
+    // returns boolean if the user is logged in on another server of the cluster
+    public boolean isRemoteUser(String name) {
+        return this.remoteUsers.containsKey(name);
+    }
+
+    // getRemoteUsers gets the users logged in on peers
+    //
+    // returns the users
+    public Collection<ClientInfo> getRemoteUsers() {
+        return Collections.unmodifiableCollection(this.remoteUsers.values());
+    }
+
+    // getPeers gets the node ids of the linked peers
+    //
+    // returns the node ids
+    public List<String> getPeers() {
+        return new ArrayList<>(this.links.keySet());
+    }
+
+    // nodeId getter
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    // record encodes a record
+    // type - record type
+    // fields - Strings, byte[]s, Longs and Booleans of the record, in order
+    //
+    // returns the encoded record
+    private static byte[] record(byte type, Object... fields) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeByte(type);
+            for (Object field : fields) {
+                if (field instanceof Long) {
+                    out.writeLong((Long) field);
+                }
+                else if (field instanceof Boolean) {
+                    out.writeBoolean((Boolean) field);
+                }
+                else if (field instanceof byte[]) {
+                    out.writeInt(((byte[]) field).length);
+                    out.write((byte[]) field);
+                }
+                else {
+                    byte[] text = ((String) field).getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(text.length);
+                    out.write(text);
+                }
+            }
+
+            return bytes.toByteArray();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // readString reads a string field of a record
+    // in - record being read
+    //
+    // returns the string
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(Federation.readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    // readBytes reads a length-prefixed field of a record
+    // in - record being read
+    //
+    // returns the bytes
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("bad record");
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        return bytes;
+    }
+}
@@ -0,0 +1,135 @@
+// Nicholas Delli Carpini
+package main.server;
+
+// FloodControl decides how fast clients may send lines - every chat msg and command a client sends takes a
+// token from the client's own TokenBucket, and then from a TokenBucket shared by the whole server, so no single
+// client and no crowd of clients can flood the fan-out. A client over its own limit has the line dropped and is
+// warned, then muted for a while once it keeps going, and disconnected once it has been muted too many times.
+// A client over the server's limit only has the line dropped, since it is not the one flooding.
+public class FloodControl {
+
+    // --- FIELDS ---
+    // what happens to a line the client sent
+    public enum Verdict {ALLOW, WARN, MUTE, MUTED, BUSY, DISCONNECT}
+
+    private final double rate;
+    private final int burst;
+    private final int warnings;
+    private final long muteTime;
+    private final int maxMutes;
+
+    // shared by every client, null if the server has no limit of its own
+    private final TokenBucket global;
+
+    // --- CONSTRUCTOR ---
+    // rate - lines per second a client may send, 0 for no limit
+    // burst - lines a client may send at once after being idle
+    // warnings - number of dropped lines the client is warned about before being muted
+    // muteSeconds - how long a client is muted
+    // maxMutes - number of times a client may be muted before it is disconnected instead
+    // globalRate - lines per second every client together may send, 0 for no limit
+    // globalBurst - lines every client together may send at once
+    public FloodControl(double rate, int burst, int warnings, int muteSeconds, int maxMutes,
+                        double globalRate, int globalBurst) {
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.warnings = Math.max(0, warnings);
+        this.muteTime = Math.max(0, muteSeconds) * 1_000_000_000L;
+        this.maxMutes = Math.max(0, maxMutes);
+        this.global = globalRate > 0 ? new TokenBucket(globalRate, Math.max(1, globalBurst)) : null;
+    }
+
+    // fromProperties creates the flood control from -Dchat.floodRate, -Dchat.floodBurst, -Dchat.floodWarnings,
+    // -Dchat.floodMuteSeconds, -Dchat.floodMutes, -Dchat.floodGlobalRate and -Dchat.floodGlobalBurst
+    //
+    // returns the flood control
+    public static FloodControl fromProperties() {
+        return new FloodControl(Double.parseDouble(System.getProperty("chat.floodRate", "10")),
+                Integer.getInteger("chat.floodBurst", 20), Integer.getInteger("chat.floodWarnings", 3),
+                Integer.getInteger("chat.floodMuteSeconds", 30), Integer.getInteger("chat.floodMutes", 3),
+                Double.parseDouble(System.getProperty("chat.floodGlobalRate", "20000")),
+                Integer.getInteger("chat.floodGlobalBurst", 40000));
+    }
+
+    // newLimiter creates the limiter for a client that just logged in
+    //
+    // returns the client's limiter
+    public Limiter newLimiter() {
+        return new Limiter(this.rate > 0 ? new TokenBucket(this.rate, this.burst) : null);
+    }
+
+    // muteSeconds getter
+    public long getMuteSeconds() {
+        return this.muteTime / 1_000_000_000L;
+    }
+
+    // Limiter tracks a single client's tokens & offences. Only the thread handling the client's lines uses it
+    public class Limiter {
+
+        private final TokenBucket bucket;
+
+        // dropped lines since the client was last muted, or since it last went a mute's length without one
+        private int strikes = 0;
+        private long lastStrike;
+
+        private int mutes = 0;
+        private boolean muted = false;
+        private long mutedUntil;
+
+        Limiter(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+
+        // check takes the tokens for a line the client sent
+        // now - current System.nanoTime
+        //
+        // returns ALLOW if the line may be handled, and what to tell the client otherwise - synchronized, as the
+        // limiter of a resumed session moves on to the new connection's thread along with its strikes
+        public synchronized Verdict check(long now) {
+            if (this.muted) {
+                if (now - this.mutedUntil < 0) {
+                    return Verdict.MUTED;
+                }
+
+                this.muted = false;
+                this.strikes = 0;
+            }
+
+            if (this.bucket != null && !this.bucket.tryTake(now)) {
+                return this.strike(now);
+            }
+
+            // the client is within its own limit, but the server is not
+            if (FloodControl.this.global != null && !FloodControl.this.global.tryTake(now)) {
+                return Verdict.BUSY;
+            }
+
+            return Verdict.ALLOW;
+        }
+
+        // strike counts a line dropped for going over the client's limit
+        // now - current System.nanoTime
+        //
+        // returns WARN, MUTE or DISCONNECT
+        private Verdict strike(long now) {
+            if (this.strikes > 0 && now - this.lastStrike > FloodControl.this.muteTime) {
+                this.strikes = 0;
+            }
+            this.strikes++;
+            this.lastStrike = now;
+
+            if (this.strikes <= FloodControl.this.warnings) {
+                return Verdict.WARN;
+            }
+
+            if (this.mutes >= FloodControl.this.maxMutes) {
+                return Verdict.DISCONNECT;
+            }
+
+            this.mutes++;
+            this.muted = true;
+            this.mutedUntil = now + FloodControl.this.muteTime;
+            return Verdict.MUTE;
+        }
+    }
+}
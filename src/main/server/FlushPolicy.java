@@ -0,0 +1,75 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// FlushPolicy decides how msgs are coalesced on the way out to a client, and counts how well that is working.
+// Every msg already waiting for a client is written together, up to maxBatch msgs per write. Once a client
+// is receiving msgs in bursts, the output side may also hold a write back for up to maxDelay nanoseconds
+// to pick up more msgs - while traffic is light every msg is still written straight away.
+public class FlushPolicy {
+
+    // --- FIELDS ---
+    private final int maxBatch;
+    private final long maxDelay;
+
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+
+    // --- CONSTRUCTOR ---
+    // maxBatch - max number of msgs written together
+    // maxDelayMicros - max time a msg may be held back waiting for more msgs
+    public FlushPolicy(int maxBatch, long maxDelayMicros) {
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxDelay = Math.max(0, maxDelayMicros) * 1000;
+    }
+
+    // shouldLinger checks if the output side should wait for more msgs before writing a batch
+    // lastBatch - size of the client's previous batch
+    // batch - size of the batch waiting to be written
+    //
+    // returns boolean if the write should be held back
+    public boolean shouldLinger(int lastBatch, int batch) {
+        return this.maxDelay > 0 && lastBatch > 1 && batch < this.maxBatch;
+    }
+
+    // record counts a finished write
+    // batch - number of msgs written together
+    //
+    // returns null
+    public void record(int batch) {
+        this.flushes.increment();
+        this.frames.add(batch);
+    }
+
+    // maxBatch getter
+    public int getMaxBatch() {
+        return this.maxBatch;
+    }
+
+    // maxDelay getter - in nanoseconds
+    public long getMaxDelay() {
+        return this.maxDelay;
+    }
+
+    // flushes getter
+    public long getFlushes() {
+        return this.flushes.sum();
+    }
+
+    // averageBatch gets the average number of msgs written together
+    //
+    // returns the average batch size
+    public double averageBatch() {
+        long flushes = this.flushes.sum();
+        return flushes == 0 ? 0 : (double) this.frames.sum() / flushes;
+    }
+
+    // summary formats the counters for the server log
+    //
+    // returns the formatted counters
+    public String summary() {
+        return String.format("Output: %d flushes, %.2f msgs per flush (max %d, max delay %dus)",
+                this.getFlushes(), this.averageBatch(), this.maxBatch, this.maxDelay / 1000);
+    }
+}
@@ -0,0 +1,249 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+// Frame is a msg on its way out to clients. A frame is kept as a structured record - kind, sender, time and
+// body - and the text shown to clients is only rendered the first time something needs it. Each frame is
+// encoded at most once per protocol - the first client that needs the text or the binary form encodes it, and
+// every other client writes a read-only view of the same bytes. Two threads may race to render or encode the
+// same form, which only costs a duplicate encode.
+public final class Frame {
+
+    // --- FIELDS ---
+    private final byte type;
+    private final String text;
+
+    private final ClientInfo sender;
+    private final long time;
+    private final boolean whisper;
+    private final Collection<ClientInfo> users;
+
+    // presence version of a USERS snapshot, or of the join or leave of a JOINED or LEFT delta
+    private final long version;
+
+    // server notices are shown with the time they were sent
+    private final boolean stamped;
+
+    // when the frame was published, to measure how long it waits before being written to each client
+    private final long created = System.nanoTime();
+
+    private volatile String rendered;
+    private volatile ByteBuffer textBytes;
+    private volatile ByteBuffer binaryBytes;
+
+    // --- CONSTRUCTOR ---
+    // text - server notice or command reply, without the trailing newline
+    public Frame(String text) {
+        this(BinaryProtocol.TEXT, text, null, 0, false, null, 0, false);
+    }
+
+    private Frame(byte type, String text, ClientInfo sender, long time, boolean whisper,
+                  Collection<ClientInfo> users, long version, boolean stamped) {
+        this.type = type;
+        this.text = text;
+        this.sender = sender;
+        this.time = time;
+        this.whisper = whisper;
+        this.users = users;
+        this.version = version;
+        this.stamped = stamped;
+    }
+
+    // notice creates the frame of a server notice, shown with the time it was sent
+    // msg - notice, without the time
+    //
+    // returns the notice frame
+    public static Frame notice(String msg) {
+        return new Frame(BinaryProtocol.TEXT, msg, null, System.currentTimeMillis(), false, null, 0, true);
+    }
+
+    // chat creates the frame of a chat msg sent by a client
+    // sender - client that sent the msg
+    // time - time the msg was sent in epoch millis
+    // msg - msg sent by the client
+    // whisper - if the msg is a whisper
+    //
+    // returns the chat frame
+    public static Frame chat(ClientInfo sender, long time, String msg, boolean whisper) {
+        return new Frame(BinaryProtocol.CHAT, msg, sender, time, whisper, null, 0, false);
+    }
+
+    // users creates a frame that gives binary clients a snapshot of every logged in user - text clients never
+    // see it
+    // version - presence version of the snapshot
+    // users - every logged in user
+    //
+    // returns the users frame
+    public static Frame users(long version, Collection<ClientInfo> users) {
+        return new Frame(BinaryProtocol.USERS, null, null, 0, false, users, version, false);
+    }
+
+    // joined creates the delta of a user logging in - binary clients get the user's id & name, text clients
+    // get a notice
+    // version - presence version of the join
+    // user - user that logged in
+    // announce - if the join is news, rather than part of a new peer's list of users that clients are not shown
+    //
+    // returns the joined frame
+    public static Frame joined(long version, ClientInfo user, boolean announce) {
+        return new Frame(BinaryProtocol.JOINED, announce ? user.getName() + " has joined the Chat Server" : null,
+                user, System.currentTimeMillis(), false, null, version, true);
+    }
+
+    // left creates the delta of a user logging out - binary clients get the user's id, text clients get a notice
+    // version - presence version of the leave
+    // user - user that logged out
+    //
+    // returns the left frame
+    public static Frame left(long version, ClientInfo user) {
+        return new Frame(BinaryProtocol.LEFT, user.getName() + " has disconnected from the Chat Server",
+                user, System.currentTimeMillis(), false, null, version, true);
+    }
+
+    // buffer gets a new view of the encoded bytes, with its own position for a single write
+    // binary - if the client uses the binary protocol
+    //
+    // returns the read-only buffer, or null if the frame is not sent to clients using that protocol
+    public ByteBuffer buffer(boolean binary) {
+        if (binary) {
+            ByteBuffer bytes = this.binaryBytes;
+            if (bytes == null) {
+                bytes = ByteBuffer.wrap(this.encodeBinary()).asReadOnlyBuffer();
+                this.binaryBytes = bytes;
+            }
+            return bytes.duplicate();
+        }
+
+        if (this.text == null) {
+            return null;
+        }
+
+        ByteBuffer bytes = this.textBytes;
+        if (bytes == null) {
+            bytes = ByteBuffer.wrap(this.encodeText()).asReadOnlyBuffer();
+            this.textBytes = bytes;
+        }
+        return bytes.duplicate();
+    }
+
+    // sender getter - client that sent a chat msg, or user of a JOINED or LEFT delta, null for every other frame
+    public ClientInfo getSender() {
+        return this.sender;
+    }
+
+    // time getter - time a chat msg or notice was sent in epoch millis
+    public long getTime() {
+        return this.time;
+    }
+
+    // body getter - msg of a chat msg, or text of a notice, without the sender or time
+    public String getBody() {
+        return this.text;
+    }
+
+    // created getter - System.nanoTime() when the frame was published
+    public long getCreated() {
+        return this.created;
+    }
+
+    // getText renders the frame as a line of text, without the trailing newline
+    //
+    // returns the text form, or null for frames only sent to binary clients
+    public String getText() {
+        String rendered = this.rendered;
+        if (rendered == null) {
+            rendered = this.render();
+            this.rendered = rendered;
+        }
+
+        return rendered;
+    }
+
+    // render builds the text form of the frame
+    //
+    // returns the text form, or null for frames only sent to binary clients
+    private String render() {
+        if (this.text == null) {
+            return null;
+        }
+
+        if (this.type == BinaryProtocol.CHAT) {
+            String time = TimestampCache.format(this.time);
+            String name = this.sender.getName();
+
+            StringBuilder line = new StringBuilder(time.length() + name.length() + this.text.length() + 24);
+            line.append('[').append(time).append(" | ").append(name).append("] ");
+            if (this.whisper) {
+                line.append("(whispering...) ");
+            }
+
+            return line.append(this.text).toString();
+        }
+
+        if (this.stamped) {
+            return "[" + TimestampCache.format(this.time) + "] " + this.text;
+        }
+
+        return this.text;
+    }
+
+    // encodeText encodes the text form with the trailing newline
+    //
+    // returns the encoded bytes
+    private byte[] encodeText() {
+        byte[] encoded = this.getText().getBytes(StandardCharsets.UTF_8);
+        byte[] line = new byte[encoded.length + 1];
+
+        System.arraycopy(encoded, 0, line, 0, encoded.length);
+        line[encoded.length] = '\n';
+
+        return line;
+    }
+
+    // encodeBinary encodes the binary form, see BinaryProtocol for the layout
+    //
+    // returns the encoded bytes
+    private byte[] encodeBinary() {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        if (this.type == BinaryProtocol.CHAT) {
+            BinaryProtocol.writeVarInt(payload, this.sender.getId());
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                payload.write((int) (this.time >>> shift));
+            }
+            payload.write(this.whisper ? BinaryProtocol.FLAG_WHISPER : 0);
+
+            byte[] msg = this.text.getBytes(StandardCharsets.UTF_8);
+            payload.write(msg, 0, msg.length);
+        }
+        else if (this.type == BinaryProtocol.USERS) {
+            BinaryProtocol.writeVarLong(payload, this.version);
+            for (ClientInfo user : this.users) {
+                BinaryProtocol.writeVarInt(payload, user.getId());
+                BinaryProtocol.writeString(payload, user.getName());
+            }
+        }
+        else if (this.type == BinaryProtocol.JOINED || this.type == BinaryProtocol.LEFT) {
+            BinaryProtocol.writeVarLong(payload, this.version);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                payload.write((int) (this.time >>> shift));
+            }
+            BinaryProtocol.writeVarInt(payload, this.sender.getId());
+
+            if (this.type == BinaryProtocol.JOINED) {
+                payload.write(this.text != null ? BinaryProtocol.FLAG_ANNOUNCE : 0);
+                BinaryProtocol.writeString(payload, this.sender.getName());
+            }
+        }
+        else {
+            byte[] msg = this.getText().getBytes(StandardCharsets.UTF_8);
+            payload.write(msg, 0, msg.length);
+        }
+
+        return BinaryProtocol.frame(this.type, payload.toByteArray(), payload.size());
+    }
+}
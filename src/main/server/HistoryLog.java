@@ -0,0 +1,656 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+// HistoryLog is the append-only record of every chat msg sent on the server. Msgs are written by a single
+// background appender thread into fixed size segment files that are memory-mapped, so the chat threads only
+// hand a msg over to the appender and never wait on the disk. Every record is numbered in the order it was
+// written, and every segment keeps a sparse index of the offset & time of every INDEX_INTERVAL'th record, so
+// any record can be found from its sequence number, and the first record since a time from the time, by
+// reading at most one block. Every room & every logged in client also keeps the sequence numbers of its last
+// MAX_HISTORY msgs in memory, which lets a replay go straight to the msgs a client may see - the cost of a
+// replay grows with the msgs it returns, not with the size of the log, however quiet the room is. Only the
+// newest maxSegments segments are kept.
+public class HistoryLog implements Runnable {
+
+    // --- FIELDS ---
+    public static final byte BROADCAST = 0;
+    public static final byte WHISPER = 1;
+
+    // most msgs a single replay returns, and the number of sequence numbers kept for every room & user
+    public static final int MAX_HISTORY = Integer.getInteger("chat.maxHistory", 500);
+
+    private static final int INDEX_INTERVAL = 64;
+
+    // [seq] [time] [type] [scope length] [target length] [text length] of a record with empty strings
+    private static final int MIN_RECORD = 8 + 8 + 1 + 2 + 2 + 4;
+    private static final String PREFIX = "history-";
+    private static final String SUFFIX = ".log";
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    // oldest segment first, only the last segment is still being appended to
+    private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>();
+
+    // sequence numbers of the recent broadcasts to every room, and of the recent whispers sent or received by
+    // every logged in client. Whispers are only replayed to the login they were sent to or from - a client that
+    // later takes a freed name does not see them, and neither does anyone once the log is opened again
+    private final ConcurrentHashMap<String, RecentSeqs> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ClientInfo, RecentSeqs> users = new ConcurrentHashMap<>();
+
+    // sequence number of the next record, only used by the appender thread
+    private long nextSeq = 0;
+
+    private final ArrayBlockingQueue<Record> pending;
+    private final AtomicLong dropped = new AtomicLong();
+
+    // --- CONSTRUCTOR ---
+    // dir - directory the segment files are kept in, existing segments are picked up again
+    // segmentSize - size of each segment file in bytes
+    // maxSegments - number of segments kept before the oldest is deleted
+    // queueSize - number of msgs that may wait for the appender before new msgs are dropped
+    public HistoryLog(File dir, int segmentSize, int maxSegments, int queueSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = Math.max(1 << 20, segmentSize);
+        this.maxSegments = Math.max(2, maxSegments);
+        this.pending = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create " + dir);
+        }
+        this.recover();
+
+        Thread appender = new Thread(this, "history-appender");
+        appender.setDaemon(true);
+        appender.start();
+    }
+
+    // fromProperties creates the log from -Dchat.historyDir, -Dchat.historySegmentSize, -Dchat.historySegments
+    // and -Dchat.historyQueueSize
+    //
+    // returns the log, or null if history is disabled with -Dchat.historyDir= or the directory is unusable
+    public static HistoryLog fromProperties() {
+        String dir = System.getProperty("chat.historyDir", "history");
+        if (dir.equals("")) {
+            return null;
+        }
+
+        try {
+            return new HistoryLog(new File(dir), Integer.getInteger("chat.historySegmentSize", 16 << 20),
+                    Integer.getInteger("chat.historySegments", 8), Integer.getInteger("chat.historyQueueSize", 8192));
+        }
+        catch (IOException e) {
+            Server.serverPrint("ERROR: Failed to Open History Log in " + dir + ", History is Disabled");
+            return null;
+        }
+    }
+
+    // --- RUN ---
+    public void run() {
+        ArrayList<Record> batch = new ArrayList<>();
+
+        while (true) {
+            try {
+                batch.add(this.pending.take());
+                this.pending.drainTo(batch);
+
+                for (Record record : batch) {
+                    this.write(record);
+                }
+                batch.clear();
+            }
+            catch (Exception e) {
+                Server.serverPrint("ERROR: Failed to Append to History Log");
+                batch.clear();
+            }
+        }
+    }
+
+    // append hands a msg to the appender without waiting - if the appender has fallen too far behind the msg
+    // is left out of the history
+    // type - BROADCAST or WHISPER
+    // scope - room of a broadcast, or sender of a whisper
+    // target - recipient of a whisper, empty for broadcasts
+    // frame - msg to be recorded
+    // readers - logged in clients a whisper is replayed to, null for those not logged in on this server
+    //
+    // returns null
+    public void append(byte type, String scope, String target, Frame frame, ClientInfo... readers) {
+        if (!this.pending.offer(new Record(type, scope, target, System.currentTimeMillis(), frame, readers))) {
+            this.dropped.incrementAndGet();
+        }
+    }
+
+    // openUser starts keeping the whispers a client sends or receives from now on, until closeUser
+    // client - client that logged in
+    //
+    // returns null
+    public void openUser(ClientInfo client) {
+        this.users.putIfAbsent(client, new RecentSeqs());
+    }
+
+    // closeUser forgets the whispers of a client that logged out - they stay in the log, but are never replayed
+    // client - client that logged out
+    //
+    // returns null
+    public void closeUser(ClientInfo client) {
+        this.users.remove(client);
+    }
+
+    // recent reads the most recent msgs visible to a client, going straight to them through the sequence numbers
+    // kept for the client's room & login
+    // room - room the client is in, only broadcasts to this room are returned
+    // client - client asking, only whispers it sent or received since it logged in are returned
+    // count - max number of msgs to return, at most MAX_HISTORY
+    // since - System.currentTimeMillis before which msgs are left out, 0 for none
+    //
+    // returns the msgs, oldest first
+    public List<String> recent(String room, ClientInfo client, int count, long since) {
+        count = Math.min(count, MAX_HISTORY);
+        long from = since > 0 ? this.firstSince(since) : 0;
+        long[] broadcasts = HistoryLog.newest(this.rooms.get(room), count, from);
+        long[] whispers = HistoryLog.newest(client == null ? null : this.users.get(client), count, from);
+
+        // both are newest first, merged into the newest count of either
+        long[] seqs = new long[Math.min(count, broadcasts.length + whispers.length)];
+        int b = 0;
+        int w = 0;
+        for (int i = 0; i < seqs.length; i++) {
+            if (w == whispers.length || (b < broadcasts.length && broadcasts[b] > whispers[w])) {
+                seqs[i] = broadcasts[b++];
+            }
+            else {
+                seqs[i] = whispers[w++];
+            }
+        }
+
+        // read oldest first, so msgs in the same block are found by a single forward scan
+        ArrayList<String> result = new ArrayList<>(seqs.length);
+        Cursor cursor = new Cursor();
+        for (int i = seqs.length - 1; i >= 0; i--) {
+            if (cursor.seek(this.segments, seqs[i])) {
+                result.add(Segment.readText(cursor.buffer, cursor.pos + 4));
+            }
+        }
+
+        return result;
+    }
+
+    // dropped getter - number of msgs left out of the history because the appender fell behind
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    // write appends a single record to the newest segment, starting a new segment when it is full. Only
+    // called by the appender thread
+    // record - record to be written
+    //
+    // returns null
+    private void write(Record record) throws IOException {
+        byte[] scope = record.scope.getBytes(StandardCharsets.UTF_8);
+        byte[] target = record.target.getBytes(StandardCharsets.UTF_8);
+        byte[] text = record.frame.getText().getBytes(StandardCharsets.UTF_8);
+
+        // [length] [seq] [time] [type] [scope length] [scope] [target length] [target] [text length] [text]
+        int length = MIN_RECORD + scope.length + target.length + text.length;
+        if (4 + length + 4 > this.segmentSize) {
+            return;
+        }
+
+        Segment segment = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+        if (segment == null || segment.limit + 4 + length + 4 > this.segmentSize) {
+            segment = this.roll(segment);
+        }
+
+        ByteBuffer buffer = segment.buffer;
+        int pos = segment.limit;
+
+        long seq = this.nextSeq++;
+
+        buffer.position(pos);
+        buffer.putInt(length);
+        buffer.putLong(seq);
+        buffer.putLong(record.time);
+        buffer.put(record.type);
+        buffer.putShort((short) scope.length).put(scope);
+        buffer.putShort((short) target.length).put(target);
+        buffer.putInt(text.length).put(text);
+
+        segment.addRecord(pos, seq, record.time);
+        segment.limit = buffer.position();
+
+        // only once the record can be read
+        if (record.type == BROADCAST) {
+            this.rooms.computeIfAbsent(record.scope, key -> new RecentSeqs()).add(seq);
+            return;
+        }
+
+        // a client that logged out in the meantime is not added back, a whisper to oneself is only added once
+        for (int i = 0; i < record.readers.length; i++) {
+            RecentSeqs seqs = record.readers[i] == null ? null : this.users.get(record.readers[i]);
+            if (seqs != null && (i == 0 || record.readers[i] != record.readers[0])) {
+                seqs.add(seq);
+            }
+        }
+    }
+
+    // firstSince finds the first record written at or after a time - the index finds the block it is in
+    // without reading any record, and only that block is scanned. Records are written in about the order they
+    // were sent, so a record sent around the time may fall on either side
+    // time - System.currentTimeMillis of the oldest msg wanted
+    //
+    // returns the sequence number of the record, or of the record after the last one if there is none
+    private long firstSince(long time) {
+        long next = Long.MAX_VALUE;
+
+        for (int s = this.segments.size() - 1; s >= 0; s--) {
+            Segment segment = this.segments.get(s);
+            long first = segment.firstSeq;
+
+            // limit & index are published after the records they cover
+            int limit = segment.limit;
+            int indexed = segment.indexed;
+            int[] index = segment.index;
+            long[] times = segment.times;
+            if (first < 0 || indexed == 0) {
+                continue;
+            }
+            if (times[0] >= time) {
+                // the whole segment is recent enough, older segments may be too
+                next = first;
+                continue;
+            }
+
+            // newest block starting before the time
+            int low = 0;
+            int high = indexed - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (times[mid] < time) {
+                    low = mid;
+                }
+                else {
+                    high = mid - 1;
+                }
+            }
+
+            long seq = first + (long) low * INDEX_INTERVAL;
+            int pos = index[low];
+            while (pos < limit && segment.buffer.getLong(pos + 4 + 8) < time) {
+                pos += 4 + segment.buffer.getInt(pos);
+                seq++;
+            }
+
+            return seq;
+        }
+
+        return next == Long.MAX_VALUE ? 0 : next;
+    }
+
+    // newest gets the newest sequence numbers of a room or user
+    // seqs - sequence numbers of the room or user, null if it has none
+    // count - max number of sequence numbers
+    // from - oldest sequence number returned
+    //
+    // returns the sequence numbers, newest first
+    private static long[] newest(RecentSeqs seqs, int count, long from) {
+        if (seqs == null) {
+            return new long[0];
+        }
+
+        long[] newest = seqs.newest(count);
+        int kept = 0;
+        while (kept < newest.length && newest[kept] >= from) {
+            kept++;
+        }
+
+        return kept == newest.length ? newest : Arrays.copyOf(newest, kept);
+    }
+
+    // roll seals the current segment and starts a new one, deleting the oldest segment if there are too many
+    // current - segment being sealed, null if there is none
+    //
+    // returns the new segment
+    private Segment roll(Segment current) throws IOException {
+        long id = 0;
+        if (current != null) {
+            current.buffer.force();
+            id = current.id + 1;
+        }
+
+        Segment segment = new Segment(id, this.map(id));
+        this.segments.add(segment);
+
+        while (this.segments.size() > this.maxSegments) {
+            Segment oldest = this.segments.remove(0);
+            if (!this.file(oldest.id).delete()) {
+                Server.serverPrint("WARNING: Failed to Delete History Segment " + oldest.id);
+            }
+
+            // rooms whose msgs were all in deleted segments are forgotten, clients are forgotten as they log out
+            long first = this.segments.get(0).firstSeq;
+            this.rooms.values().removeIf(seqs -> seqs.last() < first);
+        }
+
+        return segment;
+    }
+
+    // recover picks up the segments left by a previous run, rebuilding their indexes and finding the end of
+    // the newest segment. Only broadcasts are replayed again, the logins whispers were sent to are gone
+    //
+    // returns null
+    private void recover() throws IOException {
+        File[] files = this.dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+
+        long[] ids = new long[files.length];
+        int found = 0;
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                ids[found] = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                found++;
+            }
+            catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+
+        ids = Arrays.copyOf(ids, found);
+        Arrays.sort(ids);
+
+        for (int i = Math.max(0, ids.length - this.maxSegments); i < ids.length; i++) {
+            Segment segment = new Segment(ids[i], this.map(ids[i]));
+            ByteBuffer buffer = segment.buffer;
+
+            // records are followed by zeros, a record that does not fit was never finished, and one that does
+            // not decode was never finished or was written by an older version of the log
+            int pos = 0;
+            int capacity = buffer.capacity();
+            while (pos + 4 <= capacity) {
+                int length = buffer.getInt(pos);
+                if (length < MIN_RECORD || pos + 4 + length > capacity) {
+                    break;
+                }
+
+                long seq = buffer.getLong(pos + 4);
+                long time = buffer.getLong(pos + 4 + 8);
+                byte type = buffer.get(pos + 4 + 16);
+                int scopeLength = buffer.getShort(pos + 4 + 17) & 0xFFFF;
+                if (seq < this.nextSeq || MIN_RECORD + scopeLength > length) {
+                    break;
+                }
+                int targetLength = buffer.getShort(pos + 4 + 19 + scopeLength) & 0xFFFF;
+                if (MIN_RECORD + scopeLength + targetLength > length || MIN_RECORD + scopeLength + targetLength
+                        + buffer.getInt(pos + 4 + 21 + scopeLength + targetLength) != length) {
+                    break;
+                }
+
+                segment.addRecord(pos, seq, time);
+                if (type == BROADCAST) {
+                    buffer.position(pos + 4 + 19);
+                    String room = Segment.readString(buffer, scopeLength);
+                    this.rooms.computeIfAbsent(room, key -> new RecentSeqs()).add(seq);
+                }
+                this.nextSeq = seq + 1;
+                pos += 4 + length;
+            }
+            segment.limit = pos;
+
+            this.segments.add(segment);
+        }
+    }
+
+    // map maps a segment file into memory, creating the file if needed
+    // id - id of the segment
+    //
+    // returns the mapped segment
+    private MappedByteBuffer map(long id) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(this.file(id), "rw")) {
+            long size = Math.max(file.length(), this.segmentSize);
+
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    // file gets the file of a segment
+    // id - id of the segment
+    //
+    // returns the segment's file
+    private File file(long id) {
+        return new File(this.dir, String.format("%s%016d%s", PREFIX, id, SUFFIX));
+    }
+
+    // Record is a msg waiting for the appender
+    private static final class Record {
+        final byte type;
+        final String scope;
+        final String target;
+        final long time;
+        final Frame frame;
+        final ClientInfo[] readers;
+
+        Record(byte type, String scope, String target, long time, Frame frame, ClientInfo[] readers) {
+            this.type = type;
+            this.scope = scope;
+            this.target = target;
+            this.time = time;
+            this.frame = frame;
+            this.readers = readers;
+        }
+    }
+
+    // Segment is a single mapped segment file and its sparse index of the offset & time of the first record of
+    // every block. The records of a segment are numbered one after another from firstSeq, so the index entry of
+    // a block is found from a sequence number without a search, and from a time by a binary search. The index &
+    // limit are only written by the appender thread, and are published after the records they cover so replays
+    // can read them at any time
+    private static final class Segment {
+        final long id;
+        final MappedByteBuffer buffer;
+
+        volatile long firstSeq = -1;
+        volatile int[] index = new int[64];
+        volatile long[] times = new long[64];
+        volatile int indexed = 0;
+        volatile int limit = 0;
+
+        private int records = 0;
+
+        Segment(long id, MappedByteBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+        }
+
+        // addRecord counts a new record, adding it to the index if it starts a new block
+        // pos - offset of the record
+        // seq - sequence number of the record
+        // time - System.currentTimeMillis the record was sent at
+        //
+        // returns null
+        void addRecord(int pos, long seq, long time) {
+            if (this.records == 0) {
+                this.firstSeq = seq;
+            }
+            if (this.records++ % INDEX_INTERVAL != 0) {
+                return;
+            }
+
+            int[] index = this.index;
+            long[] times = this.times;
+            if (this.indexed == index.length) {
+                index = Arrays.copyOf(index, index.length * 2);
+                times = Arrays.copyOf(times, times.length * 2);
+                this.index = index;
+                this.times = times;
+            }
+            index[this.indexed] = pos;
+            times[this.indexed] = time;
+            this.indexed = this.indexed + 1;
+        }
+
+        // readText decodes the text of a record
+        // buffer - replay's own view of the segment
+        // pos - offset of the record, just past its length
+        //
+        // returns the text
+        static String readText(ByteBuffer buffer, int pos) {
+            buffer.position(pos + 16 + 1);
+
+            // past the scope & target
+            for (int i = 0; i < 2; i++) {
+                int length = buffer.getShort() & 0xFFFF;
+                buffer.position(buffer.position() + length);
+            }
+
+            return readString(buffer, buffer.getInt());
+        }
+
+        // readString decodes a UTF-8 string at the buffer's position
+        // buffer - buffer holding the string
+        // length - length of the string in bytes
+        //
+        // returns the string
+        static String readString(ByteBuffer buffer, int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Cursor walks the records of the log by sequence number for a single replay, scanning forward from where it
+    // is when the next record is in the same block, and jumping through the index otherwise
+    private static final class Cursor {
+        Segment segment;
+        ByteBuffer buffer;
+        int limit;
+        int pos;
+        long seq = -1;
+
+        // seek moves the cursor to a record
+        // segments - segments of the log, oldest first
+        // target - sequence number of the record
+        //
+        // returns boolean if the record is still in the log
+        boolean seek(List<Segment> segments, long target) {
+            boolean near = this.segment != null && target >= this.seq && target - this.seq < INDEX_INTERVAL;
+            if (near && this.scan(target)) {
+                return true;
+            }
+
+            return this.jump(segments, target) && this.scan(target);
+        }
+
+        // scan moves the cursor forward through its segment to a record
+        // target - sequence number of the record
+        //
+        // returns boolean if the record is in the cursor's segment
+        private boolean scan(long target) {
+            while (this.seq < target && this.pos < this.limit) {
+                this.pos += 4 + this.buffer.getInt(this.pos);
+                this.seq++;
+            }
+
+            return this.pos < this.limit;
+        }
+
+        // jump moves the cursor to the start of the block holding a record
+        // segments - segments of the log, oldest first
+        // target - sequence number of the record
+        //
+        // returns boolean if the record is still in the log
+        private boolean jump(List<Segment> segments, long target) {
+            for (int s = segments.size() - 1; s >= 0; s--) {
+                Segment segment = segments.get(s);
+                long first = segment.firstSeq;
+                if (first < 0 || target < first) {
+                    continue;
+                }
+
+                // limit & index are published after the records they cover
+                int limit = segment.limit;
+                int indexed = segment.indexed;
+                int[] index = segment.index;
+                long block = (target - first) / INDEX_INTERVAL;
+                if (block >= indexed) {
+                    return false;
+                }
+
+                this.segment = segment;
+                this.buffer = segment.buffer.duplicate();
+                this.limit = limit;
+                this.pos = index[(int) block];
+                this.seq = first + block * INDEX_INTERVAL;
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    // RecentSeqs is a ring of the sequence numbers of the last MAX_HISTORY msgs of a room or user - written by
+    // the appender, read by replays
+    private static final class RecentSeqs {
+        private long[] seqs = new long[16];
+        private int count = 0;
+        private int next = 0;
+
+        // add adds the sequence number of a new msg, dropping the oldest once the ring is full
+        // seq - sequence number of the msg
+        //
+        // returns null
+        synchronized void add(long seq) {
+            if (this.count == this.seqs.length && this.seqs.length < MAX_HISTORY) {
+                long[] grown = new long[Math.min(MAX_HISTORY, this.seqs.length * 2)];
+                for (int i = 0; i < this.count; i++) {
+                    grown[i] = this.seqs[(this.next + i) % this.count];
+                }
+                this.seqs = grown;
+                this.next = this.count;
+            }
+
+            this.seqs[this.next] = seq;
+            this.next = (this.next + 1) % this.seqs.length;
+            this.count = Math.min(this.count + 1, this.seqs.length);
+        }
+
+        // newest gets the newest sequence numbers
+        // count - max number of sequence numbers
+        //
+        // returns the sequence numbers, newest first
+        synchronized long[] newest(int count) {
+            long[] newest = new long[Math.min(count, this.count)];
+            for (int i = 0; i < newest.length; i++) {
+                newest[i] = this.seqs[Math.floorMod(this.next - 1 - i, this.seqs.length)];
+            }
+
+            return newest;
+        }
+
+        // last gets the newest sequence number
+        //
+        // returns the sequence number
+        synchronized long last() {
+            return this.seqs[Math.floorMod(this.next - 1, this.seqs.length)];
+        }
+    }
+}
@@ -0,0 +1,528 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// MsgQueue holds the msgs waiting to be sent to a single client. Broadcasts are not copied into the queue -
+// the queue only keeps a read cursor into the server's shared BroadcastLog. Whispers go into a small lane of
+// their own. The client's ServerOutputThread parks in take() until a msg arrives, so an idle client does not
+// use any cpu. The non-blocking engine registers a listener instead and drains the queue with poll() on its
+// event loop. How far a client may fall behind is bounded by the server's QueuePolicy. When the client changes
+// rooms, the queue finishes the broadcasts the old room already owed the client before moving its cursor over
+// to the new room's log. A queue of a client that can resume its session numbers every msg it hands out and
+// keeps the last few, and is only detached while the client has no connection - see ResumableSessions.
+public class MsgQueue {
+
+    // --- FIELDS ---
+    private final QueuePolicy policy;
+
+    // only written by the client's output side, read by publishers to check the client's lag. version is odd
+    // while the output side is moving between logs, so publishers can tell the pair is changing
+    private volatile BroadcastLog broadcastLog;
+    private volatile long cursor;
+    private volatile int version = 0;
+
+    // room changes not yet reached by the cursor
+    private final ConcurrentLinkedQueue<LogSwitch> switches = new ConcurrentLinkedQueue<>();
+    private BroadcastLog latestLog;
+
+    // broadcasts from skipFrom up to skipTo are dropped under the DROP_NEWEST policy
+    private long skipFrom = -1;
+    private long skipTo = -1;
+
+    private final ConcurrentLinkedQueue<Frame> whispers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger whisperCount = new AtomicInteger();
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean overflowed = false;
+    private volatile Runnable overflowHandler;
+
+    // last msgs handed out by a resumable queue, by sequence number - null if the client can not resume. The
+    // output side of the client's old connection may still be handing out a msg while a new connection resumes
+    // the client on another thread, so the msgs & counters are only touched while holding replayLock
+    private volatile Frame[] replay;
+    private final Object replayLock = new Object();
+    private long sent = 0;
+    private long resend = 1;
+
+    private volatile boolean closed = false;
+    private volatile boolean detached = false;
+
+    // bumped every time the queue is detached - the output side of a connection only takes msgs while the queue
+    // is still on the attachment it started on, so the old connection of a resumed client can not take msgs meant
+    // for the new one, even if it only wakes up after the client was attached again
+    private final AtomicInteger attachment = new AtomicInteger();
+    private volatile Thread waiter;
+    private volatile Runnable listener;
+
+    // --- CONSTRUCTOR ---
+    // broadcastLog - log of broadcasts, the queue starts at its current head
+    // policy - what to do when the client falls behind
+    public MsgQueue(BroadcastLog broadcastLog, QueuePolicy policy) {
+        this.broadcastLog = broadcastLog;
+        this.latestLog = broadcastLog;
+        this.policy = policy;
+        this.cursor = broadcastLog.getHead();
+    }
+
+    // switchLog moves the queue over to another room's broadcast log - the client still gets every broadcast
+    // published to the old log before the switch, and every broadcast published to the new log after it. Only
+    // called by the thread handling the client's room changes
+    // newLog - broadcast log of the room the client joined
+    //
+    // returns null
+    public void switchLog(BroadcastLog newLog) {
+        BroadcastLog oldLog = this.latestLog;
+        this.latestLog = newLog;
+
+        this.switches.offer(new LogSwitch(oldLog, oldLog.getHead(), newLog, newLog.getHead()));
+        this.signal();
+    }
+
+    // put appends a whisper to the end of the whisper lane and wakes the client's output side
+    // frame - encoded msg to be queued
+    //
+    // returns null
+    public void put(Frame frame) {
+        if (this.closed) {
+            return;
+        }
+
+        if (this.whisperCount.get() >= this.policy.getMaxWhispers()) {
+            if (this.policy.isDisconnect()) {
+                this.overflow();
+                return;
+            }
+            else if (this.policy.isDropNewest()) {
+                this.dropped.incrementAndGet();
+                return;
+            }
+            else if (this.whispers.poll() != null) {
+                this.whisperCount.decrementAndGet();
+                this.dropped.incrementAndGet();
+            }
+        }
+
+        this.whispers.offer(frame);
+        this.whisperCount.incrementAndGet();
+        this.signal();
+    }
+
+    // signal wakes the client's output side after a msg has been put or broadcast
+    //
+    // returns null
+    public void signal() {
+        this.checkOverflow();
+
+        Thread waiter = this.waiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+
+        Runnable listener = this.listener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    // checkOverflow applies the DISCONNECT policy if the client is too far behind - a client stuck in a write
+    // never gets to poll, so the policy is checked by the publisher, or the client's shard
+    //
+    // returns null
+    public void checkOverflow() {
+        if (this.policy.isDisconnect() && !this.closed && this.lag() > this.policy.getMaxLag()) {
+            this.overflow();
+        }
+    }
+
+    // take removes the next msg from the queue, waiting until one is available. Only the client's
+    // ServerOutputThread may call take
+    // attachment - attachment the output side started on, see getAttachment
+    //
+    // returns the next msg, or null if the queue has been closed, has overflowed or was detached since
+    public Frame take(int attachment) throws InterruptedException {
+        while (true) {
+            Frame msg = this.poll(attachment);
+            if (msg != null || this.isDone(attachment)) {
+                return msg;
+            }
+
+            // check again after publishing the waiter, so a signal between the poll and park is not lost
+            this.waiter = Thread.currentThread();
+            msg = this.poll(attachment);
+            if (msg != null || this.isDone(attachment)) {
+                this.waiter = null;
+                return msg;
+            }
+
+            LockSupport.park(this);
+            this.waiter = null;
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    // poll removes the next msg from the queue, waiting for at most the given time. Only the client's
+    // ServerOutputThread may call this poll
+    // nanos - max time to wait in nanoseconds
+    // attachment - attachment the output side started on, see getAttachment
+    //
+    // returns the next msg, or null if none arrived in time or the queue has been closed, has overflowed or was
+    // detached since
+    public Frame poll(long nanos, int attachment) {
+        long deadline = System.nanoTime() + nanos;
+
+        while (true) {
+            Frame msg = this.poll(attachment);
+            if (msg != null || this.isDone(attachment)) {
+                return msg;
+            }
+
+            this.waiter = Thread.currentThread();
+            msg = this.poll(attachment);
+            if (msg != null || this.isDone(attachment)) {
+                this.waiter = null;
+                return msg;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                this.waiter = null;
+                return null;
+            }
+
+            LockSupport.parkNanos(this, remaining);
+            this.waiter = null;
+        }
+    }
+
+    // poll removes the next msg from the queue without waiting - msgs being sent again after a resume go first,
+    // then a warning once msgs have been dropped, then whispers, then broadcasts
+    //
+    // returns the next msg, or null if the queue is empty, has been closed, has overflowed or is detached
+    public Frame poll() {
+        return this.poll(this.attachment.get());
+    }
+
+    // poll removes the next msg from the queue without waiting, as long as the queue is still on the attachment
+    // the output side started on - checked under replayLock, so it is settled before a resume picks the msgs
+    // to send again
+    // attachment - attachment the output side started on, see getAttachment
+    //
+    // returns the next msg, or null if the queue is empty, has been closed, has overflowed or was detached since
+    public Frame poll(int attachment) {
+        Frame[] replay = this.replay;
+        if (replay == null) {
+            return this.next();
+        }
+
+        synchronized (this.replayLock) {
+            if (this.isDone(attachment)) {
+                return null;
+            }
+
+            if (this.resend <= this.sent) {
+                return replay[(int) (this.resend++ % replay.length)];
+            }
+
+            Frame msg = this.next();
+            if (msg != null) {
+                this.sent++;
+                replay[(int) (this.sent % replay.length)] = msg;
+                this.resend = this.sent + 1;
+            }
+
+            return msg;
+        }
+    }
+
+    // next takes the next msg off of the whispers & broadcasts
+    //
+    // returns the next msg, or null if the queue is empty, has been closed, has overflowed or is detached
+    private Frame next() {
+        while (true) {
+            if (this.isDone()) {
+                return null;
+            }
+
+            this.applySwitches();
+
+            // broadcasts of the old room are only read up to the point the client left it
+            long head = this.broadcastLog.getHead();
+            LogSwitch pending = this.switches.peek();
+            long end = pending == null ? head : Math.min(head, pending.oldEnd);
+
+            this.checkLag(head);
+
+            long dropped = this.dropped.getAndSet(0);
+            if (dropped > 0) {
+                return new Frame("WARNING: " + dropped + " msgs were dropped because your connection fell behind");
+            }
+
+            Frame msg = this.whispers.poll();
+            if (msg != null) {
+                this.whisperCount.decrementAndGet();
+                return msg;
+            }
+
+            long cursor = this.cursor;
+            while (cursor < end) {
+                if (this.skipFrom >= 0 && cursor >= this.skipFrom) {
+                    cursor = Math.max(cursor, Math.min(this.skipTo, end));
+                    this.skipFrom = -1;
+                    continue;
+                }
+
+                // if the client fell so far behind that the log wrapped, skip ahead to the oldest msg left
+                if (cursor < this.broadcastLog.oldest()) {
+                    this.dropped.addAndGet(this.broadcastLog.oldest() - cursor);
+                    cursor = this.broadcastLog.oldest();
+                    continue;
+                }
+
+                msg = this.broadcastLog.get(cursor);
+                if (msg != null) {
+                    this.cursor = cursor + 1;
+                    return msg;
+                }
+            }
+            this.cursor = cursor;
+
+            // the old room is finished - carry on in the new room
+            if (pending == null || cursor < pending.oldEnd) {
+                return null;
+            }
+        }
+    }
+
+    // applySwitches moves the cursor over to the next room's log once the old room's broadcasts are finished
+    //
+    // returns null
+    private void applySwitches() {
+        LogSwitch next;
+        while ((next = this.switches.peek()) != null && this.cursor >= next.oldEnd) {
+            this.switches.poll();
+
+            this.version++;
+            this.broadcastLog = next.newLog;
+            this.cursor = next.newStart;
+            this.skipFrom = -1;
+            this.version++;
+        }
+    }
+
+    // checkLag applies the queue policy if the client is further behind the broadcast log than allowed
+    // head - current head of the broadcast log
+    //
+    // returns null
+    private void checkLag(long head) {
+        long lag = head - this.cursor;
+        if (lag <= this.policy.getMaxLag()) {
+            return;
+        }
+
+        if (this.policy.isDisconnect()) {
+            this.overflow();
+        }
+
+        // keep the broadcasts the client was already due, and drop everything published since it fell behind
+        else if (this.policy.isDropNewest()) {
+            long keepUntil = this.cursor + this.policy.getMaxLag();
+            if (this.skipFrom < 0) {
+                this.skipFrom = keepUntil;
+                this.skipTo = keepUntil;
+            }
+
+            this.dropped.addAndGet(head - this.skipTo);
+            this.skipTo = head;
+        }
+
+        // skip the oldest broadcasts, so the client is exactly maxLag behind
+        else {
+            this.dropped.addAndGet(lag - this.policy.getMaxLag());
+            this.cursor = head - this.policy.getMaxLag();
+        }
+    }
+
+    // lag gets how many broadcasts the client is behind the broadcast log
+    //
+    // returns the number of broadcasts not yet sent to the client, or 0 while the client is changing rooms
+    public long lag() {
+        int version = this.version;
+        if ((version & 1) != 0) {
+            return 0;
+        }
+
+        long lag = this.broadcastLog.getHead() - this.cursor;
+        return version == this.version ? lag : 0;
+    }
+
+    // depth gets how many msgs are waiting to be sent to the client
+    //
+    // returns the number of waiting whispers & broadcasts
+    public long depth() {
+        return this.whisperCount.get() + Math.max(0, this.lag());
+    }
+
+    // overflow marks the queue as overflowed under the DISCONNECT policy and runs the overflow handler once
+    //
+    // returns null
+    private void overflow() {
+        if (this.overflowed) {
+            return;
+        }
+        this.overflowed = true;
+
+        Runnable handler = this.overflowHandler;
+        if (handler != null) {
+            handler.run();
+        }
+
+        Thread waiter = this.waiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    // isDone checks if the client's output side should stop taking msgs
+    //
+    // returns boolean if the queue has been closed, has overflowed or is detached
+    private boolean isDone() {
+        return this.closed || this.overflowed || this.detached;
+    }
+
+    // isDone checks if the output side that started on an attachment has to stop
+    // attachment - attachment the output side started on
+    //
+    // returns boolean if the queue has been closed, has overflowed, is detached or was detached since
+    private boolean isDone(int attachment) {
+        return this.isDone() || attachment != this.attachment.get();
+    }
+
+    // enableReplay makes the queue number every msg it hands out and keep the last few, so the client can resume
+    // its session. Called before the client's output side starts
+    // size - number of msgs kept
+    //
+    // returns null
+    public void enableReplay(int size) {
+        this.replay = new Frame[size];
+    }
+
+    // detach stops the client's output side without closing the queue, which keeps collecting msgs while the
+    // client has no connection
+    //
+    // returns null
+    public void detach() {
+        this.detached = true;
+        this.attachment.incrementAndGet();
+        this.listener = null;
+
+        Thread waiter = this.waiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    // resume sends every msg after the last one the client saw again, as far as the queue still has them. Only
+    // called once the queue is detached - the lock waits out a msg the old output side was still handing out
+    // lastSeq - sequence number of the last msg the client saw
+    //
+    // returns the sequence number of the msg before the first one sent again - above lastSeq if some were lost
+    public long resume(long lastSeq) {
+        synchronized (this.replayLock) {
+            long oldest = Math.max(1, this.sent - this.replay.length + 1);
+
+            long from = Math.max(Math.min(lastSeq, this.sent), oldest - 1);
+            this.resend = from + 1;
+
+            return from;
+        }
+    }
+
+    // attach lets the output side of the client's new connection take msgs from a detached queue
+    //
+    // returns null
+    public void attach() {
+        this.detached = false;
+        this.signal();
+    }
+
+    // attachment getter - read by the output side of a connection before it starts taking msgs
+    public int getAttachment() {
+        return this.attachment.get();
+    }
+
+    // isOverflowed checks if the client fell too far behind under the DISCONNECT policy
+    //
+    // returns boolean if the client should be disconnected
+    public boolean isOverflowed() {
+        return this.overflowed;
+    }
+
+    // isEmpty checks if there are any msgs waiting in the queue
+    //
+    // returns boolean if queue is empty
+    public boolean isEmpty() {
+        if (this.replay != null) {
+            synchronized (this.replayLock) {
+                if (this.resend <= this.sent) {
+                    return false;
+                }
+            }
+        }
+
+        return this.whispers.isEmpty() && this.dropped.get() == 0 && this.switches.isEmpty() && this.lag() <= 0;
+    }
+
+    // listener setter - listener is run every time a msg is put on the queue or broadcast
+    public synchronized void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    // overflowHandler setter - handler is run once, from whichever thread notices the client fell too far behind
+    public synchronized void setOverflowHandler(Runnable overflowHandler) {
+        this.overflowHandler = overflowHandler;
+    }
+
+    // removeListener clears the listener & overflow handler, unless a connection that took the client over has
+    // already set its own - the old connection of a resumed client may only notice it was dropped afterwards
+    // listener - listener the connection set, used for both
+    //
+    // returns null
+    public synchronized void removeListener(Runnable listener) {
+        if (this.listener == listener) {
+            this.listener = null;
+        }
+        if (this.overflowHandler == listener) {
+            this.overflowHandler = null;
+        }
+    }
+
+    // close marks the queue as closed and wakes the waiting ServerOutputThread so it can exit
+    //
+    // returns null
+    public void close() {
+        this.closed = true;
+        this.signal();
+    }
+
+    // LogSwitch records a room change - the old log is read up to oldEnd, then the new log from newStart
+    private static final class LogSwitch {
+        final BroadcastLog oldLog;
+        final long oldEnd;
+        final BroadcastLog newLog;
+        final long newStart;
+
+        LogSwitch(BroadcastLog oldLog, long oldEnd, BroadcastLog newLog, long newStart) {
+            this.oldLog = oldLog;
+            this.oldEnd = oldEnd;
+            this.newLog = newLog;
+            this.newStart = newStart;
+        }
+    }
+}
@@ -0,0 +1,457 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// NioConnection is a single client connection of the non-blocking server engine. It decodes lines (or binary
+// frames, once the client has switched protocols) out of the bytes read by its NioEventLoop, feeds them to the
+// client's ChatSession, and writes the client's msg queue back out to the channel. Every method but close and
+// scheduleFlush is only ever called from the owning NioEventLoop.
+public class NioConnection implements ClientConnection {
+
+    // --- FIELDS ---
+    private static final int MAX_PARTIAL_LENGTH = 2 * BinaryProtocol.MAX_PAYLOAD;
+    private static final byte[] EMPTY_LINE = new byte[0];
+
+    private Server server;
+    private NioEventLoop loop;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ChatSession session;
+    private MsgQueue queue;
+
+    // bytes of a line or frame that has not been fully received yet
+    private byte[] partial;
+    private int partialLength = 0;
+
+    // bytes that could not be written without blocking, waiting for the channel to become writable
+    private ByteBuffer pending;
+
+    // compresses the whole stream if the client negotiated compression, otherwise null
+    private DeflateStream deflate;
+
+    private AtomicBoolean scheduled = new AtomicBoolean(false);
+    private boolean closed = false;
+
+    // listener the connection sets on the client's queue, kept so only this connection's listener is removed
+    private final Runnable flush = this::scheduleFlush;
+
+    // set by another thread asking the event loop to disconnect the client
+    private volatile boolean closeRequested = false;
+
+    InetAddress address;
+
+    // --- CONSTRUCTOR ---
+    public NioConnection(Server server, NioEventLoop loop, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.address = channel.socket().getInetAddress();
+        this.session = new ChatSession(server, this);
+    }
+
+    // handleRead reads whatever the client has sent and handles every complete line in it
+    // buffer - read buffer shared by the event loop
+    //
+    // returns null
+    void handleRead(ByteBuffer buffer) {
+        try {
+            buffer.clear();
+            if (this.channel.read(buffer) < 0) {
+                Server.serverPrint("WARNING: Dirty Disconnection " + this.address);
+                this.disconnect();
+                return;
+            }
+            buffer.flip();
+
+            int start = buffer.position();
+            while (buffer.hasRemaining() && !this.closed && !this.session.isBinary()) {
+                if (buffer.get() == '\n') {
+                    boolean connected = this.handleLine(buffer, start, buffer.position() - 1);
+                    start = buffer.position();
+
+                    if (!connected) {
+                        this.disconnect();
+                        return;
+                    }
+
+                    // attach to the msg queue as soon as the handshake is complete
+                    if (this.queue == null && this.session.getClient() != null) {
+                        this.attachQueue();
+                    }
+                }
+            }
+
+            if (!this.closed) {
+                this.appendPartial(buffer, start, buffer.limit());
+
+                if (this.session.isBinary()) {
+                    this.handleFrames();
+                }
+            }
+        }
+        catch (Exception e) {
+            Server.serverPrint("WARNING: Failed to Read Msg " + this.address);
+            Server.serverPrint("Force Removing Connection " + this.address +  "\n");
+            this.disconnect();
+        }
+    }
+
+    // handleFrames handles every complete binary frame in the partial bytes - the client only sends TEXT frames
+    //
+    // returns null
+    private void handleFrames() throws Exception {
+        int offset = 0;
+
+        while (offset < this.partialLength && !this.closed) {
+            int length = BinaryProtocol.frameLength(this.partial, offset, this.partialLength);
+            if (length < 0) {
+                break;
+            }
+
+            if (this.partial[offset] == BinaryProtocol.TEXT) {
+                int payload = BinaryProtocol.payloadOffset(this.partial, offset);
+
+                if (!this.session.handleLine(this.partial, payload, offset + length - payload)) {
+                    this.disconnect();
+                    return;
+                }
+            }
+
+            offset += length;
+        }
+
+        this.partialLength -= offset;
+        if (this.partialLength > 0) {
+            System.arraycopy(this.partial, offset, this.partial, 0, this.partialLength);
+        }
+        else if (this.partial != null && this.partial.length > 1024) {
+            this.partial = null;
+        }
+    }
+
+    // handleLine hands the bytes of a line to the session, prepending any partial line from earlier reads
+    // buffer - buffer holding the end of the line
+    // start - index of the first byte of the line in buffer
+    // end - index of the newline in buffer
+    //
+    // returns false if the client asked to disconnect
+    private boolean handleLine(ByteBuffer buffer, int start, int end) throws Exception {
+        this.appendPartial(buffer, start, end);
+        if (this.partialLength == 0) {
+            return this.session.handleLine(EMPTY_LINE, 0, 0);
+        }
+
+        int length = this.partialLength;
+        if (this.partial[length - 1] == '\r') {
+            length--;
+        }
+
+        // the line is done with once the session returns, so the partial bytes can be reused right after
+        boolean connected = this.session.handleLine(this.partial, 0, length);
+        this.partialLength = 0;
+        if (this.partial != null && this.partial.length > 1024) {
+            this.partial = null;
+        }
+
+        return connected;
+    }
+
+    // appendPartial copies bytes out of the shared read buffer into this connection's partial line
+    // buffer - buffer holding the bytes
+    // start - index of the first byte to copy
+    // end - index after the last byte to copy
+    //
+    // returns null
+    private void appendPartial(ByteBuffer buffer, int start, int end) throws IOException {
+        int length = end - start;
+        if (length == 0) {
+            return;
+        }
+
+        if (this.partialLength + length > MAX_PARTIAL_LENGTH) {
+            throw new IOException("line too long");
+        }
+
+        if (this.partial == null || this.partial.length < this.partialLength + length) {
+            byte[] grown = new byte[Math.max(128, (this.partialLength + length) * 2)];
+            if (this.partial != null) {
+                System.arraycopy(this.partial, 0, grown, 0, this.partialLength);
+            }
+            this.partial = grown;
+        }
+
+        for (int i = start; i < end; i++) {
+            this.partial[this.partialLength++] = buffer.get(i);
+        }
+    }
+
+    // attachQueue starts listening to the client's msg queue once the client has been added to the server
+    //
+    // returns null
+    private void attachQueue() {
+        String name = this.session.getClient().getName();
+
+        this.queue = this.server.getMsgQueue(name);
+        if (this.queue == null) {
+            return;
+        }
+
+        if (this.session.isDeflate()) {
+            this.deflate = new DeflateStream();
+        }
+
+        this.loop.attach(this.session.getClient(), this);
+
+        this.queue.setListener(this.flush);
+        this.queue.setOverflowHandler(this.flush);
+        this.scheduleFlush();
+
+        Server.serverPrint(this.address + " confirmed as user " + name + "\n");
+    }
+
+    // scheduleFlush asks the event loop to drain the msg queue - called from whichever thread put the msg
+    //
+    // returns null
+    private void scheduleFlush() {
+        if (this.scheduled.compareAndSet(false, true)) {
+            this.loop.schedule(this);
+        }
+    }
+
+    // flushBroadcast drains the msg queue after the loop was woken by a broadcast to the client's room. A
+    // client that is backed up is only checked against the queue policy until its channel is writable again
+    // batch - write batch shared by the event loop
+    // created - when each frame of the batch was published, shared by the event loop
+    //
+    // returns null
+    void flushBroadcast(ByteBuffer[] batch, long[] created) {
+        if (this.pending != null) {
+            this.queue.checkOverflow();
+            if (!this.queue.isOverflowed()) {
+                return;
+            }
+        }
+
+        this.flushQueue(batch, created);
+    }
+
+    // flushQueue writes as many queued msgs to the channel as it can without blocking, gathering every frame
+    // that is waiting, up to the max batch size, into each write. The event loop never holds a write back,
+    // frames that arrive during a pass over the selected keys are coalesced on their own
+    // batch - write batch shared by the event loop
+    // created - when each frame of the batch was published, shared by the event loop
+    //
+    // returns null
+    void flushQueue(ByteBuffer[] batch, long[] created) {
+        this.scheduled.set(false);
+
+        if (this.closeRequested) {
+            this.disconnect();
+            return;
+        }
+
+        // the client fell too far behind - cut it off on the event loop
+        if (this.queue != null && this.queue.isOverflowed()) {
+            Server.serverPrint("WARNING: " + this.session.getClient().getName() + " Fell too far Behind "
+                    + this.address);
+            this.disconnect();
+            return;
+        }
+
+        try {
+            // wait for the channel to become writable before taking more msgs off the queue
+            while (!this.closed && this.queue != null && this.pending == null) {
+                int size = 0;
+
+                boolean binary = this.session.isBinary();
+                int polled = 0;
+
+                // frames that are not sent to clients using this client's protocol are skipped
+                Frame frame;
+                while (size < batch.length && (frame = this.queue.poll()) != null) {
+                    ByteBuffer bytes = frame.buffer(binary);
+                    if (bytes != null) {
+                        created[size] = frame.getCreated();
+                        batch[size++] = bytes;
+                    }
+                    polled++;
+                }
+
+                if (polled == 0) {
+                    return;
+                }
+                if (size == 0) {
+                    continue;
+                }
+
+                long written;
+                if (this.deflate != null) {
+                    ByteBuffer compressed = this.deflate.compress(batch, 0, size);
+                    written = this.channel.write(compressed);
+                    if (compressed.hasRemaining()) {
+                        this.appendPending(compressed);
+                    }
+                }
+                else {
+                    written = this.channel.write(batch, 0, size);
+                }
+                this.server.getFlushPolicy().record(size);
+
+                // frames left pending still count as sent, they no longer wait on the queue
+                ServerMetrics metrics = this.server.getMetrics();
+                long now = System.nanoTime();
+                for (int i = 0; i < size; i++) {
+                    metrics.recordLatency(now - created[i]);
+                }
+                metrics.recordOut(size, written);
+
+                // channel is backed up - keep whatever was not written until it is writable
+                for (int i = 0; i < size; i++) {
+                    if (batch[i].hasRemaining()) {
+                        this.appendPending(batch[i]);
+                    }
+                    batch[i] = null;
+                }
+
+                if (this.pending != null) {
+                    this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+        }
+        catch (Exception e) {
+            Server.serverPrint("WARNING: Failed to Send Msg " + this.address);
+            Server.serverPrint("Force Removing Connection " + this.address +  "\n");
+            this.disconnect();
+        }
+    }
+
+    // handleWrite writes the pending bytes once the channel is writable again
+    // batch - write batch shared by the event loop
+    // created - publish times of the write batch, shared by the event loop
+    //
+    // returns null
+    void handleWrite(ByteBuffer[] batch, long[] created) {
+        try {
+            this.server.getMetrics().recordOut(0, this.channel.write(this.pending));
+
+            if (!this.pending.hasRemaining()) {
+                this.pending = null;
+                this.key.interestOps(SelectionKey.OP_READ);
+
+                this.flushQueue(batch, created);
+            }
+        }
+        catch (Exception e) {
+            Server.serverPrint("WARNING: Failed to Send Msg " + this.address);
+            Server.serverPrint("Force Removing Connection " + this.address +  "\n");
+            this.disconnect();
+        }
+    }
+
+    // write writes a buffer to the channel, keeping anything that could not be written as pending
+    // buffer - buffer in read mode
+    //
+    // returns null
+    private void write(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) {
+            return;
+        }
+
+        if (this.pending != null) {
+            this.appendPending(buffer);
+            return;
+        }
+
+        this.channel.write(buffer);
+
+        if (buffer.hasRemaining()) {
+            this.appendPending(buffer);
+            this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // appendPending copies the remaining bytes of a buffer onto the end of the pending bytes
+    // buffer - buffer in read mode
+    //
+    // returns null
+    private void appendPending(ByteBuffer buffer) {
+        int size = buffer.remaining() + (this.pending == null ? 0 : this.pending.remaining());
+
+        ByteBuffer grown = ByteBuffer.allocate(size);
+        if (this.pending != null) {
+            grown.put(this.pending);
+        }
+        grown.put(buffer);
+        grown.flip();
+
+        this.pending = grown;
+    }
+
+    // sendRaw writes a msg straight to the channel during the username handshake
+    // msg - msg to be sent
+    //
+    // returns null
+    public void sendRaw(String msg) throws IOException {
+        this.write(ByteBuffer.wrap(msg.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // address getter
+    public InetAddress getAddress() {
+        return this.address;
+    }
+
+    // shard getter - the event loop the connection is registered with
+    public Shard getShard() {
+        return this.loop;
+    }
+
+    // close asks the event loop to disconnect the client on its next pass
+    //
+    // returns null
+    public void close() {
+        this.closeRequested = true;
+        this.scheduleFlush();
+    }
+
+    // disconnect closes the channel and removes the client from server client lists
+    //
+    // returns null
+    public void disconnect() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+
+        Server.serverDebug("Attempting to Disconnect " + this.address + "...");
+
+        if (this.queue != null) {
+            this.queue.removeListener(this.flush);
+            this.loop.detach(this.session.getClient(), this);
+        }
+
+        try {
+            this.key.cancel();
+            this.channel.close();
+        }
+        catch (Exception e) {
+            Server.serverPrint("WARNING: Failed to Close Connection " + this.address);
+        }
+
+        this.session.close();
+
+        if (this.deflate != null) {
+            this.deflate.close();
+            this.deflate = null;
+        }
+
+        Server.serverPrint("Disconnected " + this.address + "\n");
+    }
+}
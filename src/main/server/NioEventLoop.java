@@ -0,0 +1,183 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// NioEventLoop is a single thread of the non-blocking server engine. It owns a Selector and every
+// NioConnection registered with it, and does all of the reading, line decoding, session handling and
+// writing for those connections. The server starts one of these per core and spreads new connections
+// across them. Each loop is a Shard - it keeps its own registry of its logged in clients, and a broadcast
+// reaches it as a single wakeup for the room, after which the loop drains the queues of its members in
+// the room without any other thread touching them.
+public class NioEventLoop implements Runnable, Shard {
+
+    // --- FIELDS ---
+    private Server server;
+    private Selector selector;
+
+    private ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    private ConcurrentLinkedQueue<NioConnection> readyConnections = new ConcurrentLinkedQueue<>();
+    private AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    // rooms published to since the last pass - a room is queued once no matter how many msgs it gets
+    private ConcurrentLinkedQueue<Room> readyRooms = new ConcurrentLinkedQueue<>();
+    private Set<Room> wokenRooms = ConcurrentHashMap.newKeySet();
+
+    // this loop's slice of the server's clients, only touched by the loop's thread
+    private HashMap<ClientInfo, NioConnection> connections = new HashMap<>();
+
+    // shared by every connection on this loop, so an idle connection holds no buffers of its own
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+    private ByteBuffer[] writeBatch;
+    private long[] writeCreated;
+
+    // --- CONSTRUCTOR ---
+    public NioEventLoop(Server server, int id) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.writeBatch = new ByteBuffer[server.getFlushPolicy().getMaxBatch()];
+        this.writeCreated = new long[this.writeBatch.length];
+
+        new Thread(this, "nio-event-loop-" + id).start();
+    }
+
+    // --- RUN ---
+    public void run() {
+        while (true) {
+            try {
+                this.selector.select();
+                this.wakeupPending.set(false);
+
+                this.registerNewChannels();
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        connection.handleRead(this.readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.handleWrite(this.writeBatch, this.writeCreated);
+                    }
+                }
+
+                // rooms that have had msgs broadcast to them since the last select
+                Room room;
+                while ((room = this.readyRooms.poll()) != null) {
+                    // a broadcast from here on wakes the loop again
+                    this.wokenRooms.remove(room);
+
+                    for (ClientInfo member : room.getSlice(this)) {
+                        NioConnection connection = this.connections.get(member);
+                        if (connection != null) {
+                            connection.flushBroadcast(this.writeBatch, this.writeCreated);
+                        }
+                    }
+                }
+
+                // connections that have had msgs put on their msg queue since the last select
+                NioConnection connection;
+                while ((connection = this.readyConnections.poll()) != null) {
+                    connection.flushQueue(this.writeBatch, this.writeCreated);
+                }
+            }
+            catch (Exception e) {
+                Server.serverPrint("ERROR: Failure in " + Thread.currentThread().getName());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // register hands a newly accepted channel to this event loop
+    // channel - accepted client channel
+    //
+    // returns null
+    public void register(SocketChannel channel) {
+        this.newChannels.offer(channel);
+        this.wakeup();
+    }
+
+    // wake asks the event loop to drain the msg queues of its members of a room on its next pass
+    // room - room a msg was broadcast to
+    //
+    // returns null
+    public void wake(Room room) {
+        if (this.wokenRooms.add(room)) {
+            this.readyRooms.offer(room);
+            this.wakeup();
+        }
+    }
+
+    // attach adds a logged in client to the loop's registry. Only called from the loop's thread
+    // client - client that logged in
+    // connection - connection of the client
+    //
+    // returns null
+    void attach(ClientInfo client, NioConnection connection) {
+        this.connections.put(client, connection);
+    }
+
+    // detach removes a client from the loop's registry, unless a new connection of the client took its place.
+    // Only called from the loop's thread
+    // client - client that disconnected
+    // connection - connection of the client that was closed
+    //
+    // returns null
+    void detach(ClientInfo client, NioConnection connection) {
+        this.connections.remove(client, connection);
+    }
+
+    // schedule asks the event loop to drain a connection's msg queue on its next pass
+    // connection - connection with new msgs
+    //
+    // returns null
+    void schedule(NioConnection connection) {
+        this.readyConnections.offer(connection);
+        this.wakeup();
+    }
+
+    // wakeup wakes the selector, unless a wakeup is already on its way
+    //
+    // returns null
+    private void wakeup() {
+        if (this.wakeupPending.compareAndSet(false, true)) {
+            this.selector.wakeup();
+        }
+    }
+
+    // registerNewChannels registers every channel handed to the loop since the last select
+    //
+    // returns null
+    private void registerNewChannels() {
+        SocketChannel channel;
+        while ((channel = this.newChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(this.server, this, channel, key));
+
+                Server.serverPrint("Connected to " + channel.socket().getInetAddress());
+            }
+            catch (Exception e) {
+                Server.serverPrint("ERROR: Failed to Register Connection\n");
+                try {
+                    channel.close();
+                }
+                catch (Exception ee) {
+                    // channel is already unusable
+                }
+            }
+        }
+    }
+}
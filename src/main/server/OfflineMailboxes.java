@@ -0,0 +1,435 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+// OfflineMailboxes keeps the whispers sent to users while they are offline, so they can be delivered the next
+// time the user logs in. Every whisper is appended to a single mailbox file, and an in-memory index maps each
+// user to the offsets of their waiting whispers - so delivering a mailbox only reads that user's records. The
+// file also records every username that has been on the server, since only known users can get mail.
+// Delivered mail is marked with a clear record, and the file is compacted once most of it is dead. The file is
+// only ever touched by a single background writer thread - the chat threads check the known users & the size
+// of a mailbox in memory and hand the writer the rest, so a store or a take never waits on the disk.
+public class OfflineMailboxes implements Runnable {
+
+    // --- FIELDS ---
+    private static final byte USER = 1;
+    private static final byte MAIL = 2;
+    private static final byte CLEAR = 3;
+
+    // compaction is only worth it once there is a fair amount of dead mail
+    private static final long MIN_COMPACT_SIZE = 1 << 20;
+
+    private final File file;
+    private final int maxMail;
+
+    // mailbox file & the offsets of the waiting whispers, only touched by the writer thread once it is started
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private HashMap<String, ArrayList<Long>> index = new HashMap<>();
+    private long liveBytes = 0;
+
+    // only touched while holding the mailboxes' lock, which is also held while a change is handed to the
+    // writer - so the writer sees the changes in the order they were made
+    private final HashSet<String> users = new HashSet<>();
+    private final HashMap<String, Integer> waiting = new HashMap<>();
+
+    // bounded by the known users & maxMail, so nothing ever has to be dropped
+    private final LinkedBlockingQueue<Change> pending = new LinkedBlockingQueue<>();
+    private volatile boolean writing = false;
+
+    // --- CONSTRUCTOR ---
+    // file - mailbox file, mail left by a previous run is picked up again
+    // maxMail - max number of whispers waiting for a single user
+    public OfflineMailboxes(File file, int maxMail) throws IOException {
+        this.file = file;
+        this.maxMail = Math.max(1, maxMail);
+
+        this.open();
+        this.recover();
+        for (String user : this.index.keySet()) {
+            this.waiting.put(user, this.index.get(user).size());
+        }
+
+        Thread writer = new Thread(this, "mailbox-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        // give the writer a moment to finish the mail already stored when the server exits
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "mailbox-shutdown"));
+    }
+
+    // fromProperties creates the mailboxes from -Dchat.mailboxFile & -Dchat.maxMailbox
+    //
+    // returns the mailboxes, or null if mailboxes are disabled with -Dchat.mailboxFile= or the file is unusable
+    public static OfflineMailboxes fromProperties() {
+        String file = System.getProperty("chat.mailboxFile", "mailboxes.dat");
+        if (file.equals("")) {
+            return null;
+        }
+
+        try {
+            return new OfflineMailboxes(new File(file), Integer.getInteger("chat.maxMailbox", 100));
+        }
+        catch (IOException e) {
+            Server.serverPrint("ERROR: Failed to Open Mailbox File " + file + ", Offline Whispers are Disabled");
+            return null;
+        }
+    }
+
+    // --- RUN ---
+    public void run() {
+        while (true) {
+            Change change;
+            try {
+                change = this.pending.take();
+                this.writing = true;
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                this.write(change);
+            }
+            catch (Exception e) {
+                Server.serverPrint("ERROR: Failed to Write Mailbox File");
+            }
+            this.writing = false;
+        }
+    }
+
+    // addUser records a username that has been on the server, so it can get mail while offline
+    // name - name of the user
+    //
+    // returns null
+    public synchronized void addUser(String name) {
+        if (this.users.add(name)) {
+            this.pending.add(new Change(USER, name, "", null));
+        }
+    }
+
+    // isKnown checks if a username has ever been on the server
+    // name - name of the user
+    //
+    // returns boolean if the user can get mail
+    public synchronized boolean isKnown(String name) {
+        return this.users.contains(name);
+    }
+
+    // store leaves a whisper in an offline user's mailbox, the writer adds it to the file afterwards
+    // name - name of the user the whisper is for
+    // frame - whisper to be stored
+    //
+    // returns boolean if the whisper was stored, false if the user is unknown or the mailbox is full
+    public synchronized boolean store(String name, Frame frame) {
+        if (!this.users.contains(name)) {
+            return false;
+        }
+
+        int count = this.waiting.getOrDefault(name, 0);
+        if (count >= this.maxMail) {
+            return false;
+        }
+
+        this.waiting.put(name, count + 1);
+        this.pending.add(new Change(MAIL, name, frame.getText(), null));
+        return true;
+    }
+
+    // take removes every whisper waiting in a user's mailbox - the writer reads them back out of the file and
+    // hands them over on its own thread
+    // name - name of the user
+    // deliver - takes the whispers oldest first, only called if there are any
+    //
+    // returns null
+    public synchronized void take(String name, Consumer<List<String>> deliver) {
+        if (this.waiting.remove(name) != null) {
+            this.pending.add(new Change(CLEAR, name, "", deliver));
+        }
+    }
+
+    // write makes a change to the mailbox file. Only called by the writer thread
+    // change - change to be made
+    //
+    // returns null
+    private void write(Change change) throws IOException {
+        if (change.type != CLEAR) {
+            long offset = this.append(change.type, change.name, change.text);
+            if (change.type == MAIL) {
+                this.index.computeIfAbsent(change.name, key -> new ArrayList<>()).add(offset);
+            }
+            return;
+        }
+
+        ArrayList<String> result = new ArrayList<>();
+        ArrayList<Long> mail = this.index.remove(change.name);
+        try {
+            for (int i = 0; mail != null && i < mail.size(); i++) {
+                String text = this.readText(mail.get(i));
+                result.add(text);
+
+                this.liveBytes -= this.recordLength(change.name, text);
+            }
+
+            this.append(CLEAR, change.name, "");
+        }
+        catch (IOException e) {
+            Server.serverPrint("ERROR: Failed to Read Mailbox of " + change.name);
+        }
+
+        if (!result.isEmpty()) {
+            change.deliver.accept(result);
+        }
+        this.compactIfMostlyDead();
+    }
+
+    // append writes a record to the end of the mailbox file
+    // type - USER, MAIL or CLEAR
+    // name - user the record is about
+    // text - text of the whisper, empty for other records
+    //
+    // returns the offset of the record
+    private long append(byte type, String name, String text) throws IOException {
+        long offset = OfflineMailboxes.append(this.channel, type, name, text);
+
+        if (type != CLEAR) {
+            this.liveBytes += this.recordLength(name, text);
+        }
+        return offset;
+    }
+
+    // append writes a record to the end of a mailbox file
+    // channel - channel of the file
+    // type - USER, MAIL or CLEAR
+    // name - user the record is about
+    // text - text of the whisper, empty for other records
+    //
+    // returns the offset of the record
+    private static long append(FileChannel channel, byte type, String name, String text) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+
+        // [length] [type] [name length] [name] [text length] [text]
+        int length = 1 + 2 + nameBytes.length + 4 + textBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(4 + length);
+        record.putInt(length).put(type);
+        record.putShort((short) nameBytes.length).put(nameBytes);
+        record.putInt(textBytes.length).put(textBytes);
+        record.flip();
+
+        long offset = channel.size();
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+
+        return offset;
+    }
+
+    // readText reads the text of a whisper back out of the mailbox file
+    // offset - offset of the record
+    //
+    // returns the text of the whisper
+    private String readText(long offset) throws IOException {
+        ByteBuffer header = this.read(offset, 4 + 1 + 2);
+        int length = header.getInt();
+        header.get();
+        int nameLength = header.getShort() & 0xFFFF;
+
+        ByteBuffer record = this.read(offset + 4, length);
+        record.position(1 + 2 + nameLength);
+
+        byte[] text = new byte[record.getInt()];
+        record.get(text);
+
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    // recordLength gets the size of a record in the mailbox file
+    // name - user the record is about
+    // text - text of the whisper
+    //
+    // returns the size of the record in bytes
+    private int recordLength(String name, String text) {
+        return 4 + 1 + 2 + name.getBytes(StandardCharsets.UTF_8).length
+                + 4 + text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // read reads a range of the mailbox file
+    // offset - start of the range
+    // length - number of bytes
+    //
+    // returns a buffer holding the bytes, ready to be read
+    private ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("mailbox file is truncated");
+            }
+        }
+        buffer.flip();
+
+        return buffer;
+    }
+
+    // recover rebuilds the in-memory index from the mailbox file, then compacts the file if needed
+    //
+    // returns null
+    private void recover() throws IOException {
+        long size = this.channel.size();
+        long offset = 0;
+
+        while (offset + 4 <= size) {
+            int length = this.read(offset, 4).getInt();
+            if (length <= 0 || offset + 4 + length > size) {
+                break;
+            }
+
+            ByteBuffer record = this.read(offset + 4, length);
+            byte type = record.get();
+            byte[] name = new byte[record.getShort() & 0xFFFF];
+            record.get(name);
+            String user = new String(name, StandardCharsets.UTF_8);
+
+            if (type == USER) {
+                this.users.add(user);
+                this.liveBytes += 4 + length;
+            }
+            else if (type == MAIL) {
+                this.index.computeIfAbsent(user, key -> new ArrayList<>()).add(offset);
+                this.liveBytes += 4 + length;
+            }
+            else if (type == CLEAR) {
+                ArrayList<Long> mail = this.index.remove(user);
+                if (mail != null) {
+                    for (long cleared : mail) {
+                        this.liveBytes -= 4 + this.read(cleared, 4).getInt();
+                    }
+                }
+            }
+
+            offset += 4 + length;
+        }
+
+        // a record that was cut off by a crash is dropped
+        if (offset < size) {
+            this.channel.truncate(offset);
+        }
+
+        this.compactIfMostlyDead();
+    }
+
+    // compactIfMostlyDead rewrites the mailbox file with only the known users & waiting mail, once most of
+    // the file is delivered mail. The rewritten file replaces the old one in a single atomic move - if that
+    // fails the old file & index are kept, and the old file is opened again either way
+    //
+    // returns null
+    private void compactIfMostlyDead() throws IOException {
+        long size = this.channel.size();
+        if (size < MIN_COMPACT_SIZE || this.liveBytes * 2 > size) {
+            return;
+        }
+
+        // read everything that is still live before the file is replaced
+        HashMap<String, ArrayList<String>> mail = new HashMap<>();
+        for (String user : this.index.keySet()) {
+            ArrayList<String> texts = new ArrayList<>();
+            for (long offset : this.index.get(user)) {
+                texts.add(this.readText(offset));
+            }
+            mail.put(user, texts);
+        }
+
+        // a user whose record is still waiting for the writer is written twice, which recover does not mind
+        ArrayList<String> users;
+        synchronized (this) {
+            users = new ArrayList<>(this.users);
+        }
+
+        File compacted = new File(this.file.getPath() + ".compact");
+        HashMap<String, ArrayList<Long>> index = new HashMap<>();
+        long liveBytes = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(compacted, "rw")) {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+
+            for (String user : users) {
+                OfflineMailboxes.append(channel, USER, user, "");
+                liveBytes += this.recordLength(user, "");
+            }
+            for (String user : mail.keySet()) {
+                ArrayList<Long> offsets = new ArrayList<>();
+                for (String text : mail.get(user)) {
+                    offsets.add(OfflineMailboxes.append(channel, MAIL, user, text));
+                    liveBytes += this.recordLength(user, text);
+                }
+                index.put(user, offsets);
+            }
+
+            channel.force(true);
+        }
+
+        this.channel.close();
+        this.raf.close();
+        try {
+            Files.move(compacted.toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            this.index = index;
+            this.liveBytes = liveBytes;
+        }
+        finally {
+            this.open();
+        }
+    }
+
+    // open opens the mailbox file for reading & appending
+    //
+    // returns null
+    private void open() throws IOException {
+        this.raf = new RandomAccessFile(this.file, "rw");
+        this.channel = this.raf.getChannel();
+    }
+
+    // close waits a moment for the writer to finish the changes already made
+    //
+    // returns null
+    private void close() {
+        long deadline = System.currentTimeMillis() + 1000;
+        while ((!this.pending.isEmpty() || this.writing) && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(5);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Change is a change to the mailbox file waiting for the writer
+    private static final class Change {
+        final byte type;
+        final String name;
+        final String text;
+        final Consumer<List<String>> deliver;
+
+        Change(byte type, String name, String text, Consumer<List<String>> deliver) {
+            this.type = type;
+            this.name = name;
+            this.text = text;
+            this.deliver = deliver;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// PeerLink is the connection between this server and one other server of the cluster. Records relayed to the
+// peer are put on a bounded queue and written by the link's writer thread, which takes every record that is
+// waiting and sends them with a single flush - under load a flush carries a whole batch of msgs. The link's
+// reader thread hands every record the peer sends to the Federation. Records are framed as
+//
+//     [record length - 4 bytes][record]
+public class PeerLink {
+
+    // --- FIELDS ---
+    private static final int MAX_RECORD = 4 * BinaryProtocol.MAX_PAYLOAD;
+
+    private final Federation federation;
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+
+    private final ArrayBlockingQueue<byte[]> pending;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    // nonce this server said hello with, and if this server linked to the peer
+    private final byte[] nonce;
+    private final boolean dialed;
+
+    // node id & nonce the peer said hello with - only used by the reader thread
+    private String helloId;
+    private byte[] peerNonce;
+
+    // node id of the peer, known once it has proven it knows the cluster's secret
+    private volatile String nodeId;
+
+    // users logged in on the peer, removed from the directory when the link goes down
+    private final Set<String> users = ConcurrentHashMap.newKeySet();
+
+    // --- CONSTRUCTOR ---
+    // federation - cluster the link belongs to
+    // socket - connected socket to the peer
+    // queueSize - number of records that may wait for the writer before new records are dropped
+    // nonce - nonce this server says hello with
+    // dialed - if this server linked to the peer, rather than the peer to this server
+    public PeerLink(Federation federation, Socket socket, int queueSize, byte[] nonce, boolean dialed)
+            throws IOException {
+        this.federation = federation;
+        this.socket = socket;
+        this.nonce = nonce;
+        this.dialed = dialed;
+        this.socket.setTcpNoDelay(true);
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        this.pending = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+
+        String peer = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        Thread reader = new Thread(this::readLoop, "peer-reader-" + peer);
+        reader.setDaemon(true);
+        reader.start();
+
+        Thread writer = new Thread(this::writeLoop, "peer-writer-" + peer);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // send hands a record to the writer without waiting - if the peer has fallen too far behind the record is
+    // dropped
+    // record - encoded record, shared by every link it is relayed to
+    //
+    // returns null
+    public void send(byte[] record) {
+        if (this.closed.get()) {
+            return;
+        }
+
+        if (!this.pending.offer(record) && this.dropped.incrementAndGet() == 1) {
+            Server.serverPrint("WARNING: Peer " + this.nodeId + " Fell Behind, Dropping Relayed Msgs");
+        }
+    }
+
+    // readLoop reads records from the peer until the link is closed
+    //
+    // returns null
+    private void readLoop() {
+        try {
+            while (true) {
+                int length = this.input.readInt();
+                if (length < 0 || length > MAX_RECORD) {
+                    throw new IOException("record too long");
+                }
+
+                byte[] record = new byte[length];
+                this.input.readFully(record);
+
+                this.federation.handle(this, record);
+            }
+        }
+        catch (Exception e) {
+            if (!this.closed.get()) {
+                Server.serverPrint("WARNING: Lost Link to Peer " + this.describe());
+            }
+        }
+
+        this.close();
+    }
+
+    // writeLoop writes the waiting records to the peer in batches, flushing once per batch
+    //
+    // returns null
+    private void writeLoop() {
+        ArrayList<byte[]> batch = new ArrayList<>();
+
+        try {
+            while (!this.closed.get()) {
+                batch.add(this.pending.take());
+                this.pending.drainTo(batch);
+
+                for (byte[] record : batch) {
+                    this.output.writeInt(record.length);
+                    this.output.write(record);
+                }
+                this.output.flush();
+                batch.clear();
+
+                long dropped = this.dropped.getAndSet(0);
+                if (dropped > 0) {
+                    Server.serverPrint("WARNING: Dropped " + dropped + " Msgs Relayed to Peer " + this.nodeId);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // link closed
+        }
+        catch (Exception e) {
+            if (!this.closed.get()) {
+                Server.serverPrint("WARNING: Failed to Write to Peer " + this.describe());
+            }
+        }
+
+        this.close();
+    }
+
+    // close closes the link once, and lets the federation forget the peer's users
+    //
+    // returns null
+    public void close() {
+        if (!this.closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            this.socket.close();
+        }
+        catch (IOException e) {
+            // already closed
+        }
+
+        // wake the writer so it can exit
+        this.pending.clear();
+        this.pending.offer(new byte[0]);
+
+        this.federation.linkClosed(this);
+    }
+
+    // describe names the peer for log msgs
+    //
+    // returns the node id, or the address if the peer has not said hello yet
+    String describe() {
+        return this.nodeId != null ? this.nodeId : String.valueOf(this.socket.getRemoteSocketAddress());
+    }
+
+    // nodeId getter - null until the peer has proven it knows the cluster's secret
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    // nonce getter
+    byte[] getNonce() {
+        return this.nonce;
+    }
+
+    // isDialed checks if this server linked to the peer
+    //
+    // returns boolean if this server dialed the link
+    boolean isDialed() {
+        return this.dialed;
+    }
+
+    // setHello keeps the node id & nonce the peer said hello with, until it proves them
+    // helloId - node id the peer says it has
+    // peerNonce - nonce the peer sent
+    //
+    // returns null
+    void setHello(String helloId, byte[] peerNonce) {
+        this.helloId = helloId;
+        this.peerNonce = peerNonce;
+    }
+
+    // helloId getter - null until the peer has said hello
+    String getHelloId() {
+        return this.helloId;
+    }
+
+    // peerNonce getter - null until the peer has said hello
+    byte[] getPeerNonce() {
+        return this.peerNonce;
+    }
+
+    // nodeId setter
+    void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    // users getter - users logged in on the peer
+    Set<String> getUsers() {
+        return this.users;
+    }
+
+    // isClosed checks if the link has been closed
+    //
+    // returns boolean if the link is closed
+    public boolean isClosed() {
+        return this.closed.get();
+    }
+}
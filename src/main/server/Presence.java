@@ -0,0 +1,84 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.util.*;
+
+// Presence is an immutable snapshot of every user logged in on the server and on the rest of the cluster. The
+// server bumps a version every time a user joins or leaves, and only builds a new snapshot the first time it
+// is asked for one after a change - every /users in between is answered from the cached line, and every binary
+// client logging in gets the same USERS frame, encoded once. Between snapshots, clients are kept up to date by
+// JOINED & LEFT deltas carrying the version of the change.
+public final class Presence {
+
+    // --- FIELDS ---
+    private final long version;
+    private final List<ClientInfo> users;
+    private final List<String> names;
+
+    // the /users reply, with the index right after each name so a client's own name can be marked
+    private final String line;
+    private final HashMap<String, Integer> ends;
+
+    private volatile Frame snapshot;
+
+    // --- CONSTRUCTOR ---
+    // version - presence version the snapshot was taken at
+    // users - every logged in user
+    public Presence(long version, Collection<ClientInfo> users) {
+        this.version = version;
+        this.users = List.copyOf(users);
+        this.ends = new HashMap<>(this.users.size() * 2);
+
+        ArrayList<String> names = new ArrayList<>(this.users.size());
+        StringBuilder line = new StringBuilder("USERS: ");
+        for (int i = 0; i < this.users.size(); i++) {
+            String name = this.users.get(i).getName();
+            names.add(name);
+
+            line.append(name);
+            this.ends.put(name, line.length());
+
+            if (i < this.users.size() - 1) {
+                line.append(", ");
+            }
+        }
+        this.names = Collections.unmodifiableList(names);
+        this.line = line.append("\n").toString();
+    }
+
+    // render gets the /users reply for a single client
+    // name - name of the client asking, marked with (YOU)
+    //
+    // returns the reply, including the trailing newline
+    public String render(String name) {
+        Integer end = this.ends.get(name);
+        if (end == null) {
+            return this.line;
+        }
+
+        return this.line.substring(0, end) + " (YOU)" + this.line.substring(end);
+    }
+
+    // getSnapshot gets the USERS frame holding the whole snapshot, for binary clients logging in
+    //
+    // returns the frame
+    public Frame getSnapshot() {
+        Frame snapshot = this.snapshot;
+        if (snapshot == null) {
+            snapshot = Frame.users(this.version, this.users);
+            this.snapshot = snapshot;
+        }
+
+        return snapshot;
+    }
+
+    // version getter
+    public long getVersion() {
+        return this.version;
+    }
+
+    // names getter - unmodifiable
+    public List<String> getNames() {
+        return this.names;
+    }
+}
@@ -0,0 +1,71 @@
+// Nicholas Delli Carpini
+package main.server;
+
+// QueuePolicy decides what happens when a client falls behind - when it is more than maxLag broadcasts behind
+// the broadcast log, or has more than maxWhispers whispers waiting. The client's MsgQueue either drops its
+// oldest msgs, drops its newest msgs, or has the client disconnected. Dropped msgs are replaced by a single
+// warning to the client.
+public class QueuePolicy {
+
+    // --- FIELDS ---
+    public static final String DROP_OLDEST = "drop-oldest";
+    public static final String DROP_NEWEST = "drop-newest";
+    public static final String DISCONNECT = "disconnect";
+
+    private final String policy;
+    private final int maxLag;
+    private final int maxWhispers;
+
+    // --- CONSTRUCTOR ---
+    // policy - DROP_OLDEST, DROP_NEWEST or DISCONNECT
+    // maxLag - max number of broadcasts a client may be behind, kept below the size of the broadcast log
+    // maxWhispers - max number of whispers waiting for a client
+    public QueuePolicy(String policy, int maxLag, int maxWhispers) {
+        if (!policy.equals(DROP_OLDEST) && !policy.equals(DROP_NEWEST) && !policy.equals(DISCONNECT)) {
+            throw new IllegalArgumentException("Unknown slow consumer policy: " + policy);
+        }
+
+        this.policy = policy;
+        this.maxLag = Math.max(1, maxLag);
+        this.maxWhispers = Math.max(1, maxWhispers);
+    }
+
+    // fromProperties creates the policy from -Dchat.slowConsumerPolicy, -Dchat.maxLag and -Dchat.maxWhispers
+    // logSize - size of the broadcast log, the lag is capped to what the log can hold
+    //
+    // returns the policy
+    public static QueuePolicy fromProperties(int logSize) {
+        return new QueuePolicy(System.getProperty("chat.slowConsumerPolicy", DROP_OLDEST),
+                Math.min(Integer.getInteger("chat.maxLag", 1024), logSize - 1),
+                Integer.getInteger("chat.maxWhispers", 256));
+    }
+
+    // policy getter
+    public String getPolicy() {
+        return this.policy;
+    }
+
+    // maxLag getter
+    public int getMaxLag() {
+        return this.maxLag;
+    }
+
+    // maxWhispers getter
+    public int getMaxWhispers() {
+        return this.maxWhispers;
+    }
+
+    // isDisconnect checks if slow clients are disconnected rather than having msgs dropped
+    //
+    // returns boolean if the policy is DISCONNECT
+    public boolean isDisconnect() {
+        return this.policy.equals(DISCONNECT);
+    }
+
+    // isDropNewest checks if slow clients have their newest msgs dropped
+    //
+    // returns boolean if the policy is DROP_NEWEST
+    public boolean isDropNewest() {
+        return this.policy.equals(DROP_NEWEST);
+    }
+}
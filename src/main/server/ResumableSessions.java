@@ -0,0 +1,140 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// ResumableSessions keeps the sessions of clients that lost their connection, so they can pick up where they
+// left off. A client offers /protocol resume along with the binary protocol, and once logged in is sent a
+// random token as a /session msg. Every msg handed to the client after that is numbered by its MsgQueue, which
+// keeps the last few of them. If the connection drops, the client stays logged in and in its room for a grace
+// window, with its queue still collecting msgs - a new connection that sends /resume [token] [last seq] takes
+// the client back without a new join, and is sent every msg after the last one it saw. Once the grace window
+// runs out, the client is removed as if it had disconnected. A connection can also be lost without the server
+// noticing - a /resume for a client that still has its old connection takes the session over from it.
+public class ResumableSessions {
+
+    // --- FIELDS ---
+    public static final String OFFER = "/protocol resume";
+
+    private final long graceSeconds;
+    private final int bufferSize;
+
+    private final SecureRandom random = new SecureRandom();
+
+    // every client that can resume, by token - with a connection or in its grace window
+    private final ConcurrentHashMap<String, ClientInfo> clients = new ConcurrentHashMap<>();
+
+    // grace windows running, by token - whoever removes a window first, a resume or its expiry, owns the client
+    private final ConcurrentHashMap<String, Grace> detached = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "session-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // --- CONSTRUCTOR ---
+    // graceSeconds - how long a client that lost its connection may resume its session
+    // bufferSize - number of msgs sent to each client that are kept to be sent again
+    public ResumableSessions(int graceSeconds, int bufferSize) {
+        this.graceSeconds = graceSeconds;
+        this.bufferSize = Math.max(1, bufferSize);
+    }
+
+    // fromProperties creates the sessions from -Dchat.resumeGraceSeconds & -Dchat.resumeBuffer
+    //
+    // returns the sessions, or null if resuming is disabled with -Dchat.resumeGraceSeconds=0
+    public static ResumableSessions fromProperties() {
+        int grace = Integer.getInteger("chat.resumeGraceSeconds", 30);
+        if (grace <= 0) {
+            return null;
+        }
+
+        return new ResumableSessions(grace, Integer.getInteger("chat.resumeBuffer", 512));
+    }
+
+    // open gives a client that just logged in the token it resumes its session with
+    // client - client that just logged in
+    //
+    // returns null
+    public void open(ClientInfo client) {
+        String token = this.newToken();
+        client.setToken(token);
+        this.clients.put(token, client);
+    }
+
+    // close forgets the session of a client that has been removed
+    // client - removed client, with a token
+    //
+    // returns null
+    public void close(ClientInfo client) {
+        this.clients.remove(client.getToken(), client);
+    }
+
+    // find finds the client of a session, whether or not it is in its grace window
+    // token - token sent by a new connection
+    //
+    // returns the client, or null if there is no such session
+    public ClientInfo find(String token) {
+        return this.clients.get(token);
+    }
+
+    // newToken creates the token a client resumes its session with
+    //
+    // returns a random token
+    private String newToken() {
+        byte[] bytes = new byte[16];
+        this.random.nextBytes(bytes);
+
+        StringBuilder token = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return token.toString();
+    }
+
+    // detach starts the grace window of a client that lost its connection
+    // client - client that lost its connection, with a token
+    // expired - run once if the grace window runs out before the client resumes
+    //
+    // returns null
+    public void detach(ClientInfo client, Runnable expired) {
+        String token = client.getToken();
+        Grace grace = new Grace(client);
+        this.detached.put(token, grace);
+
+        // only ends this window - a client that resumed and lost its connection again has a new one
+        this.expiry.schedule(() -> {
+            if (this.detached.remove(token, grace)) {
+                expired.run();
+            }
+        }, this.graceSeconds, TimeUnit.SECONDS);
+    }
+
+    // claim takes a client out of its grace window so a new connection can resume its session
+    // token - token sent by the new connection
+    //
+    // returns the client, or null if there is no such session or its grace window ran out
+    public ClientInfo claim(String token) {
+        Grace grace = this.detached.remove(token);
+        return grace == null ? null : grace.client;
+    }
+
+    // bufferSize getter
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    // Grace is a single grace window of a client, compared by identity
+    private static final class Grace {
+        final ClientInfo client;
+
+        Grace(ClientInfo client) {
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Room is a single chat room - its members and the broadcast log of the msgs sent to the room. A broadcast to a
+// room is stored once in the room's log and only wakes the room's members. Members served by a Shard are kept in
+// a slice per shard, so a broadcast wakes each shard once no matter how many of its clients are in the room.
+// Every client is in exactly one room.
+public class Room {
+
+    // --- FIELDS ---
+    private final String name;
+    private final BroadcastLog broadcastLog;
+    private final Set<ClientInfo> members = ConcurrentHashMap.newKeySet();
+
+    // members by the shard serving them, and the members with a thread of their own
+    private final ConcurrentHashMap<Shard, Set<ClientInfo>> slices = new ConcurrentHashMap<>();
+    private final Set<ClientInfo> unsharded = ConcurrentHashMap.newKeySet();
+
+    // --- CONSTRUCTOR ---
+    // name - name of the room
+    // logSize - number of msgs kept in the room's broadcast log
+    public Room(String name, int logSize) {
+        this.name = name;
+        this.broadcastLog = new BroadcastLog(logSize);
+    }
+
+    // publish stores a frame in the room's log, wakes each shard with members in the room once, and wakes the
+    // msg queue of every other member
+    // frame - frame to be sent to every member
+    //
+    // returns null
+    public void publish(Frame frame) {
+        this.broadcastLog.publish(frame);
+
+        for (Shard shard : this.slices.keySet()) {
+            shard.wake(this);
+        }
+
+        for (ClientInfo member : this.unsharded) {
+            MsgQueue queue = member.getQueue();
+            if (queue != null) {
+                queue.signal();
+            }
+        }
+    }
+
+    // name getter
+    public String getName() {
+        return this.name;
+    }
+
+    // broadcastLog getter
+    public BroadcastLog getBroadcastLog() {
+        return this.broadcastLog;
+    }
+
+    // addMember adds a client to the room, and to the slice of the shard serving it. Only called through
+    // Server.addUser, Server.joinRoom & Server.resumeUser
+    // client - client joining the room
+    //
+    // returns null
+    public void addMember(ClientInfo client) {
+        this.members.add(client);
+
+        Shard shard = client.getShard();
+        if (shard == null) {
+            this.unsharded.add(client);
+            return;
+        }
+
+        this.slices.compute(shard, (key, slice) -> {
+            if (slice == null) {
+                slice = ConcurrentHashMap.newKeySet();
+            }
+            slice.add(client);
+            return slice;
+        });
+
+        // a msg published while the client was being added may have woken the shard before the client was in
+        // its slice
+        MsgQueue queue = client.getQueue();
+        if (queue != null) {
+            queue.signal();
+        }
+    }
+
+    // removeMember removes a client from the room, and drops its shard's slice once it is empty. Only called
+    // through Server.leaveRoom & Server.resumeUser
+    // client - client leaving the room
+    //
+    // returns null
+    public void removeMember(ClientInfo client) {
+        this.members.remove(client);
+
+        Shard shard = client.getShard();
+        if (shard == null) {
+            this.unsharded.remove(client);
+            return;
+        }
+
+        this.slices.computeIfPresent(shard, (key, slice) -> {
+            slice.remove(client);
+            return slice.isEmpty() ? null : slice;
+        });
+    }
+
+    // getSlice gets the members served by a shard
+    // shard - shard asking for its members
+    //
+    // returns a live view of the shard's members in the room
+    public Set<ClientInfo> getSlice(Shard shard) {
+        Set<ClientInfo> slice = this.slices.get(shard);
+
+        return slice == null ? Collections.emptySet() : slice;
+    }
+
+    // members getter - live view, only changed through Server.joinRoom & Server.leaveRoom
+    public Set<ClientInfo> getMembers() {
+        return this.members;
+    }
+}
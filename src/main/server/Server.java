@@ -2,29 +2,130 @@
 package main.server;
 
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 // Server is an executable class that handles the list of clients connected, and all of the messages
-// going out to each client. Server creates a separate ServerInputThread & ServerOutputThread for
-// each new client
+// going out to each client. In the blocking engine Server creates a separate ServerInputThread &
+// ServerOutputThread for each new client (on platform threads, or on virtual threads in the virtual
+// engine), in the nio engine Server spreads the clients across a small fixed set of NioEventLoops. Clients
+// are split into Rooms, and a chat msg only reaches the members of the sender's room
 public class Server {
 
     // --- FIELDS ---
+    public static final String MODE_BLOCKING = "blocking";
+    public static final String MODE_VIRTUAL = "virtual";
+    public static final String MODE_NIO = "nio";
+
+    // every client starts in the lobby, which is never removed
+    public static final String LOBBY = "lobby";
+
+    // shared by every server in the process - logging never waits on the console or the log file
+    private static final ServerLog LOG = ServerLog.fromProperties();
+
     private ServerSocket server;
     private int port = 5000;
 
-    private ArrayList<ClientInfo> clients = new ArrayList<>();
-    private HashMap<String, Stack<String>> globalMsgQueue = new HashMap<>();
+    // every claimed username - clients still in the username handshake have no msg queue yet
+    private ConcurrentHashMap<String, ClientInfo> clients = new ConcurrentHashMap<>();
+
+    // bumped after every join & leave on the server or the cluster - the cached snapshot of the logged in users
+    // is only rebuilt the first time it is asked for once its version falls behind
+    private AtomicLong presenceVersion = new AtomicLong();
+    private volatile Presence presence = new Presence(0, Collections.emptyList());
+
+    // every room with at least one member, by name - each room keeps a broadcast log of -Dchat.broadcastLogSize msgs
+    private int roomLogSize = Integer.getInteger("chat.broadcastLogSize", 4096);
+    private ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private Room lobby = new Room(LOBBY, this.roomLogSize);
+
+    // how far each client may fall behind, and what happens when it does
+    private QueuePolicy queuePolicy = QueuePolicy.fromProperties(this.lobby.getBroadcastLog().capacity());
+
+    // how msgs are coalesced on the way out to each client -Dchat.maxBatch msgs per write, held back for
+    // at most -Dchat.maxFlushDelayMicros
+    private FlushPolicy flushPolicy = new FlushPolicy(
+            Integer.getInteger("chat.maxBatch", 64), Long.getLong("chat.maxFlushDelayMicros", 200));
+
+    // how fast each client, and every client together, may send lines - see FloodControl for the properties
+    private FloodControl floodControl = FloodControl.fromProperties();
+
+    // counters & latency histograms, dumped every -Dchat.statsInterval seconds and shown by /stats
+    private ServerMetrics metrics = new ServerMetrics(this, this.flushPolicy);
 
-    private ReadWriteLock clientsLock = new ReentrantReadWriteLock();
-    private ReadWriteLock msgQueueLock = new ReentrantReadWriteLock();
+    private AtomicInteger nextUserId = new AtomicInteger(1);
+
+    // every chat msg is recorded for /history, null if history is disabled
+    private HistoryLog history = HistoryLog.fromProperties();
+
+    // sessions of clients that lost their connection, kept for a grace window - null if resuming is disabled
+    private ResumableSessions sessions = ResumableSessions.fromProperties();
+
+    // whispers waiting for offline users, null if offline whispers are disabled
+    private OfflineMailboxes mailboxes = OfflineMailboxes.fromProperties();
+
+    // links to the other servers of the cluster, null if the server runs on its own
+    private volatile Federation federation;
+
+    // runs the ServerInputThreads & ServerOutputThreads of the blocking engine
+    private Executor handlerExecutor = runnable -> new Thread(runnable).start();
 
     // --- CONSTRUCTOR ---
     public Server() {
+        this(MODE_BLOCKING, 0);
+    }
+
+    // mode - MODE_BLOCKING, MODE_VIRTUAL or MODE_NIO
+    // eventLoops - number of NioEventLoops to run in MODE_NIO
+    public Server(String mode, int eventLoops) {
+        this(Integer.getInteger("chat.port", 5000));
+        this.start(mode, eventLoops);
+    }
+
+    // creates a server that does not accept connections until start is called - lets the benchmarks drive a
+    // server in process
+    // port - port the server will listen on
+    Server(int port) {
+        this.port = port;
+        this.rooms.put(LOBBY, this.lobby);
+    }
+
+    // start accepts connections forever using the given engine
+    // mode - MODE_BLOCKING, MODE_VIRTUAL or MODE_NIO
+    // eventLoops - number of NioEventLoops to run in MODE_NIO
+    //
+    // returns null
+    void start(String mode, int eventLoops) {
+        this.startStatsPrinter(Integer.getInteger("chat.statsInterval", 60));
+        this.federation = Federation.fromProperties(this);
+
+        if (mode.equals(MODE_NIO)) {
+            this.startNio(eventLoops);
+        }
+        else {
+            if (mode.equals(MODE_VIRTUAL)) {
+                this.handlerExecutor = Server.virtualThreadExecutor();
+            }
+
+            this.startBlocking();
+        }
+    }
+
+    // startBlocking accepts connections forever, creating a ServerInputThread for each new client
+    //
+    // returns null
+    private void startBlocking() {
         try {
-            this.server = new ServerSocket(this.port);
+            // opened through a channel so the ServerOutputThreads can use gathering writes
+            this.server = ServerSocketChannel.open().bind(new InetSocketAddress(this.port)).socket();
 
             Server.serverPrint("Chat Server has Started\n");
 
@@ -48,77 +149,433 @@ public class Server {
         }
     }
 
-    // addUser adds a client to the clients list and creates a msg queue for the client
-    // newClient - client to be added
+    // startNio starts the NioEventLoops and accepts connections forever, handing each new client to
+    // the next event loop in turn
+    // eventLoops - number of NioEventLoops to start
     //
     // returns null
-    public void addUser(ClientInfo newClient) {
-
-        this.clientsLock.writeLock().lock();
+    private void startNio(int eventLoops) {
         try {
-            this.clients.add(newClient);
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(this.port), 1024);
+
+            NioEventLoop[] loops = new NioEventLoop[Math.max(1, eventLoops)];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new NioEventLoop(this, i);
+            }
+
+            Server.serverPrint("Chat Server has Started with " + loops.length + " Event Loops\n");
+
+            int next = 0;
+            while (true) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+
+                    Server.serverPrint(channel.socket().getInetAddress() + " Requested Connection...");
+                    loops[next].register(channel);
+                    next = (next + 1) % loops.length;
+                }
+                catch (Exception e) {
+                    Server.serverPrint("ERROR: Failed to Accept Connection\n");
+                }
+            }
+        }
+        catch (Exception e) {
+            Server.serverPrint("ERROR: Failed to Start Server Socket\n");
+            e.printStackTrace();
         }
-        finally {
-            this.clientsLock.writeLock().unlock();
+    }
+
+    // claimUser reserves a username for a client in the username handshake, so no other client can be
+    // accepted with the same name
+    // name - requested username
+    // session - session of the client asking for the name
+    // address - address of the client
+    //
+    // returns the new client, or null if the username is already taken
+    public ClientInfo claimUser(String name, ChatSession session, InetAddress address) {
+        // names of users logged in on other servers of the cluster are taken as well
+        Federation federation = this.federation;
+        if (federation != null && federation.isRemoteUser(name)) {
+            return null;
         }
 
-        this.msgQueueLock.writeLock().lock();
-        try {
-            this.globalMsgQueue.put(newClient.getName(), new Stack<>());
+        ClientInfo newClient = new ClientInfo(this.nextUserId(), name, address);
+        newClient.setSession(session);
+
+        return this.clients.putIfAbsent(name, newClient) == null ? newClient : null;
+    }
+
+    // releaseUser gives up a username claimed by a client that never completed the handshake
+    // client - client that claimed the username
+    //
+    // returns null
+    public void releaseUser(ClientInfo client) {
+        this.clients.remove(client.getName(), client);
+    }
+
+    // addUser creates a msg queue for a client that has claimed its username, which adds it to the chat in
+    // the lobby
+    // newClient - client to be added
+    //
+    // returns null
+    public void addUser(ClientInfo newClient) {
+        newClient.setRoom(this.lobby);
+        newClient.setQueue(new MsgQueue(this.lobby.getBroadcastLog(), this.queuePolicy));
+        this.lobby.addMember(newClient);
+
+        if (this.mailboxes != null) {
+            this.mailboxes.addUser(newClient.getName());
         }
-        finally {
-            this.msgQueueLock.writeLock().unlock();
+        if (this.history != null) {
+            this.history.openUser(newClient);
         }
 
-        this.addMsg("[" + new Date() + "] " + newClient.getName() + " has joined the Chat Server");
+        // a client added without claiming its username first
+        this.clients.putIfAbsent(newClient.getName(), newClient);
+
+        // binary protocol clients get the new user's id before any of the user's msgs, text clients a notice
+        this.addMsg(Frame.joined(this.presenceVersion.incrementAndGet(), newClient, true));
+
+        if (this.federation != null) {
+            this.federation.userJoined(newClient.getName());
+        }
     }
 
-    // removeUser removes a client from both the client list and the msg queue
+    // removeUser removes a client from the client list and closes its msg queue
     // oldClient - client to be deleted
     //
     // returns null
     public void removeUser(ClientInfo oldClient) {
+        if (!this.clients.remove(oldClient.getName(), oldClient)) {
+            return;
+        }
+        if (this.sessions != null && oldClient.getToken() != null) {
+            this.sessions.close(oldClient);
+        }
+        if (this.history != null) {
+            this.history.closeUser(oldClient);
+        }
 
-        this.clientsLock.writeLock().lock();
-        try {
-            this.clients.remove(oldClient);
+        // closing the queue wakes the client's ServerOutputThread so it can exit
+        MsgQueue oldQueue = oldClient.getQueue();
+        if (oldQueue == null) {
+            return;
         }
-        finally {
-            this.clientsLock.writeLock().unlock();
+        oldQueue.close();
+        this.leaveRoom(oldClient, oldClient.getRoom());
+
+        this.addMsg(Frame.left(this.presenceVersion.incrementAndGet(), oldClient));
+
+        if (this.federation != null) {
+            this.federation.userLeft(oldClient.getName());
         }
+    }
 
-        this.msgQueueLock.writeLock().lock();
-        try {
-            this.globalMsgQueue.remove(oldClient.getName());
+    // detachUser keeps a client that lost its connection logged in and in its room for the grace window of its
+    // session, so it can resume without a new join - its msg queue keeps collecting msgs in the meantime
+    // client - client that lost its connection
+    //
+    // returns boolean if the client was detached, false if it has to be removed instead
+    public boolean detachUser(ClientInfo client) {
+        MsgQueue queue = client.getQueue();
+        if (this.sessions == null || client.getToken() == null || queue == null || queue.isOverflowed()) {
+            return false;
+        }
+
+        queue.detach();
+        this.sessions.detach(client, () -> {
+            Server.serverPrint("Session of " + client.getName() + " Expired");
+            this.removeUser(client);
+        });
+
+        Server.serverPrint(client.getName() + " Lost their Connection, Keeping the Session to be Resumed");
+        return true;
+    }
+
+    // claimSession takes a detached client out of its grace window, for a new connection resuming its session.
+    // A client whose old connection is still open - half-open, as far as the server can tell - is taken over
+    // from it, and the old connection is closed
+    // token - token sent by the new connection
+    //
+    // returns the client, or null if there is no such session
+    public ClientInfo claimSession(String token) {
+        if (this.sessions == null) {
+            return null;
+        }
+
+        ClientInfo client = this.sessions.claim(token);
+        if (client == null) {
+            client = this.sessions.find(token);
+            ChatSession old = client == null ? null : client.getSession();
+
+            // the old session may have let go of the client itself, and put it in its grace window meanwhile
+            if (old == null || !old.release()) {
+                client = this.sessions.claim(token);
+            }
+            else {
+                client.getQueue().detach();
+                old.closeConnection();
+                Server.serverPrint(client.getName() + " Resumed on a new Connection, Closing the Old One");
+            }
+        }
+
+        // a client that fell too far behind while it had no connection can not pick up where it left off
+        if (client != null && client.getQueue().isOverflowed()) {
+            this.removeUser(client);
+            return null;
+        }
+
+        return client;
+    }
+
+    // resumeUser hands a client that resumed its session to its new connection, moving it into the slice of
+    // the new connection's shard in its room
+    // client - client that resumed its session
+    // shard - shard serving the new connection, null for the blocking engine
+    //
+    // returns null
+    public void resumeUser(ClientInfo client, Shard shard) {
+        Room room = client.getRoom();
+
+        this.rooms.compute(room.getName(), (roomName, current) -> {
+            room.removeMember(client);
+            client.setShard(shard);
+            room.addMember(client);
+
+            return room;
+        });
+
+        client.getQueue().attach();
+    }
+
+    // remoteUserJoined tells the clients on this server about a user that logged in on another server of the
+    // cluster
+    // remote - remote user, with a local id for binary clients
+    // announce - if the join is news, rather than part of a new peer's list of users
+    //
+    // returns null
+    void remoteUserJoined(ClientInfo remote, boolean announce) {
+        this.addMsg(Frame.joined(this.presenceVersion.incrementAndGet(), remote, announce));
+    }
+
+    // remoteUserLeft tells the clients on this server about a user that logged out of another server of the
+    // cluster
+    // remote - remote user
+    //
+    // returns null
+    void remoteUserLeft(ClientInfo remote) {
+        this.addMsg(Frame.left(this.presenceVersion.incrementAndGet(), remote));
+    }
+
+    // joinRoom moves a client into a room, creating the room if it does not exist yet
+    // client - client changing rooms
+    // name - name of the room to join
+    //
+    // returns the room the client joined
+    public Room joinRoom(ClientInfo client, String name) {
+        Room oldRoom = client.getRoom();
+        if (oldRoom != null && oldRoom.getName().equals(name)) {
+            return oldRoom;
+        }
+
+        // the queue is moved over while the room is locked, so an empty room can not be removed under the client
+        Room newRoom = this.rooms.compute(name, (roomName, room) -> {
+            if (room == null) {
+                room = new Room(roomName, this.roomLogSize);
+            }
+
+            client.getQueue().switchLog(room.getBroadcastLog());
+            room.addMember(client);
+            return room;
+        });
+        client.setRoom(newRoom);
+
+        if (oldRoom != null) {
+            this.leaveRoom(client, oldRoom);
+            this.publishNotice(oldRoom, Frame.notice(client.getName() + " has left the room"));
+        }
+        this.publishNotice(newRoom, Frame.notice(client.getName() + " has joined [" + name + "]"));
+
+        return newRoom;
+    }
+
+    // leaveRoom removes a client from a room's members, and removes the room once it is empty
+    // client - client leaving the room
+    // room - room to be left
+    //
+    // returns null
+    private void leaveRoom(ClientInfo client, Room room) {
+        if (room == null) {
+            return;
+        }
+
+        this.rooms.computeIfPresent(room.getName(), (roomName, current) -> {
+            current.removeMember(client);
+
+            return (current.getMembers().isEmpty() && current != this.lobby) ? null : current;
+        });
+    }
+
+    // publishNotice sends a notice to the members of a room, on this server and on the rest of the cluster
+    // room - room the notice is sent to
+    // frame - notice to be sent
+    //
+    // returns null
+    private void publishNotice(Room room, Frame frame) {
+        room.publish(frame);
+
+        if (this.federation != null) {
+            this.federation.relayRoom(room.getName(), frame);
         }
-        finally {
-            this.msgQueueLock.writeLock().unlock();
+    }
+
+    // getRooms gets a copy of the list of rooms on the server
+    //
+    // returns the list of rooms
+    public ArrayList<Room> getRooms() {
+        return new ArrayList<>(this.rooms.values());
+    }
+
+    // getUsers gets the names of all of the clients on the server, and on the rest of the cluster
+    //
+    // returns an unmodifiable list of string containing all of the names
+    public List<String> getUsers() {
+        return this.getPresence().getNames();
+    }
+
+    // getPresence gets the snapshot of every logged in user, rebuilding it if a user joined or left since it was
+    // taken. The version is read before the users, so a snapshot racing a change is rebuilt on the next call
+    //
+    // returns the current snapshot
+    public Presence getPresence() {
+        Presence presence = this.presence;
+        long version = this.presenceVersion.get();
+
+        if (presence.getVersion() != version) {
+            presence = new Presence(version, this.getDirectory());
+            this.presence = presence;
+        }
+
+        return presence;
+    }
+
+    // getDirectory gets every client on the server, along with every user logged in on the rest of the cluster
+    //
+    // returns the list of clients & remote users
+    public ArrayList<ClientInfo> getDirectory() {
+        ArrayList<ClientInfo> clients = this.getClients();
+        if (this.federation != null) {
+            clients.addAll(this.federation.getRemoteUsers());
         }
 
-        this.addMsg("[" + new Date() + "] " + oldClient.getName() + " has disconnected from the Chat Server");
+        return clients;
     }
 
-    // getUsers gets the names of all of the clients on the server
+    // getClients gets a copy of the list of clients on the server
     //
-    // returns a list of string containing all of the names
-    public ArrayList<String> getUsers() {
-        ArrayList<String> users = new ArrayList<>();
-        for (ClientInfo client : this.clients) {
-            users.add(client.getName());
+    // returns the list of clients
+    public ArrayList<ClientInfo> getClients() {
+        ArrayList<ClientInfo> clients = new ArrayList<>();
+        for (ClientInfo client : this.clients.values()) {
+            if (client.getQueue() != null) {
+                clients.add(client);
+            }
         }
 
-        return users;
+        return clients;
     }
 
-    // addMsg pushes a new msg to every clients queue - effectively sending the message to every client
+    // getClient looks up a client on the server by name
+    // name - name of the client
+    //
+    // returns the client, or null if there is no client on the server with that name
+    public ClientInfo getClient(String name) {
+        ClientInfo client = this.clients.get(name);
+
+        return (client != null && client.getQueue() != null) ? client : null;
+    }
+
+    // isUser checks if a client with a specific name is on the server, or on the rest of the cluster
+    // name - name of the client
+    //
+    // returns boolean if the client is online
+    public boolean isUser(String name) {
+        return this.getClient(name) != null || (this.federation != null && this.federation.isRemoteUser(name));
+    }
+
+    // isKnownUser checks if a client with a specific name is on the server, or has been and can get whispers
+    // in its mailbox
+    // name - name of the client
+    //
+    // returns boolean if the client can be whispered
+    public boolean isKnownUser(String name) {
+        return this.isUser(name) || (this.mailboxes != null && this.mailboxes.isKnown(name));
+    }
+
+    // port getter - port clients connect to
+    public int getPort() {
+        return this.port;
+    }
+
+    // nextUserId assigns a new unique user id
+    //
+    // returns the id
+    public int nextUserId() {
+        return this.nextUserId.getAndIncrement();
+    }
+
+    // addMsg sends a new server msg to every client
     // msg - msg to be sent to every client
     //
     // returns null
     public void addMsg(String msg) {
-        for (ClientInfo client : this.clients) {
-            this.globalMsgQueue.get(client.getName()).push(msg);
+        this.addMsg(new Frame(msg));
+    }
+
+    // addMsg stores a new frame once in every room's broadcast log and wakes the room's members - effectively
+    // sending the message to every client
+    // frame - frame to be sent to every client
+    //
+    // returns null
+    public void addMsg(Frame frame) {
+        for (Room room : this.rooms.values()) {
+            room.publish(frame);
+        }
+    }
+
+    // addMsg sends a frame to the members of a single room
+    // room - room the frame is sent to
+    // frame - frame to be sent
+    //
+    // returns null
+    public void addMsg(Room room, Frame frame) {
+        room.publish(frame);
+
+        if (this.history != null) {
+            this.history.append(HistoryLog.BROADCAST, room.getName(), "", frame);
         }
 
+        if (this.federation != null) {
+            this.federation.relayRoom(room.getName(), frame);
+        }
+    }
+
+    // deliverRemote sends a msg relayed by another server of the cluster to the members of a room on this
+    // server - the room only exists here if it has members here
+    // roomName - name of the room
+    // frame - msg to be sent
+    //
+    // returns null
+    void deliverRemote(String roomName, Frame frame) {
+        Room room = this.rooms.get(roomName);
+        if (room != null) {
+            room.publish(frame);
+        }
+
+        if (this.history != null && frame.getSender() != null) {
+            this.history.append(HistoryLog.BROADCAST, roomName, "", frame);
+        }
     }
 
     // addWhisper sends a msg to a specific client identified by name
@@ -127,7 +584,122 @@ public class Server {
     //
     // returns null
     public void addWhisper(String name, String msg) {
-        this.globalMsgQueue.get(name).push(msg);
+        this.addWhisper(name, new Frame(msg));
+    }
+
+    // addWhisper sends a frame to a specific client identified by name
+    // name - client that the frame will be sent to
+    // frame - frame to be sent
+    //
+    // returns null
+    public void addWhisper(String name, Frame frame) {
+        MsgQueue queue = this.getMsgQueue(name);
+        if (queue != null) {
+            queue.put(frame);
+        }
+    }
+
+    // addWhisper sends a whisper from one client to another, and to the sender so it sees its own msg. A
+    // whisper to an offline client is left in its mailbox
+    // sender - client sending the whisper
+    // name - client that the whisper will be sent to
+    // frame - frame to be sent
+    //
+    // returns false if the client is offline and the whisper could not be left in its mailbox
+    public boolean addWhisper(ClientInfo sender, String name, Frame frame) {
+        this.addWhisper(sender.getName(), frame);
+
+        ClientInfo client = this.getClient(name);
+        if (this.history != null) {
+            this.history.append(HistoryLog.WHISPER, sender.getName(), name, frame, sender, client);
+        }
+
+        if (client != null) {
+            client.getQueue().put(frame);
+            return true;
+        }
+
+        // the client is logged in on another server of the cluster
+        if (this.federation != null && this.federation.relayWhisper(sender.getName(), name, frame)) {
+            return true;
+        }
+
+        return this.storeMail(name, frame);
+    }
+
+    // deliverRemoteWhisper sends a whisper relayed by another server of the cluster to a client on this
+    // server, or leaves it in the client's mailbox if the client has just logged out
+    // sender - remote user that sent the whisper
+    // name - client the whisper is sent to
+    // frame - whisper to be sent
+    //
+    // returns null
+    void deliverRemoteWhisper(ClientInfo sender, String name, Frame frame) {
+        ClientInfo client = this.getClient(name);
+        if (this.history != null) {
+            this.history.append(HistoryLog.WHISPER, sender.getName(), name, frame, client);
+        }
+
+        if (client != null) {
+            client.getQueue().put(frame);
+        }
+        else {
+            this.storeMail(name, frame);
+        }
+    }
+
+    // storeMail leaves a whisper in the mailbox of an offline client
+    // name - client the whisper is sent to
+    // frame - whisper to be stored
+    //
+    // returns false if the whisper could not be left in the client's mailbox
+    private boolean storeMail(String name, Frame frame) {
+        if (this.mailboxes == null || !this.mailboxes.store(name, frame)) {
+            return false;
+        }
+
+        // the client may have logged in, and emptied its mailbox, while the whisper was being stored
+        ClientInfo client = this.getClient(name);
+        if (client != null) {
+            this.deliverMail(client);
+        }
+
+        return true;
+    }
+
+    // deliverMail sends every whisper waiting in a client's mailbox as a single msg, once the mailboxes'
+    // writer has read them back out of the mailbox file
+    // client - client that just logged in
+    //
+    // returns null
+    public void deliverMail(ClientInfo client) {
+        if (this.mailboxes == null) {
+            return;
+        }
+
+        this.mailboxes.take(client.getName(), mail -> {
+            StringBuilder msg = new StringBuilder("MAILBOX: " + mail.size() + " whispers while you were away\n");
+            for (String line : mail) {
+                msg.append(line).append("\n");
+            }
+
+            this.addWhisper(client.getName(), msg.toString());
+        });
+    }
+
+    // getHistory reads the most recent msgs a client is allowed to see - broadcasts to its current room, and
+    // whispers it sent or received since it logged in
+    // client - client asking for the history
+    // count - max number of msgs
+    // since - System.currentTimeMillis before which msgs are left out, 0 for none
+    //
+    // returns the msgs oldest first, or null if history is disabled
+    public List<String> getHistory(ClientInfo client, int count, long since) {
+        if (this.history == null) {
+            return null;
+        }
+
+        return this.history.recent(client.getRoom().getName(), client, count, since);
     }
 
     // haveMsg checks a specific client's msg queue and returns isEmpty()
@@ -135,22 +707,113 @@ public class Server {
     //
     // returns boolean if client msg queue is empty
     public boolean haveMsg(String name) {
-        return !this.globalMsgQueue.get(name).isEmpty();
+        MsgQueue queue = this.getMsgQueue(name);
+        return queue != null && !queue.isEmpty();
+    }
+
+    // getMsg takes the oldest msg off of a client's msg queue, waiting until one is available
+    // name - client to get oldest msg from
+    //
+    // returns oldest encoded msg, or null if the client has been removed
+    public Frame getMsg(String name) throws InterruptedException {
+        MsgQueue queue = this.getMsgQueue(name);
+        if (queue == null) {
+            return null;
+        }
+
+        return queue.take(queue.getAttachment());
     }
 
-    // getMsg pops the top msg off of a client's msg queue and returns the msg
-    // name - client to get top msg from
+    // execute runs a ServerInputThread or ServerOutputThread on the executor chosen at startup
+    // handler - handler to be run
     //
-    // returns popped msg
-    public String getMsg(String name) {
-        return this.globalMsgQueue.get(name).pop();
+    // returns null
+    public void execute(Runnable handler) {
+        this.handlerExecutor.execute(handler);
     }
 
-    // prints server msg in format [new Date()] + msg
+    // virtualThreadExecutor creates an executor that starts a new virtual thread for every handler. This is
+    // looked up reflectively so the server still builds and runs on JDKs without virtual threads, where it
+    // falls back to platform threads
+    //
+    // returns the virtual thread executor
+    private static Executor virtualThreadExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (Exception e) {
+            Server.serverPrint("WARNING: Virtual Threads are not Available on this JVM, using Platform Threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // startStatsPrinter prints the server metrics to the server log at a fixed interval, whenever msgs were sent
+    // interval - seconds between prints, 0 disables printing
+    //
+    // returns null
+    private void startStatsPrinter(int interval) {
+        if (interval <= 0) {
+            return;
+        }
+
+        ScheduledExecutorService printer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stats-printer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long[] lastFlushes = {0};
+        ServerMetrics.Baseline printed = this.metrics.newBaseline();
+        printer.scheduleAtFixedRate(() -> {
+            long flushes = this.flushPolicy.getFlushes();
+            if (flushes != lastFlushes[0]) {
+                lastFlushes[0] = flushes;
+                Server.serverPrint(this.metrics.summary(printed));
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    // flushPolicy getter
+    public FlushPolicy getFlushPolicy() {
+        return this.flushPolicy;
+    }
+
+    // floodControl getter
+    public FloodControl getFloodControl() {
+        return this.floodControl;
+    }
+
+    // sessions getter - null if resuming is disabled
+    public ResumableSessions getSessions() {
+        return this.sessions;
+    }
+
+    // metrics getter
+    public ServerMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    // getMsgQueue gets a specific client's msg queue
+    // name - client to get the queue of
+    //
+    // returns the client's msg queue, or null if the client has been removed
+    public MsgQueue getMsgQueue(String name) {
+        ClientInfo client = this.clients.get(name);
+
+        return client == null ? null : client.getQueue();
+    }
+
+    // prints server msg in format [new Date()] + msg, through the asynchronous ServerLog
+    // msg - msg to print, logged as an error or warning if it starts with ERROR: or WARNING:
+    //
+    // returns null
+    public static void serverPrint(String msg) { LOG.log(msg); }
+
+    // prints server msg that is only shown with -Dchat.logLevel=DEBUG
     // msg - msg to print
     //
     // returns null
-    public static void serverPrint(String msg) { System.out.println("[" + new Date() + "] " + msg); }
+    public static void serverDebug(String msg) { LOG.log(ServerLog.DEBUG, msg); }
 
     // --- MAIN ---
     public static void main(String[] args) {
@@ -164,6 +827,13 @@ public class Server {
             e.printStackTrace();
         }
 
-        new Server();
+        // usage: Server [blocking|virtual|nio] [eventLoops]
+        String mode = args.length > 0 ? args[0] : MODE_BLOCKING;
+        int eventLoops = Runtime.getRuntime().availableProcessors();
+        if (args.length > 1) {
+            eventLoops = Integer.parseInt(args[1]);
+        }
+
+        new Server(mode, eventLoops);
     }
 }
@@ -3,32 +3,35 @@ package main.server;
 
 import java.net.*;
 import java.io.*;
-import java.util.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
-// ServerInputThread handles a clients inputs and feeds them to the appropriate msg queue. It also handles
-// creating the ClientInfo for a client, validating the client's name. Every client has a ServerInputThread
-// associated with it.
-public class ServerInputThread implements Runnable {
+// ServerInputThread handles a clients inputs and feeds them to the client's ChatSession, which validates
+// the client's name and passes msgs on to the appropriate msg queue. Every client has a ServerInputThread
+// associated with it when the server is running the blocking engine.
+public class ServerInputThread implements Runnable, ClientConnection {
 
     // --- FIELDS ---
     private Server server;
     private Socket socket;
-    private BufferedReader input;
+    private BufferedInputStream input;
     private BufferedWriter output;
 
-    private ClientInfo client;
+    // bytes of the line or frame being read, reused for every msg the client sends
+    private byte[] line = new byte[256];
+
+    private ChatSession session;
 
     InetAddress address;
-    boolean whisperMode = false;
-    String whisperTo = "";
 
     // --- CONSTRUCTOR ---
     public ServerInputThread(Server server, Socket socket) {
         this.server = server;
         this.socket = socket;
         this.address = socket.getInetAddress();
+        this.session = new ChatSession(server, this);
 
-        new Thread(this).start();
+        server.execute(this);
     }
 
     // --- RUN ---
@@ -36,138 +39,51 @@ public class ServerInputThread implements Runnable {
         try {
             try {
                 // reader and writer for sending data between server threads and client
-                this.input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                this.output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+                // read as bytes, so the stream can switch to binary frames right after the handshake
+                this.input = new BufferedInputStream(socket.getInputStream());
+                this.output = new BufferedWriter(
+                        new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
 
                 Server.serverPrint("Connected to " + this.address);
 
                 // username
-                String temp = "";
-                while(this.client == null) {
-                    temp = this.input.readLine();
+                while (this.session.getClient() == null) {
+                    int length = this.readLine();
+                    if (length < 0) {
+                        throw new EOFException();
+                    }
 
-                    // disconnect
-                    if (temp.startsWith("/disconnect")) {
+                    if (!this.session.handleLine(this.line, 0, length)) {
                         this.disconnect();
                         return;
                     }
-                    else if (temp.startsWith("/username")){
-                        this.initClient(temp.replace("/username ", ""));
-                    }
                 }
             }
             catch (Exception e) {
                 Server.serverPrint("ERROR: Failed to Communicate with Client\n");
+                this.disconnect();
                 return;
             }
 
-            // launch the ServerOutputThread after ClientInfo initialization
-            new ServerOutputThread(this.server, this.output, this.client.getName(), this.address);
+            // launch the ServerOutputThread after ClientInfo initialization - it writes straight to the channel
+            String name = this.session.getClient().getName();
+            new ServerOutputThread(this.server, this.socket.getChannel(), name, this.address,
+                    this.session.isBinary(), this.session.isDeflate());
 
-            Server.serverPrint(this.address + " confirmed as user " + this.client.getName() + "\n");
+            Server.serverPrint(this.address + " confirmed as user " + name + "\n");
 
             // main msg loop
-            String msg = "";
             while (true) {
                 try {
-                    msg = this.input.readLine();
+                    int length = this.session.isBinary() ? this.readFrame() : this.readLine();
+                    if (length < 0) {
+                        throw new EOFException();
+                    }
 
-                    // disconnect
-                    if (msg.startsWith("/disconnect")) {
+                    if (!this.session.handleLine(this.line, 0, length)) {
                         this.disconnect();
                         return;
                     }
-
-                    // user list
-                    else if (msg.startsWith("/users")) {
-                        ArrayList<String> users = this.server.getUsers();
-                        StringBuilder retString = new StringBuilder("USERS: ");
-
-                        for (int i = 0; i < users.size(); i++) {
-                            if (users.get(i).equals(this.client.getName())) {
-                                retString.append(users.get(i)).append(" (YOU)");
-                            }
-                            else {
-                                retString.append(users.get(i));
-                            }
-
-                            if (i < users.size() - 1) {
-                                retString.append(", ");
-                            }
-                        }
-
-                        this.sendToClient(retString + "\n");
-                    }
-
-                    // whisper to user
-                    else if (msg.startsWith("/whisper")) {
-                        String whisperArg = msg.replace("/whisper ", "").trim();
-
-                        // if whisper is missing args
-                        if (whisperArg.equals("/whisper") || whisperArg.equals("")) {
-                            this.sendToClient("ERROR: Correct usage: /whisper [name|off]\n");
-                        }
-
-                        // disable whisper
-                        else if (this.whisperMode && whisperArg.equals("off")) {
-                            this.sendToClient("You are no longer whispering with [" + this.whisperTo + "]\n");
-
-                            this.whisperMode = false;
-                            this.whisperTo = "";
-                        }
-
-                        // enable whisper with user specified in whisperArg
-                        else {
-                            if (whisperArg.equals(this.client.getName())) {
-                                this.sendToClient("ERROR: You cannot whisper yourself\n");
-                            }
-                            else {
-                                if (!this.server.getUsers().contains(whisperArg)) {
-                                    this.sendToClient("ERROR: User [" + whisperArg + "] does not exist\n");
-                                }
-                                else {
-                                    this.whisperMode = true;
-                                    this.whisperTo = whisperArg;
-
-                                    this.sendToClient("You are now whispering with ["
-                                            + whisperArg + "]. To stop whispering use [/whisper off]\n");
-                                }
-                            }
-                        }
-                    }
-
-                    // basic help print
-                    else if (msg.startsWith("/help")) {
-                        this.sendToClient("COMMANDS: /disconnect, /help, /users, /whisper [name|off]\n");
-                    }
-
-                    // if invalid command
-                    else if (msg.startsWith("/")) {
-                        this.sendToClient("WARNING: Invalid Command | Use [/help] to see all commands\n");
-                    }
-
-                    // regular message
-                    else if (!msg.equals("")){
-                        // whisper msg -> whisperTo
-                        if (this.whisperMode) {
-                            if (!this.server.getUsers().contains(this.whisperTo)) {
-                                this.whisperMode = false;
-                            }
-                        }
-
-                        if (this.whisperMode) {
-                            String whisperMsg = "[" + new Date() + " | "
-                                    + this.client.getName() + "] " + "(whispering...) " + msg;
-
-                            this.sendToClient(whisperMsg);
-                            this.server.addWhisper(this.whisperTo, whisperMsg);
-                        }
-
-                        // broadcast msg -> all clients
-                        else {
-                            this.server.addMsg("[" + new Date() + " | " + this.client.getName() + "] " + msg);
-                        }
-                    }
                 }
                 catch (SocketException e) {
                     Server.serverPrint("WARNING: Dirty Disconnection " + this.address);
@@ -189,54 +105,92 @@ public class ServerInputThread implements Runnable {
         }
     }
 
-    // initClient confirms the username and sets client info in client and server client list
-    // name - name for user
+    // readLine reads a single newline-delimited line of UTF-8 text from the client into the line buffer
     //
-    // returns null
-    private void initClient(String name) throws Exception {
-        // if username is invalid
-        if (name.equals("")) {
-            this.output.write("ERROR: Invalid Username\n");
-            this.output.flush();
+    // returns the length of the line without the trailing newline or carriage return, or -1 if the stream ended
+    private int readLine() throws IOException {
+        int length = 0;
+
+        int b;
+        while ((b = this.input.read()) != '\n') {
+            if (b < 0) {
+                return length == 0 ? -1 : length;
+            }
 
-            return;
+            this.ensureLine(length + 1);
+            this.line[length++] = (byte) b;
         }
 
-        // check if username is taken
-        else {
-            for (String user : this.server.getUsers()) {
-                if (name.equals(user)) {
-                    this.output.write("ERROR: Username already taken\n");
-                    this.output.flush();
-
-                    return;
-                }
-            }
+        if (length > 0 && this.line[length - 1] == '\r') {
+            length--;
         }
 
-        // handshake to confirm username meets server criteria
-        this.output.write("/username accepted\n");
-        this.output.flush();
+        return length;
+    }
 
-        String msg = this.input.readLine();
+    // readFrame reads binary frames from the client until a TEXT frame arrives, copying its payload into the line
+    // buffer - the client only sends TEXT frames
+    //
+    // returns the length of the payload, or -1 if the stream has ended
+    private int readFrame() throws IOException {
+        while (true) {
+            int type = this.input.read();
+            if (type < 0) {
+                return -1;
+            }
+
+            int length = BinaryProtocol.readLength(this.input);
+            this.ensureLine(length);
+            if (this.input.readNBytes(this.line, 0, length) < length) {
+                throw new EOFException();
+            }
 
-        // confirm successful handshake
-        if (msg.equals("/username confirmed")) {
-            this.client = new ClientInfo(name, this.address);
+            if (type == BinaryProtocol.TEXT) {
+                return length;
+            }
+        }
+    }
 
-            this.server.addUser(this.client);
+    // ensureLine grows the line buffer to hold a msg
+    // length - number of bytes the buffer has to hold
+    //
+    // returns null
+    private void ensureLine(int length) throws IOException {
+        if (length <= this.line.length) {
+            return;
         }
-        else {
-            throw new Exception();
+
+        if (length > BinaryProtocol.MAX_PAYLOAD) {
+            throw new IOException("line too long");
         }
+        int size = Math.min(BinaryProtocol.MAX_PAYLOAD, Math.max(length, this.line.length * 2));
+        this.line = Arrays.copyOf(this.line, size);
     }
 
-    // sendToClient whispers a message to the ServerInputThread's client
-    // msg - msg to send to client
+    // sendRaw writes a msg straight to the client's socket during the username handshake
+    // msg - msg to be sent
     //
-    // return null
-    private void sendToClient(String msg) {
-        this.server.addWhisper(this.client.getName(), msg);
+    // returns null
+    public void sendRaw(String msg) throws IOException {
+        this.output.write(msg);
+        this.output.flush();
+    }
+
+    // address getter
+    public InetAddress getAddress() {
+        return this.address;
+    }
+
+    // close closes the socket, which ends the blocked read of the ServerInputThread and makes it disconnect
+    //
+    // returns null
+    public void close() {
+        try {
+            this.socket.close();
+        }
+        catch (IOException e) {
+            // already closed
+        }
     }
 
     // disconnect closes the connection and removes the client from server client lists
@@ -244,21 +198,19 @@ public class ServerInputThread implements Runnable {
     // returns null
     public void disconnect() {
         try {
-            Server.serverPrint("Attempting to Disconnect " + this.address + "...");
+            Server.serverDebug("Attempting to Disconnect " + this.address + "...");
 
             this.input.close();
             this.socket.close();
 
-            if (this.client != null) {
-                this.server.removeUser(this.client);
-            }
+            this.session.close();
 
             Server.serverPrint("Disconnected " + this.address + "\n");
         }
         catch (Exception e) {
             Server.serverPrint("WARNING: Failed to Close Thread Connection " + this.address);
             Server.serverPrint("Force Removing Connection " + this.address +  "\n");
-            this.server.removeUser(this.client);
+            this.session.close();
         }
     }
 }
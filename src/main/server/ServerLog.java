@@ -0,0 +1,301 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// ServerLog is the server's asynchronous log. Logging a line only puts it on a bounded queue - a single
+// background writer thread takes the lines off in batches, formats them and writes them to the console and to
+// a log file, so a slow terminal or a full pipe never holds up the thread that logged. If the writer falls so
+// far behind that the queue fills, new lines are dropped and counted instead of waiting. The log file is
+// rotated once it reaches maxFileSize, keeping the newest maxFiles files as file, file.1, file.2 ...
+public class ServerLog implements Runnable {
+
+    // --- FIELDS ---
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+
+    private static final String[] LEVEL_NAMES = {"DEBUG", "INFO", "WARN", "ERROR"};
+
+    private final int level;
+    private final boolean console;
+
+    // log file & its rotation, only touched by the writer thread
+    private final File file;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private Writer fileWriter;
+    private long fileSize;
+
+    private final ArrayBlockingQueue<Line> pending;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean writing = false;
+
+    private final Thread writer;
+
+    // --- CONSTRUCTOR ---
+    // level - lowest level that is logged
+    // console - if lines are written to the console
+    // file - log file, or null to only log to the console
+    // maxFileSize - size in bytes the log file may reach before it is rotated
+    // maxFiles - number of log files kept, including the current one
+    // queueSize - number of lines that may wait for the writer before new lines are dropped
+    public ServerLog(int level, boolean console, File file, long maxFileSize, int maxFiles, int queueSize) {
+        this.level = level;
+        this.console = console;
+        this.file = file;
+        this.maxFileSize = Math.max(64 * 1024, maxFileSize);
+        this.maxFiles = Math.max(1, maxFiles);
+        this.pending = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+
+        if (file != null) {
+            this.openFile();
+        }
+
+        this.writer = new Thread(this, "server-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+
+        // give the writer a moment to finish the last lines when the server exits
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "server-log-shutdown"));
+    }
+
+    // fromProperties creates the log from -Dchat.logLevel, -Dchat.logConsole, -Dchat.logFile, -Dchat.logFileSize,
+    // -Dchat.logFiles and -Dchat.logQueueSize
+    //
+    // returns the log, the file is left out with -Dchat.logFile=
+    public static ServerLog fromProperties() {
+        String level = System.getProperty("chat.logLevel", "INFO");
+        String file = System.getProperty("chat.logFile", "server.log");
+
+        return new ServerLog(ServerLog.parseLevel(level),
+                !System.getProperty("chat.logConsole", "true").equals("false"),
+                file.equals("") ? null : new File(file),
+                Long.getLong("chat.logFileSize", 8 << 20),
+                Integer.getInteger("chat.logFiles", 4),
+                Integer.getInteger("chat.logQueueSize", 8192));
+    }
+
+    // --- RUN ---
+    public void run() {
+        ArrayList<Line> batch = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+
+        while (true) {
+            try {
+                batch.add(this.pending.take());
+                this.writing = true;
+                this.pending.drainTo(batch);
+
+                long dropped = this.dropped.getAndSet(0);
+                if (dropped > 0) {
+                    ServerLog.format(text, new Line(WARN, System.currentTimeMillis(),
+                            "WARNING: " + dropped + " log lines were dropped because the log fell behind"));
+                }
+
+                for (Line line : batch) {
+                    ServerLog.format(text, line);
+                }
+                batch.clear();
+
+                this.write(text);
+                text.setLength(0);
+                this.writing = false;
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            catch (Exception e) {
+                batch.clear();
+                text.setLength(0);
+                this.writing = false;
+            }
+        }
+    }
+
+    // log hands a line to the writer without waiting - if the writer has fallen too far behind the line is
+    // dropped
+    // level - level of the line
+    // msg - line to be logged
+    //
+    // returns null
+    public void log(int level, String msg) {
+        if (level < this.level) {
+            return;
+        }
+
+        if (!this.pending.offer(new Line(level, System.currentTimeMillis(), msg))) {
+            this.dropped.incrementAndGet();
+        }
+    }
+
+    // log logs a line at the level its prefix asks for - lines starting with ERROR: or WARNING: are logged as
+    // errors or warnings, everything else as info
+    // msg - line to be logged
+    //
+    // returns null
+    public void log(String msg) {
+        int level = INFO;
+        if (msg.startsWith("ERROR:")) {
+            level = ERROR;
+        }
+        else if (msg.startsWith("WARNING:")) {
+            level = WARN;
+        }
+
+        this.log(level, msg);
+    }
+
+    // dropped getter - number of lines dropped since the writer last caught up
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    // format appends a line to the batch of text being written, in the same form serverPrint always used
+    // text - text of the batch
+    // line - line to be added
+    //
+    // returns null
+    private static void format(StringBuilder text, Line line) {
+        text.append('[').append(TimestampCache.format(line.time)).append("] ");
+        if (line.level == DEBUG) {
+            text.append("DEBUG: ");
+        }
+        text.append(line.msg).append(System.lineSeparator());
+    }
+
+    // write writes a batch of formatted lines to the console and the log file, rotating the file if it is full
+    // text - formatted lines
+    //
+    // returns null
+    private void write(StringBuilder text) {
+        if (this.console) {
+            System.out.print(text);
+            System.out.flush();
+        }
+
+        if (this.fileWriter == null) {
+            return;
+        }
+
+        try {
+            if (this.fileSize >= this.maxFileSize) {
+                this.rotate();
+            }
+
+            this.fileWriter.append(text);
+            this.fileWriter.flush();
+            this.fileSize += text.length();
+        }
+        catch (IOException e) {
+            System.err.println("ERROR: Failed to Write to " + this.file + ", File Logging is Disabled");
+            this.closeFile();
+        }
+    }
+
+    // rotate shifts every kept log file down by one, deleting the oldest, and starts a new log file
+    //
+    // returns null
+    private void rotate() {
+        this.closeFile();
+
+        for (int i = this.maxFiles - 1; i >= 1; i--) {
+            File older = new File(this.file.getPath() + "." + i);
+            File newer = i == 1 ? this.file : new File(this.file.getPath() + "." + (i - 1));
+
+            if (newer.exists()) {
+                older.delete();
+                newer.renameTo(older);
+            }
+        }
+        if (this.maxFiles == 1) {
+            this.file.delete();
+        }
+
+        this.openFile();
+    }
+
+    // openFile opens the log file for appending
+    //
+    // returns null
+    private void openFile() {
+        try {
+            File parent = this.file.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+
+            this.fileWriter = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(this.file, true), StandardCharsets.UTF_8));
+            this.fileSize = this.file.length();
+        }
+        catch (IOException e) {
+            System.err.println("ERROR: Failed to Open " + this.file + ", File Logging is Disabled");
+            this.fileWriter = null;
+        }
+    }
+
+    // closeFile closes the log file, if it is open
+    //
+    // returns null
+    private void closeFile() {
+        if (this.fileWriter == null) {
+            return;
+        }
+
+        try {
+            this.fileWriter.close();
+        }
+        catch (IOException e) {
+            // nothing more can be written to it
+        }
+        this.fileWriter = null;
+    }
+
+    // close waits a moment for the writer to finish the lines already logged
+    //
+    // returns null
+    private void close() {
+        long deadline = System.currentTimeMillis() + 1000;
+        while ((!this.pending.isEmpty() || this.writing) && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(5);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // parseLevel reads a level name
+    // name - DEBUG, INFO, WARN or ERROR
+    //
+    // returns the level, INFO if the name is not a level
+    static int parseLevel(String name) {
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+
+        return INFO;
+    }
+
+    // Line is a single logged line, waiting for the writer
+    private static final class Line {
+        final int level;
+        final long time;
+        final String msg;
+
+        Line(int level, long time, String msg) {
+            this.level = level;
+            this.time = time;
+            this.msg = msg;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// ServerMetrics counts what the server is doing - msgs in & out, bytes written, and how long msgs wait between
+// being published and being written to a client. Every counter is a LongAdder, and the latency histogram is a
+// fixed array of LongAdders with one power of two bucket per range of microseconds, so recording never takes a
+// lock and threads recording at the same time do not contend on a single counter. Queue depths & lag are not
+// recorded at all - they are read off of the clients' msg queues when a summary is asked for.
+public class ServerMetrics {
+
+    // --- FIELDS ---
+    // bucket i counts latencies below 2^i microseconds, the last bucket counts everything above
+    private static final int BUCKETS = 32;
+
+    private final Server server;
+    private final FlushPolicy flushPolicy;
+
+    private final LongAdder msgsIn = new LongAdder();
+    private final LongAdder msgsThrottled = new LongAdder();
+    private final LongAdder msgsOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    private final LongAdder[] latency = new LongAdder[BUCKETS];
+    private final LongAccumulator maxLatency = new LongAccumulator(Math::max, 0);
+
+    private final long startTime = System.nanoTime();
+
+    // --- CONSTRUCTOR ---
+    // server - server whose clients are summarized
+    // flushPolicy - policy whose batch counters are summarized
+    public ServerMetrics(Server server, FlushPolicy flushPolicy) {
+        this.server = server;
+        this.flushPolicy = flushPolicy;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            this.latency[i] = new LongAdder();
+        }
+    }
+
+    // recordIn counts a msg or command received from a client
+    //
+    // returns null
+    public void recordIn() {
+        this.msgsIn.increment();
+    }
+
+    // recordThrottled counts a msg or command dropped by the server's FloodControl
+    //
+    // returns null
+    public void recordThrottled() {
+        this.msgsThrottled.increment();
+    }
+
+    // recordOut counts a write to a client
+    // frames - number of msgs written together
+    // bytes - number of bytes written
+    //
+    // returns null
+    public void recordOut(int frames, long bytes) {
+        this.msgsOut.add(frames);
+        this.bytesOut.add(bytes);
+    }
+
+    // recordLatency counts how long a msg waited between being published and being written to a client
+    // nanos - time waited in nanoseconds
+    //
+    // returns null
+    public void recordLatency(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+
+        this.latency[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+        this.maxLatency.accumulate(micros);
+    }
+
+    // percentile estimates a latency percentile from the histogram
+    // p - percentile between 0 and 1
+    //
+    // returns the upper bound of the bucket holding the percentile in microseconds, or 0 if nothing was recorded
+    public long percentile(double p) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.latency[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(1L << i, this.maxLatency.get());
+            }
+        }
+
+        return this.maxLatency.get();
+    }
+
+    // newBaseline starts a new interval for rates, counted from when the server started
+    //
+    // returns the baseline
+    public Baseline newBaseline() {
+        return new Baseline(this.startTime);
+    }
+
+    // summary formats every metric on a single line, with rates since the caller's last summary. Every caller
+    // keeps its own baseline, so an admin asking for /stats does not change the rates of the periodic log
+    // since - baseline of the caller, moved up to now
+    //
+    // returns the formatted metrics
+    public String summary(Baseline since) {
+        long now = System.nanoTime();
+        long in = this.msgsIn.sum();
+        long out = this.msgsOut.sum();
+        long bytes = this.bytesOut.sum();
+
+        double inRate;
+        double outRate;
+        double byteRate;
+        synchronized (since) {
+            double seconds = Math.max(1e-9, (now - since.time) / 1e9);
+            inRate = (in - since.in) / seconds;
+            outRate = (out - since.out) / seconds;
+            byteRate = (bytes - since.bytes) / seconds;
+
+            since.time = now;
+            since.in = in;
+            since.out = out;
+            since.bytes = bytes;
+        }
+
+        // queue depth & lag of every client right now
+        ArrayList<ClientInfo> clients = this.server.getClients();
+        long totalDepth = 0;
+        long maxDepth = 0;
+        long maxLag = 0;
+        for (ClientInfo client : clients) {
+            MsgQueue queue = client.getQueue();
+            totalDepth += queue.depth();
+            maxDepth = Math.max(maxDepth, queue.depth());
+            maxLag = Math.max(maxLag, queue.lag());
+        }
+
+        return String.format("STATS: users %d, rooms %d | in %d (%.0f/s), throttled %d | out %d (%.0f/s), "
+                        + "%d bytes (%.0f/s) | queue depth avg %.1f max %d, lag max %d | "
+                        + "latency p50 %dus p99 %dus max %dus | %.2f msgs per flush",
+                clients.size(), this.server.getRooms().size(), in, inRate, this.msgsThrottled.sum(), out, outRate,
+                bytes, byteRate, clients.isEmpty() ? 0.0 : (double) totalDepth / clients.size(), maxDepth, maxLag,
+                this.percentile(0.5), this.percentile(0.99), this.maxLatency.get(),
+                this.flushPolicy.averageBatch());
+    }
+
+    // Baseline is the counters at a caller's last summary, so the summary can show rates over the caller's own
+    // interval
+    public static final class Baseline {
+        private long time;
+        private long in = 0;
+        private long out = 0;
+        private long bytes = 0;
+
+        private Baseline(long time) {
+            this.time = time;
+        }
+    }
+}
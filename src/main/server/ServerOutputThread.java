@@ -1,37 +1,99 @@
 // Nicholas Delli Carpini
 package main.server;
 
-import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 
-// ServerOutputThread handles sending messages to a client by continually popping msgs off of the client's
-// msg queue. Each client has a ServerOutputThread associated with it.
+// ServerOutputThread handles sending messages to a client by taking msgs off of the client's msg queue
+// in the order they were sent. Each client has a ServerOutputThread associated with it.
 public class ServerOutputThread implements Runnable {
 
     // --- FIELDS ---
     private Server server;
-    private BufferedWriter output;
+    private SocketChannel output;
     private String clientN;
+    private boolean binary;
     InetAddress address;
 
+    // compresses the whole stream if the client negotiated compression, otherwise null
+    private DeflateStream deflate;
+
+    // views of the encoded frames written in a single gathering write, and when each frame was published
+    private FlushPolicy flushPolicy;
+    private ByteBuffer[] batch;
+    private long[] created;
+
+    private ServerMetrics metrics;
+
+    // client's msg queue, and the attachment of it this connection serves - see MsgQueue.getAttachment
+    private MsgQueue queue;
+    private int attachment;
+
     // --- CONSTRUCTOR ---
-    public ServerOutputThread(Server server, BufferedWriter output, String clientN, InetAddress address) {
+    // binary - if the client switched to the binary protocol during the handshake
+    // deflate - if the client switched to a compressed stream during the handshake
+    public ServerOutputThread(Server server, SocketChannel output, String clientN, InetAddress address,
+                              boolean binary, boolean deflate) {
         this.server = server;
         this.output = output;
         this.clientN = clientN;
         this.address = address;
+        this.binary = binary;
+        this.deflate = deflate ? new DeflateStream() : null;
+
+        this.flushPolicy = server.getFlushPolicy();
+        this.batch = new ByteBuffer[this.flushPolicy.getMaxBatch()];
+        this.created = new long[this.batch.length];
+        this.metrics = server.getMetrics();
 
-        new Thread(this).start();
+        // read before the thread starts, so a resume that takes the client over later is never mistaken for ours
+        this.queue = server.getMsgQueue(clientN);
+        this.attachment = this.queue == null ? 0 : this.queue.getAttachment();
+
+        server.execute(this);
     }
 
     // --- RUN ---
     public void run() {
-        while (true) {
+        MsgQueue queue = this.queue;
+        int lastSize = 0;
+
+        // a client that falls too far behind is cut off by closing the channel, which also ends any write
+        // stuck on the client and makes the ServerInputThread disconnect it
+        if (queue != null) {
+            queue.setOverflowHandler(this::closeSlowClient);
+        }
+
+        while (queue != null) {
             try {
-                if (server.haveMsg(clientN)) {
-                    this.output.write(server.getMsg(clientN) + "\n");
-                    this.output.flush();
+                // parks until a msg is queued - null means the client has been removed, fell too far behind or
+                // was taken over by a new connection
+                Frame frame = queue.take(this.attachment);
+                if (frame == null) {
+                    break;
+                }
+                long deadline = System.nanoTime() + this.flushPolicy.getMaxDelay();
+
+                // send every msg that is already waiting along with it, in one gathering write
+                int size = this.drain(queue, frame, 0);
+
+                // while msgs are arriving in bursts, wait a little for the batch to fill up
+                while (this.flushPolicy.shouldLinger(lastSize, size)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || (frame = queue.poll(remaining, this.attachment)) == null) {
+                        break;
+                    }
+
+                    size = this.drain(queue, frame, size);
+                }
+
+                if (size > 0) {
+                    this.write(size);
+                    this.flushPolicy.record(size);
                 }
+                lastSize = size;
             }
             catch (Exception e) {
                 try {
@@ -44,7 +106,79 @@ public class ServerOutputThread implements Runnable {
                 break;
             }
         }
+
+        if (this.deflate != null) {
+            this.deflate.close();
+        }
     }
-}
 
+    // closeSlowClient closes the channel of a client that fell too far behind
+    //
+    // returns null
+    private void closeSlowClient() {
+        Server.serverPrint("WARNING: " + this.clientN + " Fell too far Behind " + this.address);
 
+        try {
+            this.output.close();
+        }
+        catch (Exception e) {
+            Server.serverPrint("ERROR: Could not Cleanly close SeverOutputThread for "
+                    + this.address + "\n");
+        }
+    }
+
+    // drain adds a frame and every frame already waiting on the queue to the batch, skipping frames that are
+    // not sent to clients using this client's protocol
+    // queue - client's msg queue
+    // frame - frame already taken off of the queue
+    // size - number of buffers already in the batch
+    //
+    // returns the new number of buffers in the batch
+    private int drain(MsgQueue queue, Frame frame, int size) {
+        do {
+            ByteBuffer buffer = frame.buffer(this.binary);
+            if (buffer != null) {
+                this.created[size] = frame.getCreated();
+                this.batch[size++] = buffer;
+            }
+        }
+        while (size < this.batch.length && (frame = queue.poll(this.attachment)) != null);
+
+        return size;
+    }
+
+    // write writes the first size buffers of the batch to the client, compressed into a single buffer if the
+    // client negotiated compression
+    // size - number of buffers in the batch
+    //
+    // returns null
+    private void write(int size) throws Exception {
+        long bytes = 0;
+
+        if (this.deflate != null) {
+            ByteBuffer compressed = this.deflate.compress(this.batch, 0, size);
+            while (compressed.hasRemaining()) {
+                bytes += this.output.write(compressed);
+            }
+
+            // compress consumed every buffer of the batch, which are let go of all at once
+            Arrays.fill(this.batch, 0, size, null);
+        }
+        else {
+            int first = 0;
+            while (first < size) {
+                bytes += this.output.write(this.batch, first, size - first);
+
+                while (first < size && !this.batch[first].hasRemaining()) {
+                    this.batch[first++] = null;
+                }
+            }
+        }
+
+        long now = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            this.metrics.recordLatency(now - this.created[i]);
+        }
+        this.metrics.recordOut(size, bytes);
+    }
+}
@@ -0,0 +1,15 @@
+// Nicholas Delli Carpini
+package main.server;
+
+// Shard is a slice of the server's clients that is served by a single thread - a NioEventLoop and the
+// connections registered with it. A broadcast to a room wakes each shard with members in the room once, and
+// the shard then drains the msg queue of each of its members in the room itself, instead of every member
+// being woken on its own by the thread that sent the broadcast.
+public interface Shard {
+
+    // wake tells the shard a msg has been published to a room - may be called from any thread
+    // room - room the msg was published to
+    //
+    // returns null
+    void wake(Room room);
+}
@@ -0,0 +1,56 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// TimestampCache renders the timestamps shown in chat msgs & server log lines. The format only goes down to the
+// second, so each second is formatted once and every msg in that second reuses the same string. A few recent
+// seconds are kept, so msgs stamped just before a second ticks over do not keep pushing each other out.
+public final class TimestampCache {
+
+    // --- FIELDS ---
+    private static final int SLOTS = 4;
+
+    private static final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<>(SLOTS);
+
+    // --- CONSTRUCTOR ---
+    private TimestampCache() {
+    }
+
+    // format renders a time in the same format as Date.toString()
+    // millis - time in epoch millis
+    //
+    // returns the formatted time
+    public static String format(long millis) {
+        long second = Math.floorDiv(millis, 1000L);
+        int slot = (int) (second & (SLOTS - 1));
+
+        Entry entry = entries.get(slot);
+        if (entry == null || entry.second != second) {
+            // two threads may format the same second, which only costs a duplicate format
+            entry = new Entry(second, new Date(second * 1000L).toString());
+            entries.set(slot, entry);
+        }
+
+        return entry.text;
+    }
+
+    // now renders the current time
+    //
+    // returns the formatted time
+    public static String now() {
+        return format(System.currentTimeMillis());
+    }
+
+    // Entry is a formatted second
+    private static final class Entry {
+        final long second;
+        final String text;
+
+        Entry(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+}
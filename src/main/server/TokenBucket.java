@@ -0,0 +1,44 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// TokenBucket allows rate tokens per second, with up to burst tokens saved up while idle. Rather than counting
+// tokens, the bucket keeps the time at which it would be full again - taking a token pushes that time a single
+// token's worth into the future, and a token is only available while the time is less than a full burst ahead
+// of now. That is a single long, so taking a token is one compare & set and the bucket never takes a lock.
+public class TokenBucket {
+
+    // --- FIELDS ---
+    // nanoseconds it takes to earn a single token, and how far ahead of now the full time may be
+    private final long interval;
+    private final long tolerance;
+
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+    // --- CONSTRUCTOR ---
+    // rate - tokens earned per second
+    // burst - max number of tokens saved up
+    public TokenBucket(double rate, int burst) {
+        this.interval = Math.max(1, (long) (1e9 / rate));
+        this.tolerance = this.interval * Math.max(0, burst - 1);
+    }
+
+    // tryTake takes a token, if one is available
+    // now - current System.nanoTime
+    //
+    // returns boolean if a token was taken
+    public boolean tryTake(long now) {
+        while (true) {
+            long fullAt = this.fullAt.get();
+            long start = fullAt == Long.MIN_VALUE || fullAt - now < 0 ? now : fullAt;
+
+            if (start - now > this.tolerance) {
+                return false;
+            }
+            if (this.fullAt.compareAndSet(fullAt, start + this.interval)) {
+                return true;
+            }
+        }
+    }
+}
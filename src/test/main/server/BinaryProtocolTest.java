@@ -0,0 +1,93 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.net.ProtocolException;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+// BinaryProtocolTest checks the framing of the binary protocol, and that a client sending a bad frame header is
+// dropped without holding up the rest of the server
+class BinaryProtocolTest {
+
+    // length varint decoding to -6 - passed the MAX_PAYLOAD check before it was rejected
+    private static final byte[] NEGATIVE_LENGTH = {BinaryProtocol.TEXT, (byte) 0xFA, (byte) 0xFF, (byte) 0xFF,
+            (byte) 0xFF, 0x0F};
+
+    // length varint that never ends
+    private static final byte[] ENDLESS_LENGTH = {BinaryProtocol.TEXT, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+            (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01};
+
+    @Test
+    void frameLengthOfCompleteAndPartialFrames() throws Exception {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(BinaryProtocol.TEXT);
+        BinaryProtocol.writeVarInt(frame, 300);
+        frame.write(new byte[300], 0, 300);
+        byte[] bytes = frame.toByteArray();
+
+        assertEquals(303, BinaryProtocol.frameLength(bytes, 0, bytes.length));
+        assertEquals(3, BinaryProtocol.payloadOffset(bytes, 0));
+        assertEquals(-1, BinaryProtocol.frameLength(bytes, 0, bytes.length - 1));
+        assertEquals(-1, BinaryProtocol.frameLength(bytes, 0, 2));
+        assertEquals(300, BinaryProtocol.readLength(new ByteArrayInputStream(bytes, 1, bytes.length - 1)));
+    }
+
+    @Test
+    void frameLengthRejectsBadHeaders() {
+        assertThrows(ProtocolException.class,
+                () -> BinaryProtocol.frameLength(NEGATIVE_LENGTH, 0, NEGATIVE_LENGTH.length));
+        assertThrows(ProtocolException.class,
+                () -> BinaryProtocol.frameLength(ENDLESS_LENGTH, 0, ENDLESS_LENGTH.length));
+
+        byte[] tooLong = {BinaryProtocol.TEXT, (byte) 0x81, (byte) 0x80, 0x04};
+        assertThrows(ProtocolException.class, () -> BinaryProtocol.frameLength(tooLong, 0, tooLong.length));
+    }
+
+    @Test
+    void readLengthRejectsBadHeaders() {
+        assertThrows(ProtocolException.class, () -> BinaryProtocol.readLength(
+                new ByteArrayInputStream(NEGATIVE_LENGTH, 1, NEGATIVE_LENGTH.length - 1)));
+        assertThrows(ProtocolException.class, () -> BinaryProtocol.readLength(
+                new ByteArrayInputStream(ENDLESS_LENGTH, 1, ENDLESS_LENGTH.length - 1)));
+        assertThrows(EOFException.class, () -> BinaryProtocol.readLength(
+                new ByteArrayInputStream(new byte[] {(byte) 0x80})));
+    }
+
+    @Test
+    void nioDropsClientSendingBadHeader() throws Exception {
+        this.dropsClientSendingBadHeader(Server.MODE_NIO);
+    }
+
+    @Test
+    void blockingDropsClientSendingBadHeader() throws Exception {
+        this.dropsClientSendingBadHeader(Server.MODE_BLOCKING);
+    }
+
+    // dropsClientSendingBadHeader logs in a binary client that sends a bad frame header, then checks that it is
+    // disconnected and that another client on the same event loop is still answered
+    // mode - engine the server runs
+    //
+    // returns null
+    private void dropsClientSendingBadHeader(String mode) throws Exception {
+        TestServer server = TestServer.start(mode, Map.of());
+
+        try (TestClient bad = server.connect(); TestClient good = server.connect()) {
+            bad.loginBinary("bad");
+            bad.sendText("/rooms");
+            bad.readTextFrameContaining("lobby");
+
+            bad.sendRaw(NEGATIVE_LENGTH);
+            assertTrue(bad.isClosedByServer());
+
+            good.login("good");
+            good.sendLine("still here");
+            good.readLineContaining("] still here");
+        }
+    }
+}
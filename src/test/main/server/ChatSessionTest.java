@@ -0,0 +1,63 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+// ChatSessionTest runs clients through a real server to check the session's handling of their lines
+class ChatSessionTest {
+
+    @Test
+    void statsNeedTheAdminSecret() throws Exception {
+        TestServer server = TestServer.start(Server.MODE_NIO, Map.of("chat.adminSecret", "s3cret"));
+
+        try (TestClient client = server.connect()) {
+            // a client connected from the server's own machine is not an admin by itself
+            client.login("admin");
+            client.sendLine("/stats");
+            client.readLineContaining("Invalid Command");
+
+            client.sendLine("/admin guess");
+            client.readLineContaining("ERROR: Wrong admin secret");
+            client.sendLine("/stats");
+            client.readLineContaining("Invalid Command");
+
+            client.sendLine("/admin s3cret");
+            client.readLineContaining("Admin commands enabled");
+            client.sendLine("/stats");
+            assertTrue(client.readLineContaining("STATS:").contains("users 1"));
+        }
+        finally {
+            System.clearProperty("chat.adminSecret");
+        }
+    }
+
+    @Test
+    void mutedClientCanStillDisconnect() throws Exception {
+        TestServer server = TestServer.start(Server.MODE_BLOCKING,
+                Map.of("chat.floodRate", "2", "chat.floodBurst", "2", "chat.floodWarnings", "1"));
+
+        try (TestClient watcher = server.connect(); TestClient flooder = server.connect()) {
+            watcher.login("watcher");
+
+            // a resumable client whose /disconnect is dropped would be detached, holding on to its name
+            flooder.loginResumable("flooder");
+
+            for (int i = 0; i < 6; i++) {
+                flooder.sendText("flood " + i);
+            }
+            flooder.readTextFrameContaining("You have been muted");
+
+            flooder.sendText("/disconnect");
+            assertTrue(flooder.isClosedByServer());
+            watcher.readLineContaining("flooder has disconnected");
+        }
+        finally {
+            System.clearProperty("chat.floodBurst");
+            System.clearProperty("chat.floodWarnings");
+        }
+    }
+}
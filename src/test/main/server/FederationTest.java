@@ -0,0 +1,253 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+// FederationTest links a hand-rolled peer to a real server's peer port, to check only peers that know the
+// cluster's secret and are listed in -Dchat.peerIds get their records taken
+class FederationTest {
+
+    // --- FIELDS ---
+    private static final byte HELLO = 0;
+    private static final byte JOIN = 1;
+    private static final byte AUTH = 5;
+
+    private static final String SECRET = "cluster-secret";
+
+    @AfterEach
+    void clearCluster() {
+        System.clearProperty("chat.peerSecret");
+        System.clearProperty("chat.peerIds");
+        System.clearProperty("chat.nodeId");
+    }
+
+    @Test
+    void listedPeerWithTheSecretIsLinked() throws Exception {
+        int peerPort = FederationTest.freePort();
+        TestServer server = FederationTest.startNode(peerPort);
+
+        try (TestClient client = server.connect(); Socket peer = FederationTest.dialPeer(peerPort)) {
+            FederationTest.authenticate(peer, "node-b", SECRET, true);
+            FederationTest.send(peer, FederationTest.record(JOIN, "remote-bob", true));
+
+            // the JOIN is handled on the link's reader thread, so the directory may lag the login a little
+            client.login("local-alice");
+            for (int i = 0; ; i++) {
+                client.sendLine("/users");
+                if (client.readLineContaining("USERS:").contains("remote-bob")) {
+                    break;
+                }
+                assertTrue(i < 50, "remote-bob never joined");
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    @Test
+    void peerWithTheWrongSecretIsDropped() throws Exception {
+        int peerPort = FederationTest.freePort();
+        TestServer server = FederationTest.startNode(peerPort);
+
+        try (TestClient client = server.connect(); Socket peer = FederationTest.dialPeer(peerPort)) {
+            FederationTest.authenticate(peer, "node-b", "guess", true);
+
+            // the JOIN goes out before the server has hung up, and must never reach the directory
+            FederationTest.send(peer, FederationTest.record(JOIN, "intruder", true));
+            assertTrue(FederationTest.isClosedByServer(peer));
+
+            client.login("local-alice");
+            client.sendLine("/users");
+            assertFalse(client.readLineContaining("USERS:").contains("intruder"));
+        }
+    }
+
+    @Test
+    void proofSignedForTheOtherSideOfTheLinkIsDropped() throws Exception {
+        int peerPort = FederationTest.freePort();
+        TestServer server = FederationTest.startNode(peerPort);
+
+        // a proof node-b signed on a link node-a dialed, relayed onto a link node-b is said to have dialed
+        try (TestClient client = server.connect(); Socket peer = FederationTest.dialPeer(peerPort)) {
+            FederationTest.authenticate(peer, "node-b", SECRET, false);
+
+            FederationTest.send(peer, FederationTest.record(JOIN, "relayed", true));
+            assertTrue(FederationTest.isClosedByServer(peer));
+
+            client.login("local-alice");
+            client.sendLine("/users");
+            assertFalse(client.readLineContaining("USERS:").contains("relayed"));
+        }
+    }
+
+    @Test
+    void unlistedPeerIsRefusedBeforeItIsChallenged() throws Exception {
+        int peerPort = FederationTest.freePort();
+        FederationTest.startNode(peerPort);
+
+        try (Socket peer = FederationTest.dialPeer(peerPort)) {
+            FederationTest.readRecord(new DataInputStream(peer.getInputStream()));
+            FederationTest.send(peer, FederationTest.record(HELLO, "node-x", new byte[16]));
+
+            assertTrue(FederationTest.isClosedByServer(peer));
+        }
+    }
+
+    // startNode starts a server of a cluster only node-b may link to, with its peer port on loopback
+    // peerPort - port the server takes links on
+    //
+    // returns the server
+    private static TestServer startNode(int peerPort) throws Exception {
+        TestServer server = TestServer.start(Server.MODE_NIO, Map.of("chat.peerPort", String.valueOf(peerPort),
+                "chat.peerSecret", SECRET, "chat.peerIds", "node-b", "chat.nodeId", "node-a"));
+
+        for (int i = 0; ; i++) {
+            try (Socket probe = new Socket(InetAddress.getLoopbackAddress(), peerPort)) {
+                return server;
+            }
+            catch (IOException e) {
+                if (i == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // dialPeer opens a link to a server's peer port, reading with a timeout
+    // peerPort - port the server takes links on
+    //
+    // returns the socket
+    private static Socket dialPeer(int peerPort) throws IOException {
+        Socket peer = new Socket(InetAddress.getLoopbackAddress(), peerPort);
+        peer.setSoTimeout(5000);
+
+        return peer;
+    }
+
+    // authenticate runs the hello & auth handshake as a peer would, signing with the given secret
+    // peer - socket linked to the server
+    // nodeId - node id the peer says hello with
+    // secret - secret the peer signs with
+    // dialed - boolean if the peer signs as the side that dialed the link, as it should
+    //
+    // returns null
+    private static void authenticate(Socket peer, String nodeId, String secret, boolean dialed) throws Exception {
+        DataInputStream in = new DataInputStream(peer.getInputStream());
+
+        DataInputStream hello = FederationTest.readRecord(in);
+        assertEquals(HELLO, hello.readByte());
+        assertEquals("node-a", new String(FederationTest.readField(hello), StandardCharsets.UTF_8));
+        byte[] serverNonce = FederationTest.readField(hello);
+
+        byte[] nonce = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+        FederationTest.send(peer, FederationTest.record(HELLO, nodeId, nonce));
+
+        DataInputStream auth = FederationTest.readRecord(in);
+        assertEquals(AUTH, auth.readByte());
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        byte[] signed = FederationTest.record(AUTH, dialed, nodeId, "node-a", serverNonce, nonce);
+        FederationTest.send(peer, FederationTest.record(AUTH, mac.doFinal(signed)));
+    }
+
+    // record encodes a record
+    // type - record type
+    // fields - Strings, byte[]s and Booleans of the record, in order
+    //
+    // returns the encoded record
+    private static byte[] record(byte type, Object... fields) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeByte(type);
+        for (Object field : fields) {
+            if (field instanceof Boolean) {
+                out.writeBoolean((Boolean) field);
+            }
+            else {
+                byte[] value = field instanceof String ? ((String) field).getBytes(StandardCharsets.UTF_8)
+                        : (byte[]) field;
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+
+    // send frames a record and sends it
+    // peer - socket linked to the server
+    // record - encoded record
+    //
+    // returns null
+    private static void send(Socket peer, byte[] record) throws IOException {
+        DataOutputStream out = new DataOutputStream(peer.getOutputStream());
+        out.writeInt(record.length);
+        out.write(record);
+        out.flush();
+    }
+
+    // readRecord reads the next record the server sends
+    // in - stream of the link
+    //
+    // returns the record
+    private static DataInputStream readRecord(DataInputStream in) throws IOException {
+        byte[] record = new byte[in.readInt()];
+        in.readFully(record);
+
+        return new DataInputStream(new ByteArrayInputStream(record));
+    }
+
+    // readField reads a length-prefixed field of a record
+    // record - record being read
+    //
+    // returns the bytes of the field
+    private static byte[] readField(DataInputStream record) throws IOException {
+        byte[] field = new byte[record.readInt()];
+        record.readFully(field);
+
+        return field;
+    }
+
+    // isClosedByServer reads until the server closes the link, throwing everything away
+    // peer - socket linked to the server
+    //
+    // returns boolean if the server closed the link before the read timed out
+    private static boolean isClosedByServer(Socket peer) throws IOException {
+        try {
+            while (peer.getInputStream().read() >= 0) {
+                // thrown away
+            }
+            return true;
+        }
+        catch (java.net.SocketTimeoutException e) {
+            return false;
+        }
+        catch (java.net.SocketException e) {
+            // reset by the server
+            return true;
+        }
+    }
+
+    // freePort finds a port nothing is listening on
+    //
+    // returns the port
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// HistoryLogTest checks that replays find the msgs a client may see through the sequence numbers of its room &
+// login - across segments, in quiet rooms far behind the end of the log, from a time, and after the log is
+// opened again
+class HistoryLogTest {
+
+    private static final int SEGMENT_SIZE = 1 << 20;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void recentMergesRoomAndWhispersInOrder() throws Exception {
+        HistoryLog log = new HistoryLog(this.dir, SEGMENT_SIZE, 4, 1024);
+        ClientInfo ann = HistoryLogTest.login(log, "ann");
+        ClientInfo bob = HistoryLogTest.login(log, "bob");
+        ClientInfo cat = HistoryLogTest.login(log, "cat");
+        ClientInfo dan = HistoryLogTest.login(log, "dan");
+
+        log.append(HistoryLog.BROADCAST, "lobby", "", new Frame("one"));
+        log.append(HistoryLog.WHISPER, "ann", "bob", new Frame("to bob"), ann, bob);
+        log.append(HistoryLog.BROADCAST, "other", "", new Frame("elsewhere"));
+        log.append(HistoryLog.WHISPER, "cat", "dan", new Frame("not for bob"), cat, dan);
+        log.append(HistoryLog.BROADCAST, "lobby", "", new Frame("two"));
+        log.append(HistoryLog.WHISPER, "bob", "ann", new Frame("from bob"), bob, ann);
+        HistoryLogTest.awaitRecent(log, "lobby", bob, 4);
+
+        assertEquals(List.of("one", "to bob", "two", "from bob"), log.recent("lobby", bob, 10, 0));
+        assertEquals(List.of("two", "from bob"), log.recent("lobby", bob, 2, 0));
+        assertEquals(List.of("elsewhere"), log.recent("other", null, 10, 0));
+        assertEquals(List.of(), log.recent("empty", null, 10, 0));
+    }
+
+    @Test
+    void whispersAreOnlyReplayedToTheLoginTheyWereSentTo() throws Exception {
+        HistoryLog log = new HistoryLog(this.dir, SEGMENT_SIZE, 4, 1024);
+        ClientInfo ann = HistoryLogTest.login(log, "ann");
+        ClientInfo bob = HistoryLogTest.login(log, "bob");
+
+        log.append(HistoryLog.WHISPER, "ann", "bob", new Frame("to the first bob"), ann, bob);
+        HistoryLogTest.awaitRecent(log, "lobby", bob, 1);
+        log.closeUser(bob);
+
+        // whoever takes the freed name next starts without the first bob's whispers
+        ClientInfo next = HistoryLogTest.login(log, "bob");
+        log.append(HistoryLog.WHISPER, "ann", "bob", new Frame("to the next bob"), ann, next);
+        HistoryLogTest.awaitRecent(log, "lobby", ann, 2);
+
+        assertEquals(List.of("to the next bob"), log.recent("lobby", next, 10, 0));
+        assertEquals(List.of("to the first bob", "to the next bob"), log.recent("lobby", ann, 10, 0));
+    }
+
+    @Test
+    void recentSinceSkipsOlderBlocks() throws Exception {
+        HistoryLog log = new HistoryLog(this.dir, SEGMENT_SIZE, 4, 1 << 16);
+
+        // enough older msgs to fill several index blocks
+        for (int i = 0; i < 300; i++) {
+            log.append(HistoryLog.BROADCAST, "lobby", "", new Frame("old " + i));
+        }
+        HistoryLogTest.awaitLast(log, "lobby", "old 299");
+        Thread.sleep(20);
+
+        long since = System.currentTimeMillis();
+        Thread.sleep(20);
+        log.append(HistoryLog.BROADCAST, "lobby", "", new Frame("new 0"));
+        log.append(HistoryLog.BROADCAST, "lobby", "", new Frame("new 1"));
+        HistoryLogTest.awaitLast(log, "lobby", "new 1");
+
+        assertEquals(List.of("new 0", "new 1"), log.recent("lobby", null, HistoryLog.MAX_HISTORY, since));
+        assertEquals(List.of("old 299", "new 0", "new 1"), log.recent("lobby", null, 3, 0));
+        assertEquals(List.of(), log.recent("lobby", null, 10, System.currentTimeMillis() + 1000));
+    }
+
+    @Test
+    void recentFindsQuietRoomAcrossSegments() throws Exception {
+        HistoryLog log = new HistoryLog(this.dir, SEGMENT_SIZE, 8, 1 << 16);
+
+        // the quiet room's msgs end up in the first segment, far behind the rest of the log
+        log.append(HistoryLog.BROADCAST, "quiet", "", new Frame("first"));
+        log.append(HistoryLog.BROADCAST, "quiet", "", new Frame("second"));
+        int busy = 3 * SEGMENT_SIZE / 100;
+        for (int i = 0; i < busy; i++) {
+            log.append(HistoryLog.BROADCAST, "lobby", "", new Frame(String.format("busy %060d", i)));
+        }
+        HistoryLogTest.awaitRecent(log, "lobby", null, HistoryLog.MAX_HISTORY);
+        HistoryLogTest.awaitLast(log, "lobby", String.format("busy %060d", busy - 1));
+
+        assertEquals(List.of("first", "second"), log.recent("quiet", null, 10, 0));
+
+        List<String> lobby = log.recent("lobby", null, HistoryLog.MAX_HISTORY, 0);
+        assertEquals(HistoryLog.MAX_HISTORY, lobby.size());
+        for (int i = 0; i < lobby.size(); i++) {
+            assertEquals(String.format("busy %060d", busy - HistoryLog.MAX_HISTORY + i), lobby.get(i));
+        }
+    }
+
+    @Test
+    void recentAfterReopeningLeavesOutWhispers() throws Exception {
+        HistoryLog log = new HistoryLog(this.dir, SEGMENT_SIZE, 4, 1024);
+        ClientInfo ann = HistoryLogTest.login(log, "ann");
+        ClientInfo bob = HistoryLogTest.login(log, "bob");
+        log.append(HistoryLog.BROADCAST, "lobby", "", new Frame("before"));
+        log.append(HistoryLog.WHISPER, "ann", "bob", new Frame("whisper"), ann, bob);
+        HistoryLogTest.awaitRecent(log, "lobby", bob, 2);
+
+        // the logins the whisper was sent to did not survive the restart
+        HistoryLog reopened = new HistoryLog(this.dir, SEGMENT_SIZE, 4, 1024);
+        ClientInfo again = HistoryLogTest.login(reopened, "bob");
+        reopened.append(HistoryLog.BROADCAST, "lobby", "", new Frame("after"));
+        HistoryLogTest.awaitRecent(reopened, "lobby", again, 2);
+
+        assertEquals(List.of("before", "after"), reopened.recent("lobby", again, 10, 0));
+    }
+
+    @Test
+    void recoveryStopsAtRecordsItCanNotDecode() throws Exception {
+        // a record without a sequence number, as written before records were numbered
+        try (RandomAccessFile file = new RandomAccessFile(new File(this.dir, "history-0000000000000000.log"), "rw")) {
+            file.writeInt(8 + 1 + 2 + 5 + 2 + 4 + 3);
+            file.writeLong(System.currentTimeMillis());
+            file.writeByte(HistoryLog.BROADCAST);
+            file.writeShort(5);
+            file.writeBytes("lobby");
+            file.writeShort(0);
+            file.writeInt(3);
+            file.writeBytes("old");
+        }
+
+        HistoryLog log = new HistoryLog(this.dir, SEGMENT_SIZE, 4, 1024);
+        assertEquals(List.of(), log.recent("", null, 10, 0));
+
+        log.append(HistoryLog.BROADCAST, "lobby", "", new Frame("new"));
+        HistoryLogTest.awaitRecent(log, "lobby", null, 1);
+        assertEquals(List.of("new"), log.recent("lobby", null, 10, 0));
+    }
+
+    // login creates a client whose whispers the log keeps, as the server does when a client logs in
+    // log - log the client's whispers are kept in
+    // name - name of the client
+    //
+    // returns the client
+    private static ClientInfo login(HistoryLog log, String name) {
+        ClientInfo client = new ClientInfo(name, null);
+        log.openUser(client);
+
+        return client;
+    }
+
+    // awaitRecent waits for the appender to write enough msgs visible to a client
+    // log - log being written
+    // room - room of the client
+    // client - client asking, null for none
+    // count - number of msgs to wait for
+    //
+    // returns null
+    private static void awaitRecent(HistoryLog log, String room, ClientInfo client, int count) throws Exception {
+        for (int i = 0; log.recent(room, client, count, 0).size() < count; i++) {
+            assertTrue(i < 500, "appender did not catch up");
+            Thread.sleep(10);
+        }
+    }
+
+    // awaitLast waits for the appender to write the last msg of a room
+    // log - log being written
+    // room - room the msg was sent to
+    // text - text of the msg
+    //
+    // returns null
+    private static void awaitLast(HistoryLog log, String room, String text) throws Exception {
+        for (int i = 0; !log.recent(room, null, 1, 0).equals(List.of(text)); i++) {
+            assertTrue(i < 500, "appender did not catch up");
+            Thread.sleep(10);
+        }
+    }
+}
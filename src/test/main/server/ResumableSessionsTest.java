@@ -0,0 +1,47 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+// ResumableSessionsTest resumes sessions through a real server on both engines
+class ResumableSessionsTest {
+
+    @Test
+    void resumeTakesOverFromHalfOpenConnectionBlocking() throws Exception {
+        ResumableSessionsTest.takeOver(Server.MODE_BLOCKING);
+    }
+
+    @Test
+    void resumeTakesOverFromHalfOpenConnectionNio() throws Exception {
+        ResumableSessionsTest.takeOver(Server.MODE_NIO);
+    }
+
+    // takeOver resumes a session whose old connection is still open, as a connection that dropped without
+    // the server noticing is - the new connection gets the session, and the old one is closed
+    // mode - Server.MODE_BLOCKING or Server.MODE_NIO
+    //
+    // returns null
+    private static void takeOver(String mode) throws Exception {
+        TestServer server = TestServer.start(mode, Map.of());
+
+        try (TestClient watcher = server.connect(); TestClient old = server.connect();
+                TestClient resumed = server.connect()) {
+            watcher.login("watcher");
+            String token = old.loginResumable("roamer");
+
+            assertTrue(resumed.resume(token).startsWith("/resume accepted "));
+            assertTrue(old.isClosedByServer());
+
+            // msgs the old connection was sent are sent again, and the session lives on over the new connection
+            resumed.readTextFrameContaining("/session " + token);
+            resumed.sendText("/users");
+            assertTrue(resumed.readTextFrameContaining("USERS:").contains("roamer"));
+            watcher.sendLine("/users");
+            assertTrue(watcher.readLineContaining("USERS:").contains("roamer"));
+        }
+    }
+}
@@ -0,0 +1,31 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+// ServerMetricsTest checks that every caller of summary gets rates over its own interval
+class ServerMetricsTest {
+
+    @Test
+    void baselinesDoNotShareRates() {
+        TestServer.quiet(Map.of());
+        ServerMetrics metrics = new Server(0).getMetrics();
+
+        ServerMetrics.Baseline periodic = metrics.newBaseline();
+        ServerMetrics.Baseline admin = metrics.newBaseline();
+
+        for (int i = 0; i < 10; i++) {
+            metrics.recordIn();
+        }
+        assertFalse(metrics.summary(admin).contains("in 10 (0/s)"));
+
+        // the admin's summary moved only its own baseline, the periodic log still sees the 10 msgs as new
+        assertFalse(metrics.summary(periodic).contains("in 10 (0/s)"));
+        assertTrue(metrics.summary(admin).contains("in 10 (0/s)"));
+        assertTrue(metrics.summary(periodic).contains("in 10 (0/s)"));
+    }
+}
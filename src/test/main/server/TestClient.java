@@ -0,0 +1,175 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// TestClient is a bare client for the tests that speaks both the text and the binary protocol, with every read
+// timing out so a hung server fails the test instead of stalling it
+final class TestClient implements Closeable {
+
+    // --- FIELDS ---
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private final Socket socket;
+    private final DataInputStream input;
+    private final OutputStream output;
+
+    // --- CONSTRUCTOR ---
+    TestClient(Socket socket) throws IOException {
+        this.socket = socket;
+        this.socket.setSoTimeout(TIMEOUT_MILLIS);
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.output = socket.getOutputStream();
+    }
+
+    // login runs the username handshake over the text protocol
+    // name - username to log in with
+    //
+    // returns null
+    void login(String name) throws IOException {
+        this.sendLine("/username " + name);
+        this.readLineContaining("/username accepted");
+        this.sendLine("/username confirmed");
+        this.readLineContaining(name + " has joined");
+    }
+
+    // loginBinary runs the username handshake offering the binary protocol, and switches to frames
+    // name - username to log in with
+    //
+    // returns null
+    void loginBinary(String name) throws IOException {
+        this.sendLine(BinaryProtocol.OFFER);
+        this.sendLine("/username " + name);
+        this.readLineContaining("/username accepted binary");
+        this.sendLine("/username confirmed binary");
+    }
+
+    // loginResumable runs the username handshake offering the binary protocol & resuming, and switches to frames
+    // name - username to log in with
+    //
+    // returns the token the session resumes with
+    String loginResumable(String name) throws IOException {
+        this.sendLine(BinaryProtocol.OFFER);
+        this.sendLine(ResumableSessions.OFFER);
+        this.sendLine("/username " + name);
+        this.readLineContaining("/username accepted binary resume");
+        this.sendLine("/username confirmed binary resume");
+
+        return this.readTextFrameContaining("/session ").substring("/session ".length()).trim();
+    }
+
+    // resume resumes a session, asking for every msg it still has to be sent again, and switches to frames
+    // token - token of the session
+    //
+    // returns the line the server answered the /resume with
+    String resume(String token) throws IOException {
+        this.sendLine(BinaryProtocol.OFFER);
+        this.sendLine(ResumableSessions.OFFER);
+        this.sendLine("/resume " + token + " 0");
+
+        String response = this.readLineContaining("/resume ");
+        if (response.startsWith("/resume accepted ")) {
+            this.sendLine("/resume confirmed binary resume");
+        }
+
+        return response;
+    }
+
+    // sendLine sends a line of text
+    // line - line without the trailing newline
+    //
+    // returns null
+    void sendLine(String line) throws IOException {
+        this.output.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        this.output.flush();
+    }
+
+    // sendText sends a line of text as a TEXT frame
+    // text - text to be sent
+    //
+    // returns null
+    void sendText(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(BinaryProtocol.TEXT);
+        BinaryProtocol.writeVarInt(frame, bytes.length);
+        frame.write(bytes);
+
+        this.sendRaw(frame.toByteArray());
+    }
+
+    // sendRaw sends bytes exactly as given
+    // bytes - bytes to be sent
+    //
+    // returns null
+    void sendRaw(byte[] bytes) throws IOException {
+        this.output.write(bytes);
+        this.output.flush();
+    }
+
+    // readLineContaining reads lines of text until one contains the given text
+    // text - text to wait for
+    //
+    // returns the line
+    String readLineContaining(String text) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        int b;
+        while ((b = this.input.read()) >= 0) {
+            if (b != '\n') {
+                line.write(b);
+                continue;
+            }
+
+            String read = line.toString(StandardCharsets.UTF_8);
+            if (read.contains(text)) {
+                return read;
+            }
+            line.reset();
+        }
+
+        throw new EOFException("expected " + text);
+    }
+
+    // readTextFrameContaining reads frames until a TEXT frame contains the given text
+    // text - text to wait for
+    //
+    // returns the text of the frame
+    String readTextFrameContaining(String text) throws IOException {
+        while (true) {
+            int type = this.input.readUnsignedByte();
+            byte[] payload = new byte[BinaryProtocol.readLength(this.input)];
+            this.input.readFully(payload);
+
+            String read = new String(payload, StandardCharsets.UTF_8);
+            if (type == BinaryProtocol.TEXT && read.contains(text)) {
+                return read;
+            }
+        }
+    }
+
+    // isClosedByServer reads until the server closes the connection, throwing everything away
+    //
+    // returns boolean if the server closed the connection before the read timed out
+    boolean isClosedByServer() throws IOException {
+        try {
+            while (this.input.read() >= 0) {
+                // thrown away
+            }
+            return true;
+        }
+        catch (java.net.SocketTimeoutException e) {
+            return false;
+        }
+        catch (java.net.SocketException e) {
+            // reset by the server
+            return true;
+        }
+    }
+
+    public void close() throws IOException {
+        this.socket.close();
+    }
+}
@@ -0,0 +1,78 @@
+// Nicholas Delli Carpini
+package main.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+
+// TestServer starts a quiet server on a free loopback port for the tests. History, mailboxes, the log file and
+// the stats printer are turned off, and flood control & the cluster only run when a test asks for them.
+final class TestServer {
+
+    // --- FIELDS ---
+    final Server server;
+    final int port;
+
+    // --- CONSTRUCTOR ---
+    // mode - Server.MODE_BLOCKING or Server.MODE_NIO
+    // properties - extra -Dchat. properties the server is created with
+    private TestServer(String mode, Map<String, String> properties) throws IOException {
+        TestServer.quiet(properties);
+
+        try (ServerSocket probe = new ServerSocket(0)) {
+            this.port = probe.getLocalPort();
+        }
+        this.server = new Server(this.port);
+
+        Thread acceptor = new Thread(() -> this.server.start(mode, 1), "test-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // quiet sets the properties every test server is created with
+    // properties - extra -Dchat. properties, set last
+    //
+    // returns null
+    static void quiet(Map<String, String> properties) {
+        System.setProperty("chat.historyDir", "");
+        System.setProperty("chat.mailboxFile", "");
+        System.setProperty("chat.statsInterval", "0");
+        System.setProperty("chat.logFile", "");
+        System.setProperty("chat.logConsole", "false");
+        System.setProperty("chat.floodRate", "0");
+        System.setProperty("chat.floodGlobalRate", "0");
+        System.setProperty("chat.peerPort", "0");
+        System.setProperty("chat.peers", "");
+        properties.forEach(System::setProperty);
+    }
+
+    // start starts a server and waits until it accepts connections
+    // mode - Server.MODE_BLOCKING or Server.MODE_NIO
+    // properties - extra -Dchat. properties the server is created with
+    //
+    // returns the server
+    static TestServer start(String mode, Map<String, String> properties) throws Exception {
+        TestServer server = new TestServer(mode, properties);
+
+        for (int i = 0; ; i++) {
+            try (Socket probe = new Socket(InetAddress.getLoopbackAddress(), server.port)) {
+                return server;
+            }
+            catch (IOException e) {
+                if (i == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // connect opens a new client connection to the server
+    //
+    // returns the client
+    TestClient connect() throws IOException {
+        return new TestClient(new Socket(InetAddress.getLoopbackAddress(), this.port));
+    }
+}